@@ -32,6 +32,22 @@ java {
     withSourcesJar()
 }
 
+// micro benchmarks live in their own source set and are never published
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[jmh.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[jmh.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
+dependencies {
+    // benchmarks
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    "jmhRuntimeOnly"("ch.qos.logback:logback-classic:1.5.37")
+}
+
 publishing {
     publications {
         create<MavenPublication>("maven") {
@@ -101,6 +117,22 @@ tasks {
             compilerArgs = mutableListOf("-Xlint")
         }
     }
+    register<JavaExec>("jmh") {
+        group = "verification"
+        description = "Runs the JMH micro benchmarks with the GC profiler enabled."
+        classpath = jmh.runtimeClasspath
+        mainClass = "org.openjdk.jmh.Main"
+        // allocation rates are reported by the GC profiler, extra JMH options can be passed
+        // with -Pjmh.args="..." e.g. -Pjmh.args="SMTPDecoderBenchmark -f 1"
+        args(((project.findProperty("jmh.args") as? String)?.split(" ") ?: emptyList()) + listOf("-prof", "gc"))
+    }
+    register<JavaExec>("loadTest") {
+        group = "verification"
+        description = "Runs the SMTP load generator, options are passed with -Pload.args=\"...\"."
+        classpath = jmh.runtimeClasspath
+        mainClass = "org.mailster.smtp.load.LoadGenerator"
+        args((project.findProperty("load.args") as? String)?.split(" ") ?: emptyList())
+    }
     withType<Javadoc> {
         (options as StandardJavadocDocletOptions).addBooleanOption("html5", true)
         (options as CoreJavadocOptions).addBooleanOption("Xdoclint:none", true)
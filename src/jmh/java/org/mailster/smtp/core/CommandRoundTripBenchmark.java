@@ -0,0 +1,96 @@
+package org.mailster.smtp.core;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.smtp.SMTPServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of command round trips over a loopback connection,
+ * with every event handed to the worker pool or with cheap commands
+ * executed inline on the I/O processor thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandRoundTripBenchmark {
+
+    @Param({"false", "true"})
+    public boolean inline;
+
+    private SMTPServer server;
+    private Socket socket;
+    private OutputStream out;
+    private BufferedReader in;
+
+    @Setup
+    public void setup() throws IOException {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        server = new SMTPServer();
+        server.setBindAddress(InetAddress.getLoopbackAddress());
+        server.setPort(port);
+        server.getConfig().setInlineCommandDispatch(inline);
+        server.start();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+        in.readLine();
+        roundTrip("HELO bench.example.org\r\n");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+        server.shutdown();
+    }
+
+    private String roundTrip(String command) throws IOException {
+        out.write(command.getBytes(US_ASCII));
+        out.flush();
+        return in.readLine();
+    }
+
+    @Benchmark
+    public String noop() throws IOException {
+        return roundTrip("NOOP\r\n");
+    }
+
+    @Benchmark
+    public String rset() throws IOException {
+        return roundTrip("RSET\r\n");
+    }
+
+    @Benchmark
+    public String helo() throws IOException {
+        return roundTrip("HELO bench.example.org\r\n");
+    }
+}
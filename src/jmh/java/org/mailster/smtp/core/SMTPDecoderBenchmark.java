@@ -0,0 +1,162 @@
+package org.mailster.smtp.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link SMTPDecoder#decode} for pipelined command lines and for
+ * a DATA transfer, each split into network segments of various sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SMTPDecoderBenchmark {
+
+    private static final String COMMANDS = "EHLO client.example.org\r\n" +
+            "MAIL FROM:<sender@example.org>\r\n" +
+            "RCPT TO:<first@example.org>\r\n" +
+            "RCPT TO:<second@example.org>\r\n" +
+            "RCPT TO:<third@example.org>\r\n" +
+            "NOOP\r\n" +
+            "RSET\r\n";
+
+    /**
+     * Size of the network segments handed to the decoder.
+     */
+    @Param({"64", "1460", "16384"})
+    public int segmentSize;
+
+    /**
+     * Size of the DATA payload.
+     */
+    @Param({"16384", "1048576"})
+    public int messageSize;
+
+    private SMTPDecoder decoder;
+    private IoSession session;
+    private SMTPContext context;
+    private BlackholeOutput out;
+
+    private IoBuffer[] commandSegments;
+    private IoBuffer[] dataSegments;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        var config = new SMTPServerConfig() {
+        };
+        decoder = new SMTPDecoder(config.getCharset(), config.getDataDeferredSize());
+        session = new DummySession();
+        context = new SMTPContext(config, new DeliveryHandlerFactory(Collections.emptyList()), session);
+        session.setAttribute(SMTPConnectionHandler.CONTEXT_ATTRIBUTE, context);
+        out = new BlackholeOutput(bh);
+
+        commandSegments = split(COMMANDS.getBytes(StandardCharsets.US_ASCII));
+        dataSegments = split(message(messageSize));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        decoder.dispose(session);
+    }
+
+    @Benchmark
+    public void commands() throws Exception {
+        context.getSMTPState().setDataMode(false);
+        decode(commandSegments);
+    }
+
+    @Benchmark
+    public void data() throws Exception {
+        context.getSMTPState().setDataMode(true);
+        decode(dataSegments);
+    }
+
+    private void decode(IoBuffer[] segments) throws Exception {
+        for (var segment : segments) {
+            segment.position(0);
+            decoder.decode(session, segment, out);
+        }
+    }
+
+    private IoBuffer[] split(byte[] payload) {
+        var count = (payload.length + segmentSize - 1) / segmentSize;
+        var segments = new IoBuffer[count];
+        for (var i = 0; i < count; i++) {
+            var off = i * segmentSize;
+            var len = Math.min(segmentSize, payload.length - off);
+            var segment = new byte[len];
+            System.arraycopy(payload, off, segment, 0, len);
+            segments[i] = IoBuffer.wrap(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Builds a dot stuffed message body of the given size terminated
+     * by the SMTP end of data sequence.
+     */
+    static byte[] message(int size) {
+        var line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\r\n";
+        var stuffed = "..this line was dot stuffed by the client\r\n";
+        var sb = new StringBuilder(size + 128);
+        sb.append("Subject: benchmark\r\n\r\n");
+        for (var i = 0; sb.length() < size; i++) {
+            sb.append(i % 16 == 0 ? stuffed : line);
+        }
+        sb.setLength(size);
+        sb.append("\r\n.\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class BlackholeOutput implements ProtocolDecoderOutput {
+
+        private final Blackhole bh;
+
+        BlackholeOutput(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(Object message) {
+            if (message instanceof InputStream) {
+                try {
+                    ((InputStream) message).close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            bh.consume(message);
+        }
+
+        @Override
+        public void flush(NextFilter nextFilter, IoSession session) {
+        }
+    }
+}
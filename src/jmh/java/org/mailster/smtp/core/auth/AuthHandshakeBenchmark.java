@@ -0,0 +1,149 @@
+package org.mailster.smtp.core.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.core.session.DummySession;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.impl.CramMD5AuthenticationHandler;
+import org.mailster.smtp.core.auth.impl.PlainAuthenticationHandler;
+import org.mailster.smtp.core.auth.impl.ScramSha256AuthenticationHandler;
+import org.mailster.smtp.util.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete authentication handshakes per second on a single
+ * thread, that is per core. Each SCRAM and CRAM-MD5 handshake includes the
+ * client computations, with the salted password cached by the client as
+ * RFC 5802 suggests.
+ * <p>
+ * <code>plainWithKeyDerivation</code> shows the cost avoided by the
+ * precomputed verifiers: a PLAIN login checked against a PBKDF2 hash with
+ * the same iteration count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthHandshakeBenchmark {
+
+    private static final String USERNAME = "john";
+    private static final String PASSWORD = "pencil-and-paper";
+
+    private SMTPContext context;
+
+    private ScramSha256AuthenticationHandler scram;
+    private CramMD5AuthenticationHandler cram;
+    private PlainAuthenticationHandler plain;
+    private PlainAuthenticationHandler plainWithKeyDerivation;
+
+    private byte[] clientKey;
+    private byte[] clientStoredKey;
+    private String plainResponse;
+
+    @Setup
+    public void setup() {
+        var config = new SMTPServerConfig() {
+        };
+        context = new SMTPContext(config, new DeliveryHandlerFactory(Collections.emptyList()), new DummySession());
+
+        var store = new InMemoryVerifierStore(ScramCredential.DEFAULT_ITERATIONS, true);
+        store.addUser(USERNAME, PASSWORD);
+        scram = new ScramSha256AuthenticationHandler(store);
+        cram = new CramMD5AuthenticationHandler(store);
+
+        plain = new PlainAuthenticationHandler((username, password) -> {
+            if (!USERNAME.equals(username) || !PASSWORD.equals(password)) {
+                throw new LoginFailedException();
+            }
+        });
+
+        var hashed = store.getScramCredential(USERNAME);
+        plainWithKeyDerivation = new PlainAuthenticationHandler((username, password) -> {
+            var check = ScramCredential.create(password, hashed.getSalt(), hashed.getIterations());
+            if (!USERNAME.equals(username) || !Arrays.equals(check.getStoredKey(), hashed.getStoredKey())) {
+                throw new LoginFailedException();
+            }
+        });
+
+        var saltedPassword = ScramCredential.saltedPassword(PASSWORD, hashed.getSalt(), hashed.getIterations());
+        clientKey = ScramCredential.hmac(saltedPassword, "Client Key");
+        clientStoredKey = ScramCredential.sha256(clientKey);
+        plainResponse = encode("\0" + USERNAME + "\0" + PASSWORD);
+    }
+
+    @Benchmark
+    public Credential scramSha256() throws LoginFailedException {
+        var response = new StringBuilder();
+        var clientFirstBare = "n=" + USERNAME + ",r=fyko+d2lbbFgONRv9qkxdawL";
+        scram.auth("AUTH SCRAM-SHA-256 " + encode("n,," + clientFirstBare), response, context);
+
+        var serverFirst = decode(response.substring(4));
+        var withoutProof = "c=biws," + serverFirst.substring(0, serverFirst.indexOf(','));
+        var signature = ScramCredential.hmac(clientStoredKey, clientFirstBare + "," + serverFirst + "," + withoutProof);
+        var proof = new byte[clientKey.length];
+        for (var i = 0; i < proof.length; i++) {
+            proof[i] = (byte) (clientKey[i] ^ signature[i]);
+        }
+
+        response.setLength(0);
+        scram.auth(encode(withoutProof + ",p=" + Base64.encodeToString(proof, false)), response, context);
+        response.setLength(0);
+        scram.auth("", response, context);
+        return context.getCredential();
+    }
+
+    @Benchmark
+    public Credential cramMD5() throws Exception {
+        var response = new StringBuilder();
+        cram.auth("AUTH CRAM-MD5", response, context);
+
+        var mac = Mac.getInstance("HmacMD5");
+        mac.init(new SecretKeySpec(PASSWORD.getBytes(StandardCharsets.UTF_8), "HmacMD5"));
+        var digest = HexFormat.of().formatHex(mac.doFinal(decode(response.substring(4)).getBytes(StandardCharsets.US_ASCII)));
+
+        cram.auth(encode(USERNAME + " " + digest), new StringBuilder(), context);
+        return context.getCredential();
+    }
+
+    @Benchmark
+    public Credential plain() throws LoginFailedException {
+        plain.auth("AUTH PLAIN " + plainResponse, new StringBuilder(), context);
+        return context.getCredential();
+    }
+
+    @Benchmark
+    public Credential plainWithKeyDerivation() throws LoginFailedException {
+        plainWithKeyDerivation.auth("AUTH PLAIN " + plainResponse, new StringBuilder(), context);
+        return context.getCredential();
+    }
+
+    private static String encode(String s) {
+        return Base64.encodeToString(s.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private static String decode(String s) {
+        return new String(Base64.decode(s), StandardCharsets.UTF_8);
+    }
+}
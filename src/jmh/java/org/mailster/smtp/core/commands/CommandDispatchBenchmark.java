@@ -0,0 +1,94 @@
+package org.mailster.smtp.core.commands;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.core.SMTPContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the command lookup done for each line received and the
+ * address validation done for each MAIL and RCPT command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    private static final String[] LINES = {
+            "EHLO client.example.org",
+            "MAIL FROM:<sender@example.org>",
+            "RCPT TO:<recipient@example.org>",
+            "rcpt to:<other.recipient@example.org>",
+            "DATA",
+            "NOOP",
+            "RSET",
+            "QUIT"
+    };
+
+    private static final String[] ADDRESSES = {
+            "sender@example.org",
+            "first.last+tag@sub.domain.example.com",
+            "postmaster@localhost",
+            "not an address",
+            "trailing.dot.@example.org",
+            "user@no-tld"
+    };
+
+    private CommandHandler handler;
+    private AddressProbe probe;
+
+    @Setup
+    public void setup() {
+        handler = new CommandHandler();
+        probe = new AddressProbe();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void getCommandFromString(Blackhole bh) throws CommandException {
+        for (var line : LINES) {
+            bh.consume(handler.getCommandFromString(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void isValidEmailAddress(Blackhole bh) {
+        for (var address : ADDRESSES) {
+            bh.consume(probe.isValid(address));
+        }
+    }
+
+    /**
+     * Exposes the address validation of {@link AbstractCommand}.
+     */
+    private static final class AddressProbe extends AbstractCommand {
+
+        AddressProbe() {
+            super("PROBE", null);
+        }
+
+        boolean isValid(String address) {
+            return isValidEmailAddress(address);
+        }
+
+        @Override
+        public void execute(String commandString, IoSession ioSession, SMTPContext ctx) {
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.mailster.smtp.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free log-linear latency histogram. Values are recorded in
+ * microseconds, exactly below 32 and into 16 linear sub buckets per power of
+ * two above, which bounds the relative error of the reported percentiles to
+ * about 6%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration given in nanoseconds.
+     */
+    public void record(long nanos) {
+        var micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Returns the maximum recorded value in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value in microseconds below which the given percentage of
+     * the recorded values fall.
+     */
+    public long getPercentile(double percentile) {
+        var count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        var rank = (long) Math.ceil(count * percentile / 100d);
+        var seen = 0L;
+        for (var i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        var magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        var sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return magnitude * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        var magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+        var sub = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((long) (sub + 1) << magnitude) - 1;
+    }
+}
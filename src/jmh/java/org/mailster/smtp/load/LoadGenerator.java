@@ -0,0 +1,495 @@
+package org.mailster.smtp.load;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.util.DummySSLSocketFactory;
+
+/**
+ * A multi connection SMTP load generator. Each connection runs on its own
+ * virtual thread with plain blocking sockets, so thousands of concurrent
+ * sessions can be driven from a single JVM. Message sizes follow a weighted
+ * distribution, the envelope can be pipelined and sessions can be upgraded
+ * with STARTTLS. At the end it reports messages/sec, bytes/sec and latency
+ * percentiles for each SMTP phase.
+ * <p>
+ * Options are given as <code>--name=value</code>:
+ * <ul>
+ * <li>host, port: the server to load, defaults to 127.0.0.1:2525</li>
+ * <li>embedded: starts a draining {@link SMTPServer} on host:port first</li>
+ * <li>connections: number of concurrent sessions, defaults to 100</li>
+ * <li>duration: length of the run in seconds, defaults to 30</li>
+ * <li>messages: stops after this many messages instead, 0 means no limit</li>
+ * <li>messagesPerConnection: messages sent before a session is closed and
+ * reopened, defaults to 10</li>
+ * <li>recipients: recipients per message, defaults to 1</li>
+ * <li>sizes: message size distribution, see {@link SizeDistribution},
+ * defaults to <code>2k:60,32k:30,1m:10</code></li>
+ * <li>pipelining: sends MAIL, RCPT and DATA in a single write</li>
+ * <li>starttls: upgrades every session with STARTTLS, server certificates
+ * are not verified</li>
+ * <li>tlsRatio: upgrades this fraction of the connections with STARTTLS
+ * instead, latencies of plain and TLS sessions are then reported apart</li>
+ * <li>resume: lets TLS sessions resume previous ones, defaults to true. Use
+ * false to force full handshakes</li>
+ * <li>tlsHandshakeThreads: size of the TLS crypto pool of the embedded
+ * server, defaults to 0 which keeps TLS on the I/O processor threads</li>
+ * <li>inlineDispatch: executes the commands which can't block on the I/O
+ * processor threads of the embedded server</li>
+ * <li>timeout: socket timeout in milliseconds, defaults to 30000</li>
+ * </ul>
+ * Run it through gradle with <code>./gradlew loadTest -Pload.args="..."</code>.
+ */
+public class LoadGenerator {
+
+    /**
+     * The measured SMTP phases. With pipelining, MAIL, RCPT and DATA are
+     * measured together as ENVELOPE.
+     */
+    public enum Phase {
+        CONNECT, EHLO, STARTTLS, MAIL, RCPT, DATA, ENVELOPE, BODY, QUIT
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    private final Options options;
+    private final SizeDistribution sizes;
+    private final InetSocketAddress address;
+    private final DummySSLSocketFactory sslSocketFactory = new DummySSLSocketFactory();
+
+    private final Map<Phase, LatencyHistogram> plainHistograms = new EnumMap<>(Phase.class);
+    private final Map<Phase, LatencyHistogram> tlsHistograms = new EnumMap<>(Phase.class);
+    private final Map<Integer, byte[]> bodies = new ConcurrentHashMap<>();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong remaining;
+
+    private volatile boolean running = true;
+    private long elapsedNanos;
+
+    public LoadGenerator(Options options) throws IOException {
+        this.options = options;
+        this.sizes = new SizeDistribution(options.sizes);
+        this.address = new InetSocketAddress(InetAddress.getByName(options.host), options.port);
+        this.remaining = new AtomicLong(options.messages > 0 ? options.messages : Long.MAX_VALUE);
+        for (var phase : Phase.values()) {
+            plainHistograms.put(phase, new LatencyHistogram());
+            tlsHistograms.put(phase, new LatencyHistogram());
+        }
+        for (var size : sizes.getSizes()) {
+            bodies.put(size, body(size));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = Options.parse(args);
+        SMTPServer server = null;
+        if (options.embedded) {
+            server = startEmbeddedServer(options);
+        }
+
+        try {
+            var generator = new LoadGenerator(options);
+            generator.run();
+            generator.report(System.out);
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+    }
+
+    private static SMTPServer startEmbeddedServer(Options options) throws IOException {
+        var server = new SMTPServer(new MessageListenerAdapter() {
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    data.transferTo(OutputStream.nullOutputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.setBindAddress(InetAddress.getByName(options.host));
+        server.setPort(options.port);
+        server.getConfig().setMaxConnections(options.connections + 16);
+        server.getConfig().setBacklog(Math.max(options.connections, 50));
+        server.getConfig().setTLSSupported(options.tlsRatio > 0);
+        server.getConfig().setInlineCommandDispatch(options.inlineDispatch);
+        if (options.tlsRatio > 0) {
+            server.getConfig().setSSLContext(createServerContext());
+            server.getConfig().setTLSHandshakeThreads(options.tlsHandshakeThreads);
+        }
+        server.start();
+        return server;
+    }
+
+    /**
+     * Loads the self signed certificate used by the embedded server.
+     */
+    private static SSLContext createServerContext() throws IOException {
+        try (var in = LoadGenerator.class.getResourceAsStream("/keystore.p12")) {
+            var keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, KEYSTORE_PASSWORD);
+            var kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, KEYSTORE_PASSWORD);
+
+            var context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs the load until the configured duration elapsed or the configured
+     * number of messages was sent.
+     */
+    public void run() throws InterruptedException {
+        var start = System.nanoTime();
+        var deadline = start + TimeUnit.SECONDS.toNanos(options.duration);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var tlsConnections = Math.round(options.connections * options.tlsRatio);
+            for (var i = 0; i < options.connections; i++) {
+                var tls = i < tlsConnections;
+                executor.submit(() -> connectionLoop(tls));
+            }
+
+            var lastMessages = 0L;
+            while (running) {
+                Thread.sleep(1000);
+                var current = messages.sum();
+                System.out.printf(Locale.ROOT, "%6ds %10d msgs %8d msgs/s %6d errors%n",
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), current,
+                        current - lastMessages, errors.sum());
+                lastMessages = current;
+                if (System.nanoTime() - deadline >= 0 || remaining.get() <= 0) {
+                    running = false;
+                }
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void connectionLoop(boolean tls) {
+        while (running) {
+            try {
+                session(tls ? tlsHistograms : plainHistograms, tls);
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    private void session(Map<Phase, LatencyHistogram> histograms, boolean tls) throws IOException {
+        var start = System.nanoTime();
+        try (var socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, options.timeout);
+            socket.setSoTimeout(options.timeout);
+            var connection = new Connection(socket);
+            connection.expect(220);
+            record(histograms, Phase.CONNECT, start);
+
+            ehlo(histograms, connection);
+
+            if (tls) {
+                start = System.nanoTime();
+                connection.command("STARTTLS", 220);
+                // without resumption every session gets its own client session cache
+                connection.upgrade(options.resume ? sslSocketFactory : new DummySSLSocketFactory(),
+                        options.host, options.port);
+                record(histograms, Phase.STARTTLS, start);
+                ehlo(histograms, connection);
+            }
+
+            for (var i = 0; i < options.messagesPerConnection && running; i++) {
+                if (remaining.getAndDecrement() <= 0) {
+                    running = false;
+                    break;
+                }
+                transaction(histograms, connection);
+            }
+
+            start = System.nanoTime();
+            connection.command("QUIT", 221);
+            record(histograms, Phase.QUIT, start);
+        }
+    }
+
+    private void ehlo(Map<Phase, LatencyHistogram> histograms, Connection connection) throws IOException {
+        var start = System.nanoTime();
+        connection.command("EHLO loadgenerator.localdomain", 250);
+        record(histograms, Phase.EHLO, start);
+    }
+
+    private void transaction(Map<Phase, LatencyHistogram> histograms, Connection connection) throws IOException {
+        var body = bodies.get(sizes.next());
+        var start = System.nanoTime();
+
+        if (options.pipelining) {
+            connection.write("MAIL FROM:<sender@loadgenerator.localdomain>");
+            for (var r = 0; r < options.recipients; r++) {
+                connection.write("RCPT TO:<rcpt" + r + "@loadgenerator.localdomain>");
+            }
+            connection.write("DATA");
+            connection.flush();
+            connection.expect(250);
+            for (var r = 0; r < options.recipients; r++) {
+                connection.expect(250);
+            }
+            connection.expect(354);
+            record(histograms, Phase.ENVELOPE, start);
+        } else {
+            connection.command("MAIL FROM:<sender@loadgenerator.localdomain>", 250);
+            record(histograms, Phase.MAIL, start);
+            for (var r = 0; r < options.recipients; r++) {
+                start = System.nanoTime();
+                connection.command("RCPT TO:<rcpt" + r + "@loadgenerator.localdomain>", 250);
+                record(histograms, Phase.RCPT, start);
+            }
+            start = System.nanoTime();
+            connection.command("DATA", 354);
+            record(histograms, Phase.DATA, start);
+        }
+
+        start = System.nanoTime();
+        connection.out.write(body);
+        connection.flush();
+        connection.expect(250);
+        record(histograms, Phase.BODY, start);
+
+        messages.increment();
+        bytes.add(body.length);
+    }
+
+    private static void record(Map<Phase, LatencyHistogram> histograms, Phase phase, long start) {
+        histograms.get(phase).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Prints the throughput and the per phase latency percentiles.
+     */
+    public void report(PrintStream out) {
+        var seconds = Math.max(elapsedNanos, 1) / 1e9;
+        out.println();
+        out.printf(Locale.ROOT, "connections: %d, pipelining: %b, tlsRatio: %.2f, resume: %b, sizes: %s%n",
+                options.connections, options.pipelining, options.tlsRatio, options.resume, options.sizes);
+        out.printf(Locale.ROOT, "messages: %d in %.1fs, %.1f msgs/s, %.2f MB/s, %d errors%n",
+                messages.sum(), seconds, messages.sum() / seconds, bytes.sum() / seconds / (1024 * 1024),
+                errors.sum());
+        report(out, "plain sessions", plainHistograms);
+        report(out, "TLS sessions", tlsHistograms);
+    }
+
+    private static void report(PrintStream out, String title, Map<Phase, LatencyHistogram> histograms) {
+        if (histograms.get(Phase.CONNECT).getCount() == 0) {
+            return;
+        }
+        out.println();
+        out.println(title);
+        out.printf(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s%n",
+                "phase", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (var entry : histograms.entrySet()) {
+            var h = entry.getValue();
+            if (h.getCount() == 0) {
+                continue;
+            }
+            out.printf(Locale.ROOT, "%-10s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey(), h.getCount(), h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3,
+                    h.getPercentile(99) / 1e3, h.getPercentile(99.9) / 1e3, h.getMax() / 1e3);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Phase phase, boolean tls) {
+        return (tls ? tlsHistograms : plainHistograms).get(phase);
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Builds a message of the given size with its terminating sequence. No
+     * line starts with a dot so the body needs no dot stuffing.
+     */
+    private static byte[] body(int size) {
+        var line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\r\n";
+        var sb = new StringBuilder(size + 128);
+        sb.append("From: sender@loadgenerator.localdomain\r\n");
+        sb.append("Subject: load test ").append(size).append("\r\n\r\n");
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        sb.setLength(Math.max(size, sb.indexOf("\r\n\r\n") + 4));
+        if (sb.charAt(sb.length() - 1) != '\n') {
+            sb.append("\r\n");
+        }
+        sb.append(".\r\n");
+        return sb.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * A blocking SMTP client connection.
+     */
+    private static final class Connection {
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final StringBuilder line = new StringBuilder(128);
+
+        Connection(Socket socket) throws IOException {
+            bind(socket);
+        }
+
+        private void bind(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        }
+
+        void upgrade(DummySSLSocketFactory factory, String host, int port) throws IOException {
+            var sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+            sslSocket.setUseClientMode(true);
+            sslSocket.startHandshake();
+            bind(sslSocket);
+        }
+
+        void write(String command) throws IOException {
+            out.write(command.getBytes(ISO_8859_1));
+            out.write(CRLF);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void command(String command, int expected) throws IOException {
+            write(command);
+            flush();
+            expect(expected);
+        }
+
+        /**
+         * Reads a possibly multi line reply and checks its code.
+         */
+        void expect(int expected) throws IOException {
+            do {
+                readLine();
+            } while (line.length() > 3 && line.charAt(3) == '-');
+
+            if (line.length() < 3 || Integer.parseInt(line, 0, 3, 10) != expected) {
+                throw new IOException("Expected " + expected + " but got: " + line);
+            }
+        }
+
+        private void readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Connection closed by server");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+        }
+    }
+
+    /**
+     * The load generator options.
+     */
+    public static class Options {
+
+        String host = "127.0.0.1";
+        int port = 2525;
+        boolean embedded;
+        int connections = 100;
+        int duration = 30;
+        long messages;
+        int messagesPerConnection = 10;
+        int recipients = 1;
+        String sizes = "2k:60,32k:30,1m:10";
+        boolean pipelining;
+        double tlsRatio;
+        boolean resume = true;
+        int tlsHandshakeThreads;
+        boolean inlineDispatch;
+        int timeout = 30000;
+
+        public static Options parse(String... args) {
+            var options = new Options();
+            for (var arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+                var idx = arg.indexOf('=');
+                var name = idx > 0 ? arg.substring(2, idx) : arg.substring(2);
+                var value = idx > 0 ? arg.substring(idx + 1) : "true";
+                switch (name) {
+                    case "host" -> options.host = value;
+                    case "port" -> options.port = Integer.parseInt(value);
+                    case "embedded" -> options.embedded = Boolean.parseBoolean(value);
+                    case "connections" -> options.connections = Integer.parseInt(value);
+                    case "duration" -> options.duration = Integer.parseInt(value);
+                    case "messages" -> options.messages = Long.parseLong(value);
+                    case "messagesPerConnection" -> options.messagesPerConnection = Integer.parseInt(value);
+                    case "recipients" -> options.recipients = Integer.parseInt(value);
+                    case "sizes" -> options.sizes = value;
+                    case "pipelining" -> options.pipelining = Boolean.parseBoolean(value);
+                    case "starttls" -> options.tlsRatio = Boolean.parseBoolean(value) ? 1 : 0;
+                    case "tlsRatio" -> options.tlsRatio = Double.parseDouble(value);
+                    case "resume" -> options.resume = Boolean.parseBoolean(value);
+                    case "tlsHandshakeThreads" -> options.tlsHandshakeThreads = Integer.parseInt(value);
+                    case "inlineDispatch" -> options.inlineDispatch = Boolean.parseBoolean(value);
+                    case "timeout" -> options.timeout = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            if (options.connections <= 0 || options.messagesPerConnection <= 0 || options.recipients <= 0) {
+                throw new IllegalArgumentException("connections, messagesPerConnection and recipients must be positive");
+            }
+            if (options.tlsRatio < 0 || options.tlsRatio > 1) {
+                throw new IllegalArgumentException("tlsRatio must be between 0 and 1");
+            }
+            return options;
+        }
+    }
+}
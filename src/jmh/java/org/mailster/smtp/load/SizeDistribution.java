@@ -0,0 +1,68 @@
+package org.mailster.smtp.load;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A weighted distribution of message sizes parsed from a specification like
+ * <code>1k:70,64k:25,4m:5</code>, each entry being a size with an optional
+ * <code>k</code> or <code>m</code> unit followed by its weight.
+ */
+public class SizeDistribution {
+
+    private final int[] sizes;
+    private final long[] cumulativeWeights;
+
+    public SizeDistribution(String specification) {
+        var entries = specification.split(",");
+        sizes = new int[entries.length];
+        cumulativeWeights = new long[entries.length];
+
+        var total = 0L;
+        for (var i = 0; i < entries.length; i++) {
+            var entry = entries[i].trim().split(":");
+            sizes[i] = parseSize(entry[0]);
+            var weight = entry.length > 1 ? Long.parseLong(entry[1].trim()) : 1;
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + entries[i]);
+            }
+            total += weight;
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * Returns a random size following the distribution.
+     */
+    public int next() {
+        var pick = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+        var idx = Arrays.binarySearch(cumulativeWeights, pick + 1);
+        return sizes[idx < 0 ? -idx - 1 : idx];
+    }
+
+    /**
+     * Returns the distinct sizes of this distribution.
+     */
+    public int[] getSizes() {
+        return sizes.clone();
+    }
+
+    static int parseSize(String size) {
+        var s = size.trim().toLowerCase(Locale.ROOT);
+        var factor = 1;
+        if (s.endsWith("k")) {
+            factor = 1024;
+        } else if (s.endsWith("m")) {
+            factor = 1024 * 1024;
+        }
+        if (factor > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        var value = Integer.parseInt(s) * factor;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        return value;
+    }
+}
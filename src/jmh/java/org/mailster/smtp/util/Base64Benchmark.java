@@ -0,0 +1,55 @@
+package org.mailster.smtp.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Base64} decoding as used by the AUTH mechanisms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark {
+
+    /**
+     * Size of the decoded payload, 24 bytes is a typical AUTH PLAIN secret.
+     */
+    @Param({"24", "1024", "65536"})
+    public int size;
+
+    private String encoded;
+    private byte[] encodedBytes;
+
+    @Setup
+    public void setup() {
+        var raw = new byte[size];
+        new Random(42).nextBytes(raw);
+        encoded = Base64.encodeToString(raw, size > 57);
+        encodedBytes = Base64.encodeToByte(raw, size > 57);
+    }
+
+    @Benchmark
+    public byte[] decodeString() {
+        return Base64.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() {
+        return Base64.decode(encodedBytes);
+    }
+}
@@ -0,0 +1,79 @@
+package org.mailster.smtp.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jakarta.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Measures reading a message through the {@link CharTerminatedInputStream}
+ * and {@link DotUnstuffingInputStream} wrappers handed to the listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataStreamBenchmark {
+
+    @Param({"16384", "1048576"})
+    public int messageSize;
+
+    /**
+     * Size of the buffer used by the reader, 1 means single byte reads.
+     */
+    @Param({"1", "8192", "65536"})
+    public int readSize;
+
+    private SharedByteArrayInputStream data;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        var line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\r\n";
+        var sb = new StringBuilder(messageSize + 8);
+        for (var i = 0; sb.length() < messageSize; i++) {
+            sb.append(i % 16 == 0 ? ".." : "").append(line);
+        }
+        sb.setLength(messageSize);
+        sb.append("\r\n.\r\n");
+
+        data = new SharedByteArrayInputStream(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        buffer = new byte[readSize];
+    }
+
+    @Benchmark
+    public long read(Blackhole bh) throws IOException {
+        var total = 0L;
+        try (var in = SharedStreamUtils.getPrivateInputStream(data)) {
+            if (readSize == 1) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    total += b;
+                }
+            } else {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    total += len;
+                }
+                bh.consume(buffer);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,74 @@
+package org.mailster.smtp.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading a spooled message through a private stream obtained
+ * with {@link SharedTmpFileInputStream#newStream(long, long)}, which is
+ * what each listener gets once a message exceeded the deferred size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedTmpFileInputStreamBenchmark {
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    @Param({"8192", "65536"})
+    public int readSize;
+
+    private SharedTmpFileInputStream master;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        var file = File.createTempFile("mailsterBench", ".eml");
+        var content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        try (var fos = new FileOutputStream(file)) {
+            fos.write(content);
+        }
+
+        // the master stream keeps the file alive between invocations
+        master = new SharedTmpFileInputStream(file);
+        buffer = new byte[readSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        master.close();
+    }
+
+    @Benchmark
+    public long newStream() throws IOException {
+        var total = 0L;
+        try (var in = master.newStream(0, -1)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+            }
+        }
+        return total;
+    }
+}
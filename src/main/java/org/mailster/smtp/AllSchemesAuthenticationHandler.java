@@ -1,12 +1,19 @@
 package org.mailster.smtp;
 
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.smtp.core.auth.AsyncLoginValidator;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
 import org.mailster.smtp.core.auth.AuthenticationHandlerFactory;
+import org.mailster.smtp.core.auth.AuthenticationHandlerRegistry;
 import org.mailster.smtp.core.auth.LoginValidator;
 import org.mailster.smtp.core.auth.PluginAuthenticationHandler;
+import org.mailster.smtp.core.auth.VerifierStore;
+import org.mailster.smtp.core.auth.impl.CramMD5AuthenticationHandler;
 import org.mailster.smtp.core.auth.impl.DummyAuthenticationHandler;
 import org.mailster.smtp.core.auth.impl.LoginAuthenticationHandler;
 import org.mailster.smtp.core.auth.impl.PlainAuthenticationHandler;
+import org.mailster.smtp.core.auth.impl.ScramSha256AuthenticationHandler;
 
 /**
  * Implements a {@link PluginAuthenticationHandler} handler which
@@ -18,17 +25,47 @@ import org.mailster.smtp.core.auth.impl.PlainAuthenticationHandler;
  */
 public class AllSchemesAuthenticationHandler implements AuthenticationHandlerFactory {
 
-    private LoginValidator validator;
+    private final AuthenticationHandlerRegistry registry = new AuthenticationHandlerRegistry();
 
     public AllSchemesAuthenticationHandler(LoginValidator validator) {
-        this.validator = validator;
+        this(validator, null);
+    }
+
+    /**
+     * Also offers SCRAM-SHA-256, and CRAM-MD5 if the store keeps its secrets,
+     * checked against the given store. The validator may be null to only
+     * offer these mechanisms.
+     */
+    public AllSchemesAuthenticationHandler(LoginValidator validator, VerifierStore store) {
+        if (store != null) {
+            registry.register(() -> new ScramSha256AuthenticationHandler(store));
+            if (store.supportsCramMD5()) {
+                registry.register(() -> new CramMD5AuthenticationHandler(store));
+            }
+        }
+        if (validator != null) {
+            registry.register(() -> new PlainAuthenticationHandler(validator));
+            registry.register(() -> new LoginAuthenticationHandler(validator));
+        }
+    }
+
+    /**
+     * Uses an asynchronous validator, waiting at most the given time for
+     * each verification.
+     */
+    public AllSchemesAuthenticationHandler(AsyncLoginValidator validator, long timeout, TimeUnit unit) {
+        this(validator.toLoginValidator(timeout, unit));
+    }
+
+    /**
+     * Returns the registry shared by the handlers of all sessions.
+     */
+    public AuthenticationHandlerRegistry getRegistry() {
+        return registry;
     }
 
     @Override
     public AuthenticationHandler create() {
-        var ret = new PluginAuthenticationHandler();
-        ret.addPlugin(new PlainAuthenticationHandler(validator));
-        ret.addPlugin(new LoginAuthenticationHandler(validator));
-        return ret;
+        return registry.create();
     }
 }
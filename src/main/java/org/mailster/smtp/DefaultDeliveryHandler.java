@@ -4,14 +4,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
+import org.mailster.smtp.api.CacheableMessageListener;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.StreamingMessageListener;
 import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
 import org.mailster.smtp.api.handler.Delivery;
 import org.mailster.smtp.api.handler.DeliveryContext;
 import org.mailster.smtp.api.handler.RejectException;
+import org.mailster.smtp.core.MessageHeaders;
+import org.mailster.smtp.core.RecipientAcceptCache;
 import org.mailster.smtp.core.TooMuchDataException;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
+import org.mailster.smtp.util.BodyPublisher;
 import org.mailster.smtp.util.SharedStreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +52,14 @@ public class DefaultDeliveryHandler extends AbstractDeliveryHandler {
     @Override
     public void recipient(String recipient) throws RejectException {
         var addedListener = false;
-
-        for (var listener : getListeners()) {
-            if (listener.accept(getSessionContext(), this.from, recipient)) {
+        var cache = getDeliveryContext().getSMTPServerConfig().getRecipientAcceptCache();
+
+        // only the listeners serving the recipient are asked
+        for (var listener : getRecipientRouter().route(recipient)) {
+            var accepted = isCached(cache, listener)
+                    ? cache.accept(listener, getSessionContext(), this.from, recipient)
+                    : listener.accept(getSessionContext(), this.from, recipient);
+            if (accepted) {
                 this.deliveries.add(new Delivery(listener, recipient));
                 addedListener = true;
             }
@@ -54,6 +70,108 @@ public class DefaultDeliveryHandler extends AbstractDeliveryHandler {
         }
     }
 
+    /**
+     * Asks each candidate listener about all its recipients at once, through
+     * {@link MessageListener#acceptAll}, leaving out the cached decisions.
+     */
+    @Override
+    public RejectException[] recipients(List<String> recipients) {
+        var cache = getDeliveryContext().getSMTPServerConfig().getRecipientAcceptCache();
+        var router = getRecipientRouter();
+        var count = recipients.size();
+
+        var candidates = new ArrayList<List<MessageListener>>(count);
+        var decisions = new IdentityHashMap<MessageListener, Boolean[]>();
+        for (var i = 0; i < count; i++) {
+            var routed = router.route(recipients.get(i));
+            candidates.add(routed);
+            for (var listener : routed) {
+                // recipients not routed to the listener are left as rejected
+                var decision = decisions.computeIfAbsent(listener, l -> newDecisions(count));
+                decision[i] = isCached(cache, listener) ? cache.getIfPresent(listener, recipients.get(i)) : null;
+            }
+        }
+
+        decisions.forEach((listener, decision) -> ask(listener, decision, recipients, cache));
+
+        var results = new RejectException[count];
+        for (var i = 0; i < count; i++) {
+            var recipient = recipients.get(i);
+            var addedListener = false;
+            for (var listener : candidates.get(i)) {
+                if (decisions.get(listener)[i]) {
+                    this.deliveries.add(new Delivery(listener, recipient));
+                    addedListener = true;
+                }
+            }
+            if (!addedListener) {
+                results[i] = new RejectException(553, "<" + recipient + "> address unknown.");
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns true if the decisions of the listener are cached, which it must
+     * ask for since they may depend on the sender or the session.
+     */
+    private static boolean isCached(RecipientAcceptCache cache, MessageListener listener) {
+        return cache != null && listener instanceof CacheableMessageListener;
+    }
+
+    private static Boolean[] newDecisions(int count) {
+        var decisions = new Boolean[count];
+        Arrays.fill(decisions, Boolean.FALSE);
+        return decisions;
+    }
+
+    /**
+     * Fills the unknown decisions of the listener with a single call.
+     */
+    private void ask(MessageListener listener, Boolean[] decision, List<String> recipients,
+            RecipientAcceptCache cache) {
+        var asked = new ArrayList<String>();
+        var positions = new ArrayList<Integer>();
+        for (var i = 0; i < decision.length; i++) {
+            if (decision[i] == null) {
+                asked.add(recipients.get(i));
+                positions.add(i);
+            }
+        }
+        if (asked.isEmpty()) {
+            return;
+        }
+
+        var answers = asked.size() == 1
+                ? new boolean[]{listener.accept(getSessionContext(), this.from, asked.get(0))}
+                : listener.acceptAll(getSessionContext(), this.from, asked);
+        if (answers.length != asked.size()) {
+            throw new IllegalStateException("Listener " + listener + " returned " + answers.length
+                    + " decisions for " + asked.size() + " recipients");
+        }
+
+        for (var j = 0; j < answers.length; j++) {
+            decision[positions.get(j)] = answers[j];
+            if (isCached(cache, listener)) {
+                cache.put(listener, asked.get(j), answers[j]);
+            }
+        }
+    }
+
+    /**
+     * Asks each listener of the message about its headers, once. The message
+     * is rejected as soon as one of them rejects it.
+     */
+    @Override
+    public void headers(MessageHeaders headers) throws RejectException {
+        var asked = Collections.newSetFromMap(new IdentityHashMap<MessageListener, Boolean>());
+        for (var delivery : this.deliveries) {
+            if (asked.add(delivery.getListener())) {
+                delivery.getListener().checkHeaders(getSessionContext(), this.from, headers);
+            }
+        }
+    }
+
     @Override
     public void resetMessageState() {
         this.deliveries.clear();
@@ -68,6 +186,16 @@ public class DefaultDeliveryHandler extends AbstractDeliveryHandler {
      */
     @Override
     public void data(InputStream data) throws TooMuchDataException, IOException {
+        StreamingMessageListener.await(dataAsync(data));
+    }
+
+    /**
+     * Delivers the message like {@link #data(InputStream)} but doesn't wait
+     * for the {@link StreamingMessageListener}s, which publish their own
+     * copy of the stream.
+     */
+    @Override
+    public CompletionStage<Void> dataAsync(InputStream data) throws TooMuchDataException, IOException {
         var useCopy = false;
 
         if (LOG.isTraceEnabled()) {
@@ -89,8 +217,17 @@ public class DefaultDeliveryHandler extends AbstractDeliveryHandler {
 
         // Prevent concurrent modifications
         List<Delivery> list = new ArrayList<>(this.deliveries);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
 
         for (var delivery : list) {
+            if (delivery.getListener() instanceof StreamingMessageListener listener) {
+                var body = new BodyPublisher(SharedStreamUtils.getPrivateInputStream(true, data));
+                pending.add(listener.deliver(getSessionContext(), this.from, delivery.getRecipient(), body)
+                        .toCompletableFuture()
+                        .whenComplete((v, t) -> body.close()));
+                continue;
+            }
+
             delivery.getListener()
                     .deliver(getSessionContext(), this.from, delivery.getRecipient(),
                              SharedStreamUtils.getPrivateInputStream(useCopy, data));
@@ -98,5 +235,7 @@ public class DefaultDeliveryHandler extends AbstractDeliveryHandler {
             // Use a stream copy on second iteration if not the case yet
             useCopy = true;
         }
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
     }
 }
\ No newline at end of file
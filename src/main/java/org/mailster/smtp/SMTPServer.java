@@ -11,6 +11,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.logging.LoggingFilter;
@@ -22,6 +24,7 @@ import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
 import org.mailster.smtp.core.SMTPCodecFactory;
 import org.mailster.smtp.core.SMTPConnectionHandler;
 import org.mailster.smtp.core.SMTPDecoder;
+import org.mailster.smtp.core.TLSStatistics;
 import org.mailster.smtp.core.auth.AuthenticationHandlerFactory;
 import org.mailster.smtp.core.commands.CommandHandler;
 import org.slf4j.Logger;
@@ -52,9 +55,22 @@ import org.slf4j.LoggerFactory;
  * server.getDeliveryHandlerFactory().
  * setDeliveryHandlerImplClass(Class&lt;? extends AbstractDeliveryHandler&gt; impl);
  * <p>
+ * or, without any reflection, by passing its constructor :
+ * <p>
+ * server.getDeliveryHandlerFactory().setDeliveryHandlerSupplier(MyDeliveryHandler::new);
+ * <p>
+ * The delivery handler of a session is only created when the client starts
+ * a mail transaction.
+ * <p>
  * You can always add, remove listeners by using the provided
  * methods of the {@link DeliveryHandlerFactory}.
  * <p>
+ * Besides the main port, the server can listen on other ports, in plain
+ * text (e.g. submission on 587) or with implicit TLS (SMTPS on 465), see
+ * {@link #addListener(InetAddress, int)} and
+ * {@link #addImplicitTLSListener(InetAddress, int)}. All of them share the
+ * same command handler, delivery handler factory and worker pool.
+ * <p>
  * In neither case is the SMTP server (this library) responsible
  * for deciding what recipients to accept or what to do with the
  * incoming data.  That is left to you.
@@ -85,6 +101,17 @@ public final class SMTPServer {
     private ExecutorService executor;
     private SMTPCodecFactory codecFactory;
 
+    /**
+     * Filters shared by the chains of all the listeners.
+     */
+    private ProtocolCodecFilter codecFilter;
+    private ExecutorFilter executorFilter;
+
+    /**
+     * The listeners added to the main one.
+     */
+    private final List<Listener> extraListeners = new ArrayList<>();
+
     private boolean running = false;
     private boolean shutdowned = false;
 
@@ -109,7 +136,7 @@ public final class SMTPServer {
     }
 
     private void initInstance(Collection<MessageListener> listeners) {
-        this.deliveryHandlerFactory = new DeliveryHandlerFactory(listeners);
+        this.deliveryHandlerFactory = new DeliveryHandlerFactory(listeners, config);
         this.commandHandler = new CommandHandler();
         initService();
     }
@@ -120,17 +147,9 @@ public final class SMTPServer {
     private void initService() {
         try {
             IoBuffer.setUseDirectBuffer(false);
-            acceptor = new NioSocketAcceptor(Runtime.getRuntime().availableProcessors() + 1);
-
-            acceptor.getSessionConfig().setReuseAddress(true);
-            var chain = acceptor.getFilterChain();
-
-            if (LOG.isTraceEnabled()) {
-                chain.addLast("logger", new LoggingFilter());
-            }
 
             codecFactory = new SMTPCodecFactory(config);
-            chain.addLast("codec", new ProtocolCodecFilter(codecFactory));
+            codecFilter = new ProtocolCodecFilter(codecFactory);
 
             executor = Executors.newCachedThreadPool(new ThreadFactory() {
                 int sequence;
@@ -141,8 +160,9 @@ public final class SMTPServer {
                     return new Thread(r, "MailsterSMTP Thread " + sequence);
                 }
             });
+            executorFilter = new ExecutorFilter(executor);
 
-            chain.addLast("threadPool", new ExecutorFilter(executor));
+            acceptor = createAcceptor(false);
 
             handler = new SMTPConnectionHandler(getConfig(), getCommandHandler(), getDeliveryHandlerFactory());
         } catch (Exception ex) {
@@ -150,6 +170,62 @@ public final class SMTPServer {
         }
     }
 
+    /**
+     * Creates an acceptor whose filter chain shares the codec and the worker
+     * pool of the server. Implicit TLS acceptors get the SSL filter of the
+     * configuration in front of the chain of each session, looked up when
+     * the session is created since changing a TLS option rebuilds it.
+     */
+    private SocketAcceptor createAcceptor(boolean implicitTLS) {
+        var socketAcceptor = new NioSocketAcceptor(Runtime.getRuntime().availableProcessors() + 1);
+
+        socketAcceptor.getSessionConfig().setReuseAddress(true);
+        // the ports are bound again when the server is restarted
+        socketAcceptor.setReuseAddress(true);
+
+        if (implicitTLS) {
+            socketAcceptor.setFilterChainBuilder(new DefaultIoFilterChainBuilder() {
+                @Override
+                public void buildFilterChain(IoFilterChain sessionChain) throws Exception {
+                    super.buildFilterChain(sessionChain);
+                    sessionChain.addFirst("SSLfilter", config.getSslFilter());
+
+                    var tlsExecutorFilter = config.getTLSExecutorFilter();
+                    if (tlsExecutorFilter != null) {
+                        sessionChain.addFirst("tlsThreadPool", tlsExecutorFilter);
+                    }
+                }
+            });
+        }
+
+        var chain = socketAcceptor.getFilterChain();
+
+        if (LOG.isTraceEnabled()) {
+            chain.addLast("logger", new LoggingFilter());
+        }
+
+        chain.addLast("codec", codecFilter);
+        chain.addLast("threadPool", executorFilter);
+
+        return socketAcceptor;
+    }
+
+    /**
+     * Puts the worker pool in the filter chain of the acceptor, unless
+     * commands are dispatched inline in which case the connection handler
+     * hands the blocking work to the pool itself.
+     */
+    private void applyDispatchMode(SocketAcceptor socketAcceptor) {
+        var chain = socketAcceptor.getFilterChain();
+        if (config.isInlineCommandDispatch()) {
+            if (chain.contains("threadPool")) {
+                chain.remove("threadPool");
+            }
+        } else if (!chain.contains("threadPool")) {
+            chain.addLast("threadPool", executorFilter);
+        }
+    }
+
     /**
      * Call this method to get things rolling after instantiating the
      * SMTPServer.
@@ -178,26 +254,100 @@ public final class SMTPServer {
 
         acceptor.setBacklog(config.getBacklog());
         acceptor.setHandler(handler);
+        applyDispatchMode(acceptor);
+        handler.setWorkerExecutor(config.isInlineCommandDispatch() ? executor : null);
 
         try {
+            config.getSpoolManager().start();
             acceptor.bind(isa);
+
+            for (var listener : extraListeners) {
+                if (listener.acceptor == null) {
+                    listener.acceptor = createAcceptor(listener.implicitTLS);
+                }
+                listener.acceptor.setBacklog(config.getBacklog());
+                listener.acceptor.setHandler(handler);
+                applyDispatchMode(listener.acceptor);
+                listener.acceptor.bind(listener.address);
+                LOG.info("SMTP listener bound to {}{}", listener.address, listener.implicitTLS ? " (implicit TLS)" : "");
+            }
+
             running = true;
             LOG.info("SMTP server started ...");
         } catch (Exception e) {
+            unbindAll();
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Adds a plain text listener, e.g. on the submission port 587, started
+     * and stopped along with the main one.
+     *
+     * @param bindAddress the address to bind, null means all interfaces
+     * @param port        the port to listen on
+     */
+    public synchronized void addListener(InetAddress bindAddress, int port) {
+        addListener(bindAddress, port, false);
+    }
+
+    /**
+     * Adds an implicit TLS listener, e.g. on the SMTPS port 465. Sessions
+     * start with a TLS handshake using the SSL context of the configuration,
+     * so STARTTLS is neither needed nor advertised.
+     *
+     * @param bindAddress the address to bind, null means all interfaces
+     * @param port        the port to listen on
+     */
+    public synchronized void addImplicitTLSListener(InetAddress bindAddress, int port) {
+        addListener(bindAddress, port, true);
+    }
+
+    private void addListener(InetAddress bindAddress, int port, boolean implicitTLS) {
+        if (running) {
+            throw new IllegalStateException("Listeners must be added before the server is started");
+        }
+        if (shutdowned) {
+            throw new IllegalStateException("Error: server has been shutdown previously");
+        }
+
+        var address = bindAddress == null ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+        extraListeners.add(new Listener(address, implicitTLS));
+    }
+
+    private void unbindAll() {
+        try {
+            acceptor.unbind();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        for (var listener : extraListeners) {
+            if (listener.acceptor != null) {
+                try {
+                    listener.acceptor.unbind();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     /**
      * Stops the server by unbinding server socket. To really clean
      * things out, one must call {@link #shutdown()}.
      */
     public synchronized void stop() {
         try {
-            try {
-                acceptor.unbind();
-            } catch (Exception e) {
-                e.printStackTrace();
+            unbindAll();
+            var deduplicator = config.getDataDeduplicator();
+            if (deduplicator != null) {
+                deduplicator.clear();
+            }
+            config.getSpoolManager().stop();
+            var contentFilter = config.getContentFilter();
+            if (contentFilter != null) {
+                contentFilter.shutdown();
             }
 
             LOG.info("SMTP server stopped.");
@@ -222,8 +372,16 @@ public final class SMTPServer {
                 stop();
             }
 
+            acceptor.dispose();
+            for (var listener : extraListeners) {
+                if (listener.acceptor != null) {
+                    listener.acceptor.dispose();
+                }
+            }
+
             try {
                 executor.shutdown();
+                config.shutdownTLSExecutor();
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -292,10 +450,32 @@ public final class SMTPServer {
         return this.commandHandler;
     }
 
+    /**
+     * Returns the TLS handshake rate and resumption counters.
+     */
+    public TLSStatistics getTLSStatistics() {
+        return handler.getTLSStatistics();
+    }
+
     /**
      * Returns the server configuration.
      */
     public SMTPServerConfig getConfig() {
         return config;
     }
+
+    /**
+     * An additional listener and its acceptor, created on first start.
+     */
+    private static final class Listener {
+
+        private final InetSocketAddress address;
+        private final boolean implicitTLS;
+        private SocketAcceptor acceptor;
+
+        private Listener(InetSocketAddress address, boolean implicitTLS) {
+            this.address = address;
+            this.implicitTLS = implicitTLS;
+        }
+    }
 }
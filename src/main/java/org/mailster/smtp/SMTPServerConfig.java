@@ -4,6 +4,25 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.mailster.smtp.core.ContentFilter;
+import org.mailster.smtp.core.DataDeduplicator;
+import org.mailster.smtp.core.DataMemoryBudget;
+import org.mailster.smtp.core.DataObserver;
+import org.mailster.smtp.core.RecipientAcceptCache;
+import org.mailster.smtp.core.SpoolManager;
+import org.mailster.smtp.core.auth.AuthenticationThrottle;
+import org.mailster.smtp.util.DummySSLSocketFactory;
 
 /**
  * This class holds the configuration options of the
@@ -91,6 +110,108 @@ public class SMTPServerConfig {
      */
     private int connectionTimeout = 1000 * 60;
 
+    /**
+     * The SSL context used by the STARTTLS command. Defaults to the
+     * trust all context of {@link DummySSLSocketFactory}.
+     */
+    private SSLContext sslContext;
+
+    /**
+     * The enabled cipher suites in server preference order. Defaults to
+     * null which keeps the JSSE defaults.
+     */
+    private String[] enabledCipherSuites;
+
+    /**
+     * The enabled protocols. Defaults to null which keeps the JSSE defaults.
+     */
+    private String[] enabledProtocols;
+
+    /**
+     * The maximum number of entries of the server session cache, 0 meaning
+     * no limit. Defaults to -1 which keeps the JSSE default.
+     */
+    private int tlsSessionCacheSize = -1;
+
+    /**
+     * The lifetime in seconds of cached sessions and session tickets.
+     * Defaults to -1 which keeps the JSSE default.
+     */
+    private int tlsSessionTimeout = -1;
+
+    /**
+     * The number of threads of the pool running the TLS handshakes and
+     * record decryption. Defaults to 0 which runs them on the I/O
+     * processor threads.
+     */
+    private int tlsHandshakeThreads = 0;
+
+    /**
+     * Whether commands which can't block are executed on the I/O processor
+     * threads instead of the worker pool. Defaults to false.
+     */
+    private boolean inlineCommandDispatch = false;
+
+    /**
+     * The authentication failures throttle. Defaults to null which
+     * disables throttling.
+     */
+    private AuthenticationThrottle authenticationThrottle;
+
+    /**
+     * The index of recently received message data. Defaults to null which
+     * disables deduplication.
+     */
+    private DataDeduplicator dataDeduplicator;
+
+    /**
+     * The spool messages larger than {@link #dataDeferredSize} are written
+     * to. Defaults to a pool in the temporary directory without quota.
+     */
+    private SpoolManager spoolManager = new SpoolManager();
+
+    /**
+     * The heap budget shared by the DATA buffered by all sessions. Defaults
+     * to null which keeps each message in memory up to
+     * {@link #dataDeferredSize}.
+     */
+    private DataMemoryBudget dataMemoryBudget;
+
+    /**
+     * The cache of the recipients accepted or rejected by the listeners.
+     * Defaults to null which asks the listeners for every recipient.
+     */
+    private RecipientAcceptCache recipientAcceptCache;
+
+    /**
+     * The maximum size of the header block indexed for the listeners.
+     * Defaults to 0 which disables the index.
+     */
+    private int maxIndexedHeaderSize = 0;
+
+    /**
+     * The observers computing results over the data of each message.
+     * Defaults to none.
+     */
+    private List<DataObserver> dataObservers = List.of();
+
+    /**
+     * The filter scanning the content of each message. Defaults to null
+     * which delivers messages unfiltered.
+     */
+    private ContentFilter contentFilter;
+
+    /**
+     * The SSL filter built from the TLS options above.
+     */
+    private SslFilter sslFilter;
+
+    /**
+     * The executor filter put in front of the SSL filter when
+     * {@link #tlsHandshakeThreads} is positive.
+     */
+    private ExecutorFilter tlsExecutorFilter;
+
     protected SMTPServerConfig() {
         try {
             this.hostName = InetAddress.getLocalHost().getCanonicalHostName();
@@ -283,4 +404,388 @@ public class SMTPServerConfig {
     public void setCharset(Charset charset) {
         this.charset = charset;
     }
+
+    /**
+     * Returns the SSL context used to secure sessions.
+     * <p>
+     * NOTE: read when the SSL filter is built.
+     */
+    public synchronized SSLContext getSSLContext() {
+        if (sslContext == null) {
+            sslContext = new DummySSLSocketFactory().getSSLContext();
+        }
+        return sslContext;
+    }
+
+    /**
+     * Sets the SSL context used to secure sessions. It must hold the server
+     * key material for STARTTLS handshakes to succeed.
+     */
+    public synchronized void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.sslFilter = null;
+    }
+
+    /**
+     * Returns the enabled cipher suites or null if the JSSE defaults are used.
+     * <p>
+     * NOTE: read when the SSL filter is built.
+     */
+    public synchronized String[] getEnabledCipherSuites() {
+        return enabledCipherSuites == null ? null : enabledCipherSuites.clone();
+    }
+
+    /**
+     * Sets the enabled cipher suites. The server selects the first suite of
+     * this list that the client also supports.
+     */
+    public synchronized void setEnabledCipherSuites(String... enabledCipherSuites) {
+        this.enabledCipherSuites = enabledCipherSuites == null ? null : enabledCipherSuites.clone();
+        this.sslFilter = null;
+    }
+
+    /**
+     * Returns the enabled protocols or null if the JSSE defaults are used.
+     * <p>
+     * NOTE: read when the SSL filter is built.
+     */
+    public synchronized String[] getEnabledProtocols() {
+        return enabledProtocols == null ? null : enabledProtocols.clone();
+    }
+
+    /**
+     * Sets the enabled protocols, e.g. <code>TLSv1.3, TLSv1.2</code>.
+     */
+    public synchronized void setEnabledProtocols(String... enabledProtocols) {
+        this.enabledProtocols = enabledProtocols == null ? null : enabledProtocols.clone();
+        this.sslFilter = null;
+    }
+
+    /**
+     * Returns the maximum number of sessions kept in the server session cache.
+     * <p>
+     * NOTE: read when the SSL filter is built.
+     */
+    public synchronized int getTLSSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of sessions kept in the server session cache
+     * for resumption, 0 meaning no limit and -1 the JSSE default.
+     */
+    public synchronized void setTLSSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < -1) {
+            throw new IllegalArgumentException("Argument tlsSessionCacheSize must be greater or equal to -1");
+        }
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        this.sslFilter = null;
+    }
+
+    /**
+     * Returns the lifetime in seconds of cached sessions and tickets.
+     * <p>
+     * NOTE: read when the SSL filter is built.
+     */
+    public synchronized int getTLSSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * Sets the lifetime in seconds of cached sessions and tickets, 0 meaning
+     * no limit and -1 the JSSE default.
+     * <p>
+     * NOTE: stateless session tickets (RFC 5077 and TLS 1.3 tickets) are
+     * configured JVM wide since JSSE reads them from system properties when
+     * TLS is first used: start the JVM with
+     * <code>-Djdk.tls.server.enableSessionTicketExtension=false</code> to
+     * stop issuing them, or with e.g.
+     * <code>-Djdk.tls.server.statelessKeyTimeout=3600</code> to rotate the
+     * ticket encryption key every hour.
+     */
+    public synchronized void setTLSSessionTimeout(int tlsSessionTimeout) {
+        if (tlsSessionTimeout < -1) {
+            throw new IllegalArgumentException("Argument tlsSessionTimeout must be greater or equal to -1");
+        }
+        this.tlsSessionTimeout = tlsSessionTimeout;
+        this.sslFilter = null;
+    }
+
+    /**
+     * Returns the SSL filter inserted by the STARTTLS command. It is built on
+     * first use from the SSL context and the TLS options of this configuration
+     * and rebuilt after any of them changed.
+     */
+    public synchronized SslFilter getSslFilter() {
+        if (sslFilter == null) {
+            var context = getSSLContext();
+            var sessionContext = context.getServerSessionContext();
+            if (tlsSessionCacheSize >= 0) {
+                sessionContext.setSessionCacheSize(tlsSessionCacheSize);
+            }
+            if (tlsSessionTimeout >= 0) {
+                sessionContext.setSessionTimeout(tlsSessionTimeout);
+            }
+
+            var filter = new SslFilter(context);
+            if (enabledCipherSuites != null) {
+                filter.setEnabledCipherSuites(enabledCipherSuites);
+            }
+            if (enabledProtocols != null) {
+                filter.setEnabledProtocols(enabledProtocols);
+            }
+            sslFilter = filter;
+        }
+        return sslFilter;
+    }
+
+    /**
+     * Returns true if commands which can't block are executed on the I/O
+     * processor threads.
+     * <p>
+     * NOTE: read when server starts.
+     */
+    public boolean isInlineCommandDispatch() {
+        return inlineCommandDispatch;
+    }
+
+    /**
+     * When true, the worker pool is removed from the filter chain: commands
+     * which can't block, like HELO, NOOP or RSET, are executed on the I/O
+     * processor thread that decoded them, saving a queue handoff and a
+     * context switch per round trip. Only the message delivery and the
+     * commands that may block, calling the listeners or the authentication
+     * backend, are handed to the worker pool, in order for each session.
+     * Custom commands are considered blocking unless they override
+     * {@link org.mailster.smtp.core.commands.Command#isBlocking()}.
+     */
+    public void setInlineCommandDispatch(boolean inlineCommandDispatch) {
+        this.inlineCommandDispatch = inlineCommandDispatch;
+    }
+
+    /**
+     * Returns the number of threads of the TLS crypto pool.
+     * <p>
+     * NOTE: read when a session is secured for the first time.
+     */
+    public synchronized int getTLSHandshakeThreads() {
+        return tlsHandshakeThreads;
+    }
+
+    /**
+     * Sets the number of threads of the pool that runs the TLS handshakes,
+     * including the <code>SSLEngine</code> delegated tasks, and the decryption
+     * of incoming records. When positive, an ordered executor filter is put in
+     * front of the SSL filter of secured sessions, so a burst of handshakes
+     * queues on this bounded pool instead of stalling the I/O processor
+     * threads shared by other sessions. Set to 0 to keep them on the I/O
+     * processor threads.
+     */
+    public synchronized void setTLSHandshakeThreads(int tlsHandshakeThreads) {
+        if (tlsHandshakeThreads < 0) {
+            throw new IllegalArgumentException("Argument tlsHandshakeThreads can't be negative");
+        }
+        if (tlsExecutorFilter != null) {
+            throw new IllegalStateException("The TLS crypto pool is already in use");
+        }
+        this.tlsHandshakeThreads = tlsHandshakeThreads;
+    }
+
+    /**
+     * Returns the executor filter to put in front of the SSL filter, or null
+     * if TLS crypto runs on the I/O processor threads.
+     */
+    public synchronized ExecutorFilter getTLSExecutorFilter() {
+        if (tlsExecutorFilter == null && tlsHandshakeThreads > 0) {
+            var threadFactory = new ThreadFactory() {
+                int sequence;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    sequence += 1;
+                    var thread = new Thread(r, "MailsterSMTP TLS Thread " + sequence);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            tlsExecutorFilter = new ExecutorFilter(new OrderedThreadPoolExecutor(tlsHandshakeThreads,
+                    tlsHandshakeThreads, 60, TimeUnit.SECONDS, threadFactory));
+        }
+        return tlsExecutorFilter;
+    }
+
+    /**
+     * Stops the TLS crypto pool if it was started.
+     */
+    synchronized void shutdownTLSExecutor() {
+        if (tlsExecutorFilter != null) {
+            ((ExecutorService) tlsExecutorFilter.getExecutor()).shutdown();
+        }
+    }
+
+    /**
+     * Returns the authentication failures throttle or null if disabled.
+     * <p>
+     * NOTE: read each time an AUTH command is issued.
+     */
+    public AuthenticationThrottle getAuthenticationThrottle() {
+        return authenticationThrottle;
+    }
+
+    /**
+     * Sets the throttle delaying, and eventually rejecting, the clients
+     * that repeatedly fail to authenticate. Null disables throttling.
+     */
+    public void setAuthenticationThrottle(AuthenticationThrottle authenticationThrottle) {
+        this.authenticationThrottle = authenticationThrottle;
+    }
+
+    /**
+     * Returns the message data deduplication index or null if disabled.
+     * <p>
+     * NOTE: read each time a message starts to be received.
+     */
+    public DataDeduplicator getDataDeduplicator() {
+        return dataDeduplicator;
+    }
+
+    /**
+     * Sets the index sharing the data of identical messages received by
+     * any session. Null disables deduplication and data hashing.
+     */
+    public void setDataDeduplicator(DataDeduplicator dataDeduplicator) {
+        this.dataDeduplicator = dataDeduplicator;
+    }
+
+    /**
+     * Returns the spool large messages are written to.
+     * <p>
+     * NOTE: read each time a message starts to be received, its pool is
+     * filled when the server starts.
+     */
+    public SpoolManager getSpoolManager() {
+        return spoolManager;
+    }
+
+    /**
+     * Sets the spool large messages are written to, e.g. to put them on a
+     * dedicated device or a tmpfs mount, or to bound the disk usage.
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        if (spoolManager == null) {
+            throw new IllegalArgumentException("Spool manager must not be null");
+        }
+        this.spoolManager = spoolManager;
+    }
+
+    /**
+     * Returns the heap budget shared by the DATA buffered by all sessions.
+     * <p>
+     * NOTE: read each time a message starts to be received.
+     */
+    public DataMemoryBudget getDataMemoryBudget() {
+        return dataMemoryBudget;
+    }
+
+    /**
+     * Sets the heap budget shared by the DATA buffered by all sessions. The
+     * in memory allowance of each message then shrinks as the budget fills,
+     * up to the data deferred size when it is empty. Null disables it.
+     */
+    public void setDataMemoryBudget(DataMemoryBudget dataMemoryBudget) {
+        this.dataMemoryBudget = dataMemoryBudget;
+    }
+
+    /**
+     * Returns the cache of the recipients accepted or rejected by the
+     * listeners.
+     * <p>
+     * NOTE: read for each recipient.
+     */
+    public RecipientAcceptCache getRecipientAcceptCache() {
+        return recipientAcceptCache;
+    }
+
+    /**
+     * Sets the cache of the recipients accepted or rejected by the listeners,
+     * used by the default delivery handler for the listeners implementing
+     * {@link org.mailster.smtp.api.CacheableMessageListener}, whose decision
+     * depends on the recipient alone. Null disables it.
+     */
+    public void setRecipientAcceptCache(RecipientAcceptCache recipientAcceptCache) {
+        this.recipientAcceptCache = recipientAcceptCache;
+    }
+
+    /**
+     * Returns the maximum size of the header block indexed for the
+     * listeners, 0 if disabled.
+     * <p>
+     * NOTE: read each time a message starts to be received.
+     */
+    public int getMaxIndexedHeaderSize() {
+        return maxIndexedHeaderSize;
+    }
+
+    /**
+     * Sets the maximum size of the header block indexed while a message is
+     * received and handed to the listeners as
+     * {@link org.mailster.smtp.api.handler.SessionContext#getMessageHeaders()}.
+     * The fields beyond it are not indexed. 0, the default, disables the
+     * index, and the header checks of the listeners; 64 KiB is enough for
+     * the usual messages.
+     */
+    public void setMaxIndexedHeaderSize(int maxIndexedHeaderSize) {
+        if (maxIndexedHeaderSize < 0) {
+            throw new IllegalArgumentException("Maximum header size must not be negative");
+        }
+        this.maxIndexedHeaderSize = maxIndexedHeaderSize;
+    }
+
+    /**
+     * Returns the observers computing results over the data of each message.
+     * <p>
+     * NOTE: read each time a message starts to be received.
+     */
+    public List<DataObserver> getDataObservers() {
+        return dataObservers;
+    }
+
+    /**
+     * Sets the observers fed with the data of each message while it is
+     * received, e.g. a {@link org.mailster.smtp.core.MessageDigestObserver}
+     * or a {@link org.mailster.smtp.core.DkimBodyHashObserver}, whose results
+     * are handed to the listeners as
+     * {@link org.mailster.smtp.api.handler.SessionContext#getDataObservations()}.
+     * Their names must be distinct.
+     */
+    public void setDataObservers(List<DataObserver> dataObservers) {
+        if (dataObservers == null) {
+            throw new IllegalArgumentException("Data observers must not be null");
+        }
+        var names = new HashSet<String>();
+        for (var observer : dataObservers) {
+            if (!names.add(observer.getName())) {
+                throw new IllegalArgumentException("Duplicate data observer: " + observer.getName());
+            }
+        }
+        this.dataObservers = List.copyOf(dataObservers);
+    }
+
+    /**
+     * Returns the filter scanning the content of each message or null.
+     * <p>
+     * NOTE: read each time a message starts to be received.
+     */
+    public ContentFilter getContentFilter() {
+        return contentFilter;
+    }
+
+    /**
+     * Sets the filter scanning the content of each message while it is
+     * received, e.g. a {@link org.mailster.smtp.core.milter.MilterContentFilter}.
+     * The listeners only get the messages it accepts. Null disables it.
+     */
+    public void setContentFilter(ContentFilter contentFilter) {
+        this.contentFilter = contentFilter;
+    }
 }
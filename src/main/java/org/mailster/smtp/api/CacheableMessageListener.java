@@ -0,0 +1,12 @@
+package org.mailster.smtp.api;
+
+/**
+ * A {@link MessageListener} whose {@link #accept} decision depends on the
+ * recipient alone, never on the sender nor on the session, so that it may be
+ * remembered by the recipient cache of the server and shared by all its
+ * sessions. The decisions of the other listeners are never cached.
+ *
+ * @see org.mailster.smtp.SMTPServerConfig#setRecipientAcceptCache(org.mailster.smtp.core.RecipientAcceptCache)
+ */
+public interface CacheableMessageListener extends MessageListener {
+}
@@ -2,8 +2,11 @@ package org.mailster.smtp.api;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
+import org.mailster.smtp.api.handler.RejectException;
 import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.MessageHeaders;
 import org.mailster.smtp.core.TooMuchDataException;
 
 /**
@@ -12,7 +15,10 @@ import org.mailster.smtp.core.TooMuchDataException;
  * <p>
  * While the SMTP message is being received, all listeners are asked if they
  * want to accept each recipient. After the message has arrived, the message is
- * handed off to all accepting listeners.
+ * handed off to all accepting listeners. Listeners serving known domains or
+ * addresses should implement {@link RoutedMessageListener} so that they are
+ * only asked about them. Listeners forwarding the message without blocking
+ * should implement {@link StreamingMessageListener}.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  * @author Jeff Schnitzer
@@ -32,6 +38,44 @@ public interface MessageListener {
      */
 	boolean accept(SessionContext ctx, String from, String recipient);
 
+    /**
+     * Called once for the recipients of consecutive RCPT TO commands
+     * pipelined by the client, instead of {@link #accept} for each of them.
+     * Override it to validate them with a single lookup in a directory. The
+     * default implementation calls {@link #accept} for each recipient.
+     *
+     * @param ctx        is the context of the message
+     * @param from       is a rfc822-compliant email address.
+     * @param recipients are rfc822-compliant email addresses.
+     * @return for each recipient, in the same order, true if the listener
+     * wants delivery of the message.
+     */
+    default boolean[] acceptAll(SessionContext ctx, String from, List<String> recipients) {
+        var accepted = new boolean[recipients.size()];
+        for (var i = 0; i < accepted.length; i++) {
+            accepted[i] = accept(ctx, from, recipients.get(i));
+        }
+        return accepted;
+    }
+
+    /**
+     * Called once the header block of a message this listener accepted
+     * recipients of was received, before its body, e.g. to enforce a policy
+     * on the <code>From:</code> field. It runs on a worker thread while the
+     * rest of the data is still received, so it may look up a directory.
+     * Only called if the server indexes the headers. The default
+     * implementation accepts any headers.
+     *
+     * @param ctx     is the context of the message
+     * @param from    is the envelope sender in rfc822 form
+     * @param headers are the header fields of the message
+     * @throws RejectException to reject the whole message, for all its
+     *                         recipients. The rest of its data is discarded.
+     * @see org.mailster.smtp.SMTPServerConfig#setMaxIndexedHeaderSize(int)
+     */
+    default void checkHeaders(SessionContext ctx, String from, MessageHeaders headers) throws RejectException {
+    }
+
     /**
      * When message data arrives, this method will be called for every recipient
      * this listener accepted.
@@ -0,0 +1,27 @@
+package org.mailster.smtp.api;
+
+import java.util.Collection;
+
+/**
+ * A {@link MessageListener} declaring the recipients it serves, so that its
+ * {@link #accept} method is only called for them instead of for every
+ * recipient of every message.
+ * <p>
+ * Each route is one of:
+ * <ul>
+ * <li>an address, e.g. <code>postmaster@example.org</code></li>
+ * <li>a domain, e.g. <code>example.org</code> or <code>*@example.org</code></li>
+ * <li>the subdomains of a domain, e.g. <code>*.example.org</code> which
+ * doesn't match <code>example.org</code> itself</li>
+ * <li><code>*</code> which matches every recipient</li>
+ * </ul>
+ * Routes are case insensitive and read when the listener is registered, a
+ * listener whose routes change must be removed and added again.
+ */
+public interface RoutedMessageListener extends MessageListener {
+
+    /**
+     * Returns the routes of this listener.
+     */
+    Collection<String> getRoutes();
+}
@@ -0,0 +1,80 @@
+package org.mailster.smtp.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+import org.mailster.smtp.util.BodyPublisher;
+
+/**
+ * A {@link MessageListener} receiving the message body as a
+ * {@link Flow.Publisher} of read-only {@link ByteBuffer} slices instead of a
+ * blocking stream, so that non-blocking clients can forward it without
+ * dedicating a thread to each message.
+ * <p>
+ * Slices are only read when requested. The reply to the DATA command is sent
+ * once the returned stage of every listener of the message completes. When
+ * commands are dispatched inline, no thread waits meanwhile and no further
+ * command of the session is read.
+ */
+public interface StreamingMessageListener extends MessageListener {
+
+    /**
+     * When message data arrives, this method will be called for every
+     * recipient this listener accepted.
+     *
+     * @param ctx       is the context of the message
+     * @param from      is the envelope sender in rfc822 form
+     * @param recipient will be an accepted recipient in rfc822 form
+     * @param body      publishes the smtp data, stripped of any extra '.'
+     *                  chars. It can be subscribed to once, before the
+     *                  returned stage completes.
+     * @return a stage completed once the message is delivered, or completed
+     * exceptionally with a {@link TooMuchDataException} or an
+     * {@link IOException} to report an error to the client.
+     */
+    CompletionStage<Void> deliver(SessionContext ctx, String from, String recipient, Flow.Publisher<ByteBuffer> body);
+
+    /**
+     * Publishes the stream and waits for the delivery.
+     */
+    @Override
+    default void deliver(SessionContext ctx, String from, String recipient, InputStream data)
+            throws TooMuchDataException, IOException {
+        try (var body = new BodyPublisher(data)) {
+            await(deliver(ctx, from, recipient, body));
+        }
+    }
+
+    /**
+     * Waits for a delivery, rethrowing its failure.
+     */
+    static void await(CompletionStage<?> delivery) throws IOException {
+        try {
+            delivery.toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while delivering");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            } else if (cause instanceof RuntimeException re) {
+                throw re;
+            } else if (cause instanceof Error err) {
+                throw err;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -6,8 +6,12 @@ import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.core.MessageHeaders;
 import org.mailster.smtp.core.SMTPContext;
 import org.mailster.smtp.core.TooMuchDataException;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
@@ -23,6 +27,7 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
 
     private AuthenticationHandler authHandler;
     private Collection<MessageListener> listeners;
+    private RecipientRouter router;
     private DeliveryContext ctx;
     private SessionContextImpl sessionCtx;
 
@@ -46,6 +51,26 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
 
     public void setListeners(Collection<MessageListener> listeners) {
         this.listeners = listeners;
+        this.router = null;
+    }
+
+    /**
+     * Returns the index of the listeners by the recipients they serve, built
+     * on first use if the listeners were set directly.
+     */
+    public RecipientRouter getRecipientRouter() {
+        if (router == null) {
+            router = RecipientRouter.of(listeners);
+        }
+        return router;
+    }
+
+    /**
+     * Sets the listeners from an existing index.
+     */
+    public void setRecipientRouter(RecipientRouter router) {
+        this.listeners = router.getListeners();
+        this.router = router;
     }
 
     @Override
@@ -90,6 +115,44 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
      */
     public abstract void recipient(String recipient) throws RejectException;
 
+    /**
+     * Called for the recipients of consecutive RCPT TO commands pipelined by
+     * the client, instead of {@link #recipient(String)} for each of them.
+     * The default implementation calls {@link #recipient(String)} for each
+     * recipient.
+     *
+     * @param recipients are rfc822-compliant email addresses, validated by
+     *                   the server.
+     * @return for each recipient, in the same order, null if it was accepted
+     * or else the reason why it was denied.
+     */
+    public RejectException[] recipients(List<String> recipients) {
+        var results = new RejectException[recipients.size()];
+        for (var i = 0; i < results.length; i++) {
+            try {
+                recipient(recipients.get(i));
+            } catch (RejectException e) {
+                results[i] = e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Called as soon as the header block of the message was received, before
+     * its body, if the server indexes the headers. It runs on a worker thread,
+     * like the other listener calls, while the rest of the data is still
+     * received. The default implementation accepts any headers.
+     *
+     * @param headers the header fields of the message
+     * @throws RejectException if the message should be denied. The rest of
+     *                         its data is discarded and the rejection is
+     *                         reported once it is fully received.
+     * @see org.mailster.smtp.SMTPServerConfig#setMaxIndexedHeaderSize(int)
+     */
+    public void headers(MessageHeaders headers) throws RejectException {
+    }
+
     /**
      * Called when the DATA part of the SMTP exchange begins.  Will
      * only be called if at least one recipient was accepted.
@@ -101,6 +164,25 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
      */
     public abstract void data(InputStream data) throws TooMuchDataException, IOException;
 
+    /**
+     * Called instead of {@link #data(InputStream)} when the reply to the DATA
+     * command can wait for deliveries still running asynchronously. The
+     * stream is closed when this method returns, the deliveries still
+     * running must read copies of it. The default implementation calls
+     * {@link #data(InputStream)}.
+     *
+     * @param data will be the smtp data stream, stripped of any extra '.' chars
+     * @return a stage completed once the message is delivered, or completed
+     * exceptionally with the failure to report to the client.
+     * @throws TooMuchDataException if the listener can't handle that much data.
+     *                              An error will be reported to the client.
+     * @throws IOException          if there is an IO error reading the input data.
+     */
+    public CompletionStage<Void> dataAsync(InputStream data) throws TooMuchDataException, IOException {
+        data(data);
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * This method is called whenever a RSET command is sent or after the end of
      * the DATA command. It can be used to clean up any pending deliveries.
@@ -109,19 +191,22 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
 
     private class SessionContextImpl implements SessionContext {
 
-        private HashMap<String, Object> attrs = new HashMap<>();
+        /**
+         * Allocated when the first attribute is set.
+         */
+        private HashMap<String, Object> attrs;
 
         public SessionContextImpl() {
         }
 
         @Override
         public void addAttribute(String key, Object attr) {
-            attrs.put(key, attr);
+            setAttribute(key, attr);
         }
 
         @Override
         public Object getAttribute(String key) {
-            return attrs.get(key);
+            return attrs == null ? null : attrs.get(key);
         }
 
         @Override
@@ -134,13 +219,33 @@ abstract public class AbstractDeliveryHandler implements AuthenticationHandler {
             return ctx.getRemoteAddress();
         }
 
+        @Override
+        public String getDataHash() {
+            return ctx.getDataHash();
+        }
+
+        @Override
+        public MessageHeaders getMessageHeaders() {
+            return ctx.getMessageHeaders();
+        }
+
+        @Override
+        public Map<String, String> getDataObservations() {
+            return ctx.getDataObservations();
+        }
+
         @Override
         public void removeAttribute(String key) {
-            attrs.remove(key);
+            if (attrs != null) {
+                attrs.remove(key);
+            }
         }
 
         @Override
         public void setAttribute(String key, Object attr) {
+            if (attrs == null) {
+                attrs = new HashMap<>(4);
+            }
             attrs.put(key, attr);
         }
     }
@@ -2,8 +2,10 @@ package org.mailster.smtp.api.handler;
 
 import java.io.InputStream;
 import java.net.SocketAddress;
+import java.util.Map;
 
 import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.core.MessageHeaders;
 import org.mailster.smtp.core.auth.Credential;
 
 /**
@@ -33,4 +35,30 @@ public interface DeliveryContext {
      * authorization state or if authentication isn't required.
      */
     Credential getCredential();
+
+    /**
+     * @return the hex encoded SHA-256 hash of the data of the current
+     * message, as received, or null if the server does not deduplicate data.
+     * @see org.mailster.smtp.core.DataDeduplicator
+     */
+    default String getDataHash() {
+        return null;
+    }
+
+    /**
+     * @return the header fields of the current message, indexed while it was
+     * received, or null if the server does not index them.
+     */
+    default MessageHeaders getMessageHeaders() {
+        return null;
+    }
+
+    /**
+     * @return the results of the data observers over the current message by
+     * observer name, empty if the server has none.
+     * @see org.mailster.smtp.core.DataObserver
+     */
+    default Map<String, String> getDataObservations() {
+        return Map.of();
+    }
 }
\ No newline at end of file
@@ -1,89 +1,160 @@
 package org.mailster.smtp.api.handler;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.mailster.smtp.DefaultDeliveryHandler;
+import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.api.MessageListener;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
 import org.mailster.smtp.core.auth.AuthenticationHandlerFactory;
 import org.mailster.smtp.core.auth.impl.DummyAuthenticationHandler;
 
 /**
- * This factory creates a delivery handler for each new SMTP session and
+ * This factory creates a delivery handler for each SMTP session that starts
+ * a mail transaction and
  * uses the configured {@link AuthenticationHandlerFactory} to create an
- * {@link AuthenticationHandler} used for all sessions until replaced
- * by another factory using the following method
+ * {@link AuthenticationHandler} for each session, since handlers hold the
+ * state of an authentication exchange. The factory can be replaced
+ * using the following method
  * {@link #setAuthenticationHandlerFactory(AuthenticationHandlerFactory)}.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  */
 public class DeliveryHandlerFactory {
 
-    private Collection<MessageListener> listeners;
-    private AuthenticationHandlerFactory authenticationHandlerFactory;
-    private AuthenticationHandler authHandler;
-    private Class<? extends AbstractDeliveryHandler> deliveryHandlerImplClass = DefaultDeliveryHandler.class;
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(AbstractDeliveryHandler.class,
+            DeliveryContext.class, AuthenticationHandler.class);
+
+    private static final AuthenticationHandler DUMMY_AUTHENTICATION_HANDLER = new DummyAuthenticationHandler();
+
+    /**
+     * Immutable index of the listeners shared by all the delivery handlers
+     * created until the listeners change.
+     */
+    private volatile RecipientRouter router;
+    private final SMTPServerConfig config;
+    private volatile AuthenticationHandlerFactory authenticationHandlerFactory;
+    private volatile DeliveryHandlerSupplier deliveryHandlerSupplier = DefaultDeliveryHandler::new;
 
     /**
      * Initializes this factory with the listeners.
      */
     public DeliveryHandlerFactory(Collection<MessageListener> listeners) {
-        this.listeners = listeners == null ? new ArrayList<>() : listeners;
+        this(listeners, null);
+    }
+
+    /**
+     * Initializes this factory with the listeners of a server, whose
+     * recipient accept cache forgets the listeners removed from the factory.
+     */
+    public DeliveryHandlerFactory(Collection<MessageListener> listeners, SMTPServerConfig config) {
+        this.router = RecipientRouter.of(listeners);
+        this.config = config;
     }
 
     public synchronized void addAllListeners(Collection<MessageListener> listeners) {
-        this.listeners.addAll(listeners);
+        var copy = new ArrayList<>(getListeners());
+        copy.addAll(listeners);
+        this.router = RecipientRouter.of(copy);
     }
 
     public synchronized void addListener(MessageListener listener) {
-        this.listeners.add(listener);
+        addAllListeners(List.of(listener));
     }
 
     public synchronized void removeListener(MessageListener listener) {
-        this.listeners.remove(listener);
+        var copy = new ArrayList<>(getListeners());
+        copy.remove(listener);
+        this.router = RecipientRouter.of(copy);
+
+        var cache = config == null ? null : config.getRecipientAcceptCache();
+        if (cache != null && !copy.contains(listener)) {
+            cache.invalidate(listener);
+        }
     }
 
-    private synchronized ArrayList<MessageListener> copyListeners() {
-        return new ArrayList<>(listeners);
+    /**
+     * Returns the current immutable list of listeners.
+     */
+    public List<MessageListener> getListeners() {
+        return router.getListeners();
+    }
+
+    /**
+     * Returns the current index of the listeners by the recipients they
+     * serve, rebuilt each time the listeners change.
+     */
+    public RecipientRouter getRecipientRouter() {
+        return router;
     }
 
     public AbstractDeliveryHandler create(DeliveryContext ctx) {
-        return create(ctx, deliveryHandlerImplClass);
+        return create(ctx, getAuthenticationHandler());
     }
 
     /**
-     * Sets the {@link AbstractDeliveryHandler} implementation to use.
+     * Creates the delivery handler of a session, sharing the authentication
+     * handler the session already uses.
      */
-    public void setDeliveryHandlerImplClass(Class<? extends AbstractDeliveryHandler> c) {
-        this.deliveryHandlerImplClass = c;
+    public AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler) {
+        var handler = deliveryHandlerSupplier.create(ctx, authHandler);
+        handler.setRecipientRouter(router);
+        return handler;
     }
 
-    private AbstractDeliveryHandler create(DeliveryContext ctx, Class<? extends AbstractDeliveryHandler> c) {
+    /**
+     * Sets the {@link AbstractDeliveryHandler} implementation to use. Its
+     * <code>(DeliveryContext, AuthenticationHandler)</code> constructor is
+     * resolved once here rather than for each session.
+     *
+     * @throws IllegalArgumentException if the class has no such constructor
+     */
+    public void setDeliveryHandlerImplClass(Class<? extends AbstractDeliveryHandler> c) {
+        MethodHandle constructor;
         try {
-            var cstr = c.getConstructor(DeliveryContext.class,
-                                        AuthenticationHandler.class);
-            var handler = cstr.newInstance(ctx, getAuthenticationHandler());
-            handler.setListeners(copyListeners());
-
-            return handler;
-        } catch (Exception e) {
+            var cstr = c.getDeclaredConstructor(DeliveryContext.class, AuthenticationHandler.class);
+            cstr.setAccessible(true);
+            constructor = MethodHandles.lookup().unreflectConstructor(cstr)
+                    .asType(CONSTRUCTOR_TYPE);
+        } catch (ReflectiveOperationException | RuntimeException e) {
             throw new IllegalArgumentException("Failed instantiating DeliveryHandler - " + c.getName(), e);
         }
+
+        setDeliveryHandlerSupplier((ctx, authHandler) -> {
+            try {
+                return (AbstractDeliveryHandler) constructor.invokeExact(ctx, authHandler);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalArgumentException("Failed instantiating DeliveryHandler - " + c.getName(), t);
+            }
+        });
+    }
+
+    /**
+     * Sets the function creating the {@link AbstractDeliveryHandler} of
+     * each session, e.g. <code>MyDeliveryHandler::new</code>.
+     */
+    public void setDeliveryHandlerSupplier(DeliveryHandlerSupplier supplier) {
+        this.deliveryHandlerSupplier = supplier;
     }
 
     /**
      * Returns the auth handler factory
      */
-    public synchronized AuthenticationHandlerFactory getAuthenticationHandlerFactory() {
+    public AuthenticationHandlerFactory getAuthenticationHandlerFactory() {
         return authenticationHandlerFactory;
     }
 
     /**
      * Sets the auth handler factory.
      */
-    public synchronized void setAuthenticationHandlerFactory(AuthenticationHandlerFactory authenticationHandlerFactory) {
-        this.authHandler = null;
+    public void setAuthenticationHandlerFactory(AuthenticationHandlerFactory authenticationHandlerFactory) {
         this.authenticationHandlerFactory = authenticationHandlerFactory;
     }
 
@@ -93,25 +164,20 @@ public class DeliveryHandlerFactory {
      * or default to the internal class DummyAuthenticationHandler
      * which always returns true.
      *
-     * @return a new AuthenticationHandler
+     * @return a new AuthenticationHandler, to be used by a single session
      */
-    public synchronized AuthenticationHandler getAuthenticationHandler() {
-        if (this.authHandler != null) {
-            return this.authHandler;
+    public AuthenticationHandler getAuthenticationHandler() {
+        var factory = this.authenticationHandlerFactory;
+        if (factory == null) {
+            // A placeholder, which holds no state.
+            return DUMMY_AUTHENTICATION_HANDLER;
         }
 
-        if (getAuthenticationHandlerFactory() != null) {
-            // The user has plugged in a factory. let's use it.
-            this.authHandler = getAuthenticationHandlerFactory().create();
-            if (this.authHandler == null) {
-                throw new NullPointerException("AuthenticationHandlerFactory returned a null handler");
-            }
-        } else {
-            // A placeholder.
-            this.authHandler = new DummyAuthenticationHandler();
+        // The user has plugged in a factory. let's use it.
+        var handler = factory.create();
+        if (handler == null) {
+            throw new NullPointerException("AuthenticationHandlerFactory returned a null handler");
         }
-
-        // Return the variable, which can be null
-        return this.authHandler;
+        return handler;
     }
 }
@@ -0,0 +1,16 @@
+package org.mailster.smtp.api.handler;
+
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+
+/**
+ * Creates the delivery handler of a SMTP session. The constructor of any
+ * {@link AbstractDeliveryHandler} implementation fits, e.g.
+ * <code>DefaultDeliveryHandler::new</code>.
+ *
+ * @see DeliveryHandlerFactory#setDeliveryHandlerSupplier(DeliveryHandlerSupplier)
+ */
+@FunctionalInterface
+public interface DeliveryHandlerSupplier {
+
+    AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler);
+}
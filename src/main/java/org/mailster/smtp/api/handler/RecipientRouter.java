@@ -0,0 +1,167 @@
+package org.mailster.smtp.api.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.RoutedMessageListener;
+
+/**
+ * An immutable index of the listeners by the recipients they serve, see
+ * {@link RoutedMessageListener}. Listeners not declaring routes are
+ * candidates for every recipient.
+ * <p>
+ * Routing a recipient costs a lookup of its address, of its domain and of
+ * each of the parent domains for the wildcard routes, whatever the number
+ * of listeners. Candidates are returned in registration order.
+ */
+public final class RecipientRouter {
+
+    private final List<MessageListener> listeners;
+    private final MessageListener[] byIndex;
+    private final boolean routed;
+
+    private final int[] everywhere;
+    private final Map<String, int[]> addresses;
+    private final Map<String, int[]> domains;
+    private final Map<String, int[]> subdomains;
+
+    private RecipientRouter(List<MessageListener> listeners) {
+        this.listeners = listeners;
+        this.byIndex = listeners.toArray(new MessageListener[0]);
+
+        var all = new ArrayList<Integer>();
+        var addresses = new HashMap<String, List<Integer>>();
+        var domains = new HashMap<String, List<Integer>>();
+        var subdomains = new HashMap<String, List<Integer>>();
+        var routed = false;
+
+        for (var i = 0; i < byIndex.length; i++) {
+            if (!(byIndex[i] instanceof RoutedMessageListener routedListener)) {
+                all.add(i);
+                continue;
+            }
+
+            routed = true;
+            for (var route : routedListener.getRoutes()) {
+                var r = route.trim().toLowerCase(Locale.ROOT);
+                if (r.equals("*")) {
+                    all.add(i);
+                } else if (r.startsWith("*.")) {
+                    add(subdomains, r.substring(2), i);
+                } else if (r.startsWith("*@")) {
+                    add(domains, r.substring(2), i);
+                } else if (r.indexOf('@') >= 0) {
+                    add(addresses, r, i);
+                } else if (!r.isEmpty()) {
+                    add(domains, r, i);
+                } else {
+                    throw new IllegalArgumentException("Empty route for listener " + byIndex[i]);
+                }
+            }
+        }
+
+        this.routed = routed;
+        this.everywhere = toArray(all);
+        this.addresses = freeze(addresses);
+        this.domains = freeze(domains);
+        this.subdomains = freeze(subdomains);
+    }
+
+    /**
+     * Builds the index of the given listeners.
+     */
+    public static RecipientRouter of(Collection<MessageListener> listeners) {
+        return new RecipientRouter(listeners == null ? List.of() : List.copyOf(listeners));
+    }
+
+    private static void add(Map<String, List<Integer>> index, String key, int listener) {
+        var list = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+        if (list.isEmpty() || list.get(list.size() - 1) != listener) {
+            list.add(listener);
+        }
+    }
+
+    private static Map<String, int[]> freeze(Map<String, List<Integer>> index) {
+        var frozen = new HashMap<String, int[]>();
+        index.forEach((k, v) -> frozen.put(k, toArray(v)));
+        return Map.copyOf(frozen);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns all the listeners, in registration order.
+     */
+    public List<MessageListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Returns the listeners whose {@link MessageListener#accept} must be
+     * asked about the given recipient, in registration order.
+     */
+    public List<MessageListener> route(String recipient) {
+        if (!routed) {
+            return listeners;
+        }
+
+        var address = recipient.toLowerCase(Locale.ROOT);
+        var at = address.lastIndexOf('@');
+        var domain = at < 0 ? "" : address.substring(at + 1);
+
+        var matches = new ArrayList<int[]>(4);
+        if (everywhere.length > 0) {
+            matches.add(everywhere);
+        }
+        collect(matches, addresses.get(address));
+        collect(matches, domains.get(domain));
+        for (var dot = domain.indexOf('.'); dot >= 0; dot = domain.indexOf('.', dot + 1)) {
+            collect(matches, subdomains.get(domain.substring(dot + 1)));
+        }
+
+        return toListeners(matches);
+    }
+
+    private static void collect(List<int[]> matches, int[] found) {
+        if (found != null) {
+            matches.add(found);
+        }
+    }
+
+    private List<MessageListener> toListeners(List<int[]> matches) {
+        if (matches.isEmpty()) {
+            return List.of();
+        }
+
+        int[] indexes;
+        if (matches.size() == 1) {
+            indexes = matches.get(0);
+        } else {
+            indexes = new int[matches.stream().mapToInt(m -> m.length).sum()];
+            var pos = 0;
+            for (var m : matches) {
+                System.arraycopy(m, 0, indexes, pos, m.length);
+                pos += m.length;
+            }
+            Arrays.sort(indexes);
+        }
+
+        var result = new ArrayList<MessageListener>(indexes.length);
+        var previous = -1;
+        for (var index : indexes) {
+            if (index != previous) {
+                result.add(byIndex[index]);
+                previous = index;
+            }
+        }
+        return result;
+    }
+}
@@ -1,8 +1,10 @@
 package org.mailster.smtp.api.handler;
 
 import java.net.SocketAddress;
+import java.util.Map;
 
 import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.core.MessageHeaders;
 import org.mailster.smtp.core.auth.Credential;
 
 /**
@@ -29,6 +31,35 @@ public interface SessionContext {
      */
     Credential getCredential();
 
+    /**
+     * @return the hex encoded SHA-256 hash of the data of the message being
+     * delivered, as received, or null if the server does not deduplicate
+     * data. Identical messages have the same hash.
+     * @see org.mailster.smtp.core.DataDeduplicator
+     */
+    default String getDataHash() {
+        return null;
+    }
+
+    /**
+     * @return the header fields of the message being delivered, indexed
+     * while it was received, or null if the server does not index them. They
+     * let listeners route or tag the message without parsing its data.
+     */
+    default MessageHeaders getMessageHeaders() {
+        return null;
+    }
+
+    /**
+     * @return the results of the data observers over the message being
+     * delivered by observer name, e.g. its DKIM body hash, computed while it
+     * was received. Empty if the server has no observers.
+     * @see org.mailster.smtp.core.DataObserver
+     */
+    default Map<String, String> getDataObservations() {
+        return Map.of();
+    }
+
     /**
      * Adds an attribute to the current session object. The lifetime of an
      * attribute is the same as the one of the SMTP session.
@@ -0,0 +1,68 @@
+package org.mailster.smtp.core;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Scans the content of each message while the decoder receives it, so that
+ * its verdict is usually known when the data ends. The message is only
+ * delivered to the listeners if the filter accepts it, otherwise the client
+ * gets the reply of the filter.
+ * <p>
+ * A filter is shared by all sessions and must be thread safe. Its sessions
+ * are fed by the I/O processor threads and must not block.
+ *
+ * @see org.mailster.smtp.SMTPServerConfig#setContentFilter(ContentFilter)
+ * @see org.mailster.smtp.core.milter.MilterContentFilter
+ */
+public interface ContentFilter {
+
+    /**
+     * Starts scanning a message as soon as its data starts to be received.
+     */
+    Session start(Envelope envelope);
+
+    /**
+     * Releases the resources of the filter when the server stops. The filter
+     * must work again if the server is restarted.
+     */
+    default void shutdown() {
+    }
+
+    /**
+     * The SMTP dialog preceding the data of a message.
+     *
+     * @param remoteAddress the address of the client
+     * @param heloName      the host name given by the client, or null
+     * @param sender        the sender of the message
+     * @param recipients    the accepted recipients of the message
+     */
+    record Envelope(SocketAddress remoteAddress, String heloName, String sender, List<String> recipients) {
+    }
+
+    /**
+     * The scan of one message.
+     */
+    interface Session {
+
+        /**
+         * Consumes the next chunk of the message, without dot stuffing.
+         */
+        void update(byte[] data, int offset, int length);
+
+        /**
+         * Ends the message and returns the verdict of the filter: null if the
+         * message is accepted, or else the reply sent to the client instead
+         * of delivering it. The stage must complete, even if the filter
+         * fails.
+         */
+        CompletionStage<DataRejection> end();
+
+        /**
+         * Gives up the scan, e.g. because the message was rejected or the
+         * client went away.
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,250 @@
+package org.mailster.smtp.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+import org.mailster.smtp.util.SharedTmpFileInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.internet.SharedInputStream;
+import jakarta.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A bounded, thread safe index of recently received message data keyed by
+ * content hash, shared by all the sessions of a server.
+ * <p>
+ * The decoder hashes the DATA of each message with SHA-256 as it arrives,
+ * dot-stuffed and including the terminating line, exactly as received. When
+ * a message ends with a hash already in the index, its own copy is dropped,
+ * releasing its spool file if any, and the listeners get a new stream over
+ * the data already held. The hash is available to listeners through
+ * {@link org.mailster.smtp.api.handler.SessionContext#getDataHash()} so that
+ * the storage layer can deduplicate too.
+ * <p>
+ * Least recently used entries are evicted beyond the maximum number of
+ * entries or bytes. An evicted spool file is released once the last stream
+ * reading it is closed; until then it counts in the {@link SpoolManager}
+ * usage. Each indexed spool file keeps a file descriptor open, and indexed
+ * spool files are evicted when the spool is short of space for a new
+ * message. Data indexed in memory is reserved from the
+ * {@link DataMemoryBudget} of the server, if any, and is not indexed when
+ * the budget is exhausted. The server clears the index when it stops.
+ */
+public class DataDeduplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataDeduplicator.class);
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long savedBytes;
+
+    /**
+     * @param maxEntries the maximum number of messages indexed
+     * @param maxBytes   the maximum total size of the messages indexed
+     */
+    public DataDeduplicator(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns a stream over the data of the given hash, either already
+     * indexed, in which case the spool file is released, or read from the
+     * spool file which is then indexed.
+     */
+    synchronized InputStream share(String hash, File spooled, SpoolManager spool) throws IOException {
+        var length = spooled.length();
+        var entry = lookup(hash, length);
+        if (entry != null) {
+            spool.release(spooled);
+            return entry.data().newStream(0, -1);
+        }
+
+        var master = new SharedTmpFileInputStream(spooled, spool::release);
+        add(hash, new Entry(master, length, null));
+        return master.newStream(0, -1);
+    }
+
+    /**
+     * Returns a stream over the data of the given hash, either already
+     * indexed or the given array which is then indexed if the memory budget
+     * allows it, evicting the data indexed in memory if needed.
+     *
+     * @param budget the budget to reserve the indexed data from, or null
+     */
+    synchronized InputStream share(String hash, byte[] data, DataMemoryBudget budget) {
+        var entry = lookup(hash, data.length);
+        if (entry != null) {
+            return entry.data().newStream(0, -1);
+        }
+
+        var master = new SharedByteArrayInputStream(data);
+        if (budget != null) {
+            while (!budget.reserve(data.length)) {
+                if (!evictEldest(e -> e.budget() != null)) {
+                    return master;
+                }
+            }
+        }
+        add(hash, new Entry(master, data.length, budget));
+        return master.newStream(0, -1);
+    }
+
+    /**
+     * Evicts the least recently used spooled data until <code>length</code>
+     * bytes are evicted or none is left. The spool files are released once
+     * the last stream reading them is closed.
+     *
+     * @return true if any spooled data was evicted
+     */
+    synchronized boolean evictSpooled(long length) {
+        var evicted = 0L;
+        var it = index.values().iterator();
+        while (evicted < length && it.hasNext()) {
+            var entry = it.next();
+            if (entry.spooled()) {
+                it.remove();
+                release(entry);
+                evicted += entry.length();
+            }
+        }
+        return evicted > 0;
+    }
+
+    /**
+     * Evicts the least recently used entry matching the filter.
+     *
+     * @return false if there is none
+     */
+    private boolean evictEldest(Predicate<Entry> filter) {
+        var it = index.values().iterator();
+        while (it.hasNext()) {
+            var entry = it.next();
+            if (filter.test(entry)) {
+                it.remove();
+                release(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Entry lookup(String hash, long length) {
+        var entry = index.get(hash);
+        if (entry != null && entry.length() == length) {
+            hits++;
+            savedBytes += length;
+            return entry;
+        }
+        misses++;
+        return null;
+    }
+
+    private void add(String hash, Entry entry) {
+        var previous = index.put(hash, entry);
+        if (previous != null) {
+            release(previous);
+        }
+        bytes += entry.length();
+
+        var it = index.entrySet().iterator();
+        while (it.hasNext() && (index.size() > maxEntries || bytes > maxBytes)) {
+            var eldest = it.next();
+            if (eldest.getValue() == entry) {
+                // a single message larger than the limit stays until replaced
+                break;
+            }
+            it.remove();
+            release(eldest.getValue());
+        }
+    }
+
+    private void release(Entry entry) {
+        bytes -= entry.length();
+        try {
+            ((InputStream) entry.data()).close();
+        } catch (IOException e) {
+            LOG.debug("Failed releasing deduplicated data", e);
+        }
+        if (entry.budget() != null) {
+            entry.budget().release(entry.length());
+        }
+    }
+
+    /**
+     * Drops all the entries. Called when the server stops.
+     */
+    public synchronized void clear() {
+        for (var entry : index.values()) {
+            release(entry);
+        }
+        index.clear();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of messages whose data was already indexed.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of bytes not kept twice thanks to the index.
+     */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d, bytes=%d, hits=%d, misses=%d, saved=%d", index.size(), bytes, hits,
+                misses, savedBytes);
+    }
+
+    /**
+     * @param budget the budget the data is reserved from, null if spooled or
+     *               not accounted for
+     */
+    private record Entry(SharedInputStream data, long length, DataMemoryBudget budget) {
+
+        boolean spooled() {
+            return data instanceof SharedTmpFileInputStream;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.mailster.smtp.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A global budget of heap memory for the DATA buffered by the decoders of
+ * all the sessions of a server.
+ * <p>
+ * Without a budget a message stays in memory up to the data deferred size,
+ * so the worst case heap usage grows with the number of sessions. With a
+ * budget, each buffered byte is reserved from a shared counter and a message
+ * may keep up to the data deferred size in memory as long as that much of
+ * the budget is free, counting what the message already holds. Once less is
+ * free, the allowance of a message shrinks to the free part of the budget:
+ * when the server is quiet messages up to the data deferred size stay in
+ * memory, under load they are spooled early. The budget is never exceeded.
+ * <p>
+ * The decoder buffers are accounted for, a message being released from the
+ * budget once it is handed to the listeners or spooled, as well as what
+ * other parts of the server reserve, e.g. the data waiting for a
+ * {@link org.mailster.smtp.core.milter.MilterContentFilter}.
+ */
+public class DataMemoryBudget {
+
+    private final long maxBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private final LongAdder pressureSpills = new LongAdder();
+    private final LongAdder thresholdSpills = new LongAdder();
+
+    /**
+     * @param maxBytes the maximum number of bytes buffered in memory by all
+     *                 the sessions
+     */
+    public DataMemoryBudget(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes a new message may currently keep in
+     * memory, given the data deferred size.
+     */
+    public long getAllowance(int threshold) {
+        return getAllowance(0, threshold);
+    }
+
+    /**
+     * Returns the number of bytes a message already holding
+     * <code>held</code> bytes may keep in memory: the data deferred size
+     * while that much of the budget is free, or else the free part.
+     */
+    private long getAllowance(long held, int threshold) {
+        var free = Math.max(0, maxBytes - usedBytes.get() + held);
+        return Math.min(threshold, free);
+    }
+
+    /**
+     * Reserves <code>length</code> more bytes for a message which already
+     * holds <code>held</code> bytes. Returns false, without reserving them,
+     * if the message should be spooled instead.
+     */
+    public boolean reserve(long held, int length, int threshold) {
+        if (held + length > getAllowance(held, threshold)) {
+            pressureSpills.increment();
+            return false;
+        }
+        if (!reserve(length)) {
+            pressureSpills.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reserves <code>length</code> bytes held outside the decoders. Returns
+     * false, without reserving them, if the budget would be exceeded.
+     */
+    public boolean reserve(int length) {
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + length > maxBytes) {
+                return false;
+            }
+        } while (!usedBytes.compareAndSet(used, used + length));
+        peakBytes.accumulateAndGet(used + length, Math::max);
+        return true;
+    }
+
+    /**
+     * Gives back bytes previously reserved.
+     */
+    public void release(long length) {
+        usedBytes.addAndGet(-length);
+    }
+
+    /**
+     * Counts a message spooled because it was larger than the data deferred
+     * size, as opposed to the memory pressure.
+     */
+    void thresholdSpill() {
+        thresholdSpills.increment();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently reserved.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the highest number of bytes reserved at once.
+     */
+    public long getPeakUsedBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * Returns the number of messages spooled before reaching the data
+     * deferred size because of the memory pressure.
+     */
+    public long getPressureSpills() {
+        return pressureSpills.sum();
+    }
+
+    /**
+     * Returns the number of messages spooled because they were larger than
+     * the data deferred size.
+     */
+    public long getThresholdSpills() {
+        return thresholdSpills.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("used=%d/%d, peak=%d, pressureSpills=%d, thresholdSpills=%d",
+                getUsedBytes(), getMaxBytes(), getPeakUsedBytes(), getPressureSpills(), getThresholdSpills());
+    }
+}
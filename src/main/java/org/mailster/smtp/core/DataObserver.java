@@ -0,0 +1,46 @@
+package org.mailster.smtp.core;
+
+/**
+ * Computes a result over the data of each message while the decoder
+ * receives it, e.g. a digest, so that listeners don't have to read the data
+ * again. The results are available to listeners through
+ * {@link org.mailster.smtp.api.handler.SessionContext#getDataObservations()}
+ * under the name of their observer.
+ * <p>
+ * Observers see the message content as defined by RFC 5321: without dot
+ * stuffing and without the terminating line, but with the CRLF ending its
+ * last line, which the stream delivered to the listeners leaves out. This is
+ * the body a DKIM signature covers. An observer is shared by all
+ * sessions and must be thread safe, an {@link Observation} only serves one
+ * message.
+ *
+ * @see org.mailster.smtp.SMTPServerConfig#setDataObservers(java.util.List)
+ */
+public interface DataObserver {
+
+    /**
+     * Returns the name the results are available under.
+     */
+    String getName();
+
+    /**
+     * Starts observing a message.
+     */
+    Observation start();
+
+    /**
+     * The computation over the data of one message.
+     */
+    interface Observation {
+
+        /**
+         * Consumes the next chunk of the message.
+         */
+        void update(byte[] data, int offset, int length);
+
+        /**
+         * Returns the result once the whole message was consumed.
+         */
+        String finish();
+    }
+}
@@ -0,0 +1,115 @@
+package org.mailster.smtp.core;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Feeds the data of a message to the observations of the configured
+ * {@link DataObserver}s and to the {@link ContentFilter} session, if any, as
+ * the decoder receives it. The chunks are unstuffed by ranges, without
+ * copying them, and the terminating line is left out. The CRLF ending the
+ * last line is kept, see {@link DataObserver}.
+ * <p>
+ * Not thread safe.
+ */
+final class DataObservers {
+
+    private static final byte[] CR = {'\r'};
+
+    private final List<DataObserver> observers;
+    private final DataObserver.Observation[] observations;
+    private final ContentFilter.Session filter;
+
+    private boolean lineStart = true;
+    private boolean afterDot;
+    private boolean afterDotCr;
+    private boolean ended;
+
+    DataObservers(List<DataObserver> observers, ContentFilter.Session filter) {
+        this.observers = observers;
+        this.filter = filter;
+        this.observations = new DataObserver.Observation[observers.size()];
+        for (var i = 0; i < observations.length; i++) {
+            observations[i] = observers.get(i).start();
+        }
+    }
+
+    void update(byte[] src) {
+        var runStart = 0;
+        for (var i = 0; i < src.length && !ended; i++) {
+            var b = src[i];
+            if (afterDotCr) {
+                afterDotCr = false;
+                if (b == '\n') {
+                    // the terminating line
+                    ended = true;
+                    runStart = i + 1;
+                    break;
+                }
+                // the CR was held back in case the terminator followed it
+                emit(CR, 0, 1);
+            } else if (afterDot) {
+                afterDot = false;
+                if (b == '\r') {
+                    emit(src, runStart, i - runStart);
+                    runStart = i + 1;
+                    afterDotCr = true;
+                    continue;
+                }
+            } else if (lineStart && b == '.') {
+                emit(src, runStart, i - runStart);
+                runStart = i + 1;
+                lineStart = false;
+                afterDot = true;
+                continue;
+            }
+            lineStart = b == '\n';
+        }
+        if (!ended) {
+            emit(src, runStart, src.length - runStart);
+        }
+    }
+
+    private void emit(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        for (var observation : observations) {
+            observation.update(data, offset, length);
+        }
+        if (filter != null) {
+            filter.update(data, offset, length);
+        }
+    }
+
+    /**
+     * Ends the message for the content filter and returns its verdict, or
+     * null if there is no filter.
+     */
+    CompletionStage<DataRejection> endFilter() {
+        return filter == null ? null : filter.end();
+    }
+
+    /**
+     * Gives up the message, e.g. because it was rejected.
+     */
+    void abort() {
+        if (filter != null) {
+            filter.abort();
+        }
+    }
+
+    /**
+     * Returns the results of the observers by name.
+     */
+    Map<String, String> finish() {
+        var results = new LinkedHashMap<String, String>(observations.length * 2);
+        for (var i = 0; i < observations.length; i++) {
+            results.put(observers.get(i).getName(), observations[i].finish());
+        }
+        return Collections.unmodifiableMap(results);
+    }
+}
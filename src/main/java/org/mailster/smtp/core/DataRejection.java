@@ -0,0 +1,16 @@
+package org.mailster.smtp.core;
+
+/**
+ * Emitted by the {@link SMTPDecoder} instead of the message data when the
+ * message was received but could not be kept, so that the connection
+ * handler replies with an error instead of delivering it.
+ *
+ * @param reply the reply sent to the client
+ */
+public record DataRejection(String reply) {
+
+    /**
+     * The spool quota would have been exceeded by the message.
+     */
+    public static final DataRejection SPOOL_FULL = new DataRejection("452 Insufficient system storage");
+}
@@ -0,0 +1,178 @@
+package org.mailster.smtp.core;
+
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Computes the DKIM body hash of each message (RFC 6376 section 3.7), the
+ * Base64 value a signature carries in its <code>bh=</code> tag, with the
+ * simple or relaxed body canonicalization. It is named, for instance,
+ * <code>dkim-relaxed-sha256</code>.
+ * <p>
+ * The whole body is hashed: signatures with a body length limit can't be
+ * checked against it.
+ */
+public class DkimBodyHashObserver implements DataObserver {
+
+    public enum Canonicalization {
+        SIMPLE, RELAXED
+    }
+
+    private final Canonicalization canonicalization;
+    private final String algorithm;
+    private final String name;
+
+    /**
+     * @param canonicalization the body canonicalization, the part after the
+     *                         '/' of the <code>c=</code> tag
+     * @param algorithm        the digest algorithm, "SHA-256" or "SHA-1"
+     */
+    public DkimBodyHashObserver(Canonicalization canonicalization, String algorithm) {
+        if (canonicalization == null) {
+            throw new IllegalArgumentException("Canonicalization must not be null");
+        }
+        MessageDigestObserver.newDigest(algorithm);
+        this.canonicalization = canonicalization;
+        this.algorithm = algorithm;
+        this.name = "dkim-" + canonicalization.name().toLowerCase(Locale.ROOT) + "-"
+                + algorithm.toLowerCase(Locale.ROOT).replace("-", "");
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Observation start() {
+        return new BodyCanonicalizer(MessageDigestObserver.newDigest(algorithm),
+                canonicalization == Canonicalization.RELAXED);
+    }
+
+    /**
+     * Skips the header block then canonicalizes the body into the digest,
+     * holding back the empty lines until a non empty one follows them.
+     */
+    private static class BodyCanonicalizer implements Observation {
+
+        private final MessageDigest digest;
+        private final boolean relaxed;
+        private final byte[] out = new byte[4096];
+        private int outLength;
+
+        private boolean inHeaders = true;
+        private boolean headerLineEmpty = true;
+
+        private boolean pendingCr;
+        private boolean pendingSpace;
+        private boolean lineEmpty = true;
+        private int emptyLines;
+        private boolean bodyEmpty = true;
+
+        BodyCanonicalizer(MessageDigest digest, boolean relaxed) {
+            this.digest = digest;
+            this.relaxed = relaxed;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            var end = offset + length;
+            for (var i = offset; i < end; i++) {
+                var b = data[i];
+                if (inHeaders) {
+                    header(b);
+                } else {
+                    body(b);
+                }
+            }
+        }
+
+        private void header(byte b) {
+            if (b == '\n') {
+                inHeaders = !headerLineEmpty;
+                headerLineEmpty = true;
+            } else if (b != '\r') {
+                headerLineEmpty = false;
+            }
+        }
+
+        private void body(byte b) {
+            if (pendingCr) {
+                pendingCr = false;
+                if (b == '\n') {
+                    endLine();
+                    return;
+                }
+                content((byte) '\r');
+            }
+
+            if (b == '\r') {
+                pendingCr = true;
+            } else if (b == '\n') {
+                endLine();
+            } else {
+                content(b);
+            }
+        }
+
+        private void content(byte b) {
+            if (relaxed && (b == ' ' || b == '\t')) {
+                pendingSpace = true;
+                return;
+            }
+
+            if (lineEmpty) {
+                for (; emptyLines > 0; emptyLines--) {
+                    write((byte) '\r');
+                    write((byte) '\n');
+                }
+                lineEmpty = false;
+            }
+            if (pendingSpace) {
+                write((byte) ' ');
+                pendingSpace = false;
+            }
+            write(b);
+        }
+
+        private void endLine() {
+            // trailing white space is dropped by the relaxed canonicalization
+            pendingSpace = false;
+            if (lineEmpty) {
+                emptyLines++;
+            } else {
+                write((byte) '\r');
+                write((byte) '\n');
+                lineEmpty = true;
+            }
+        }
+
+        private void write(byte b) {
+            if (outLength == out.length) {
+                digest.update(out, 0, outLength);
+                outLength = 0;
+            }
+            out[outLength++] = b;
+            bodyEmpty = false;
+        }
+
+        @Override
+        public String finish() {
+            if (pendingCr) {
+                pendingCr = false;
+                content((byte) '\r');
+            }
+            if (!lineEmpty) {
+                endLine();
+            }
+            if (bodyEmpty && !relaxed) {
+                // the simple canonicalization of an empty body is a line end
+                write((byte) '\r');
+                write((byte) '\n');
+            }
+            digest.update(out, 0, outLength);
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+    }
+}
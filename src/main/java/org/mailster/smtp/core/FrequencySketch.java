@@ -0,0 +1,92 @@
+package org.mailster.smtp.core;
+
+/**
+ * A count-min sketch of 4 bit counters estimating how often keys were seen
+ * recently, used as the TinyLFU admission filter of the
+ * {@link RecipientAcceptCache}. Counters are halved once the number of
+ * increments reaches ten times the table size, so that old popularity
+ * fades away.
+ * <p>
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param maxEntries the number of keys whose frequency should be tracked
+     */
+    FrequencySketch(int maxEntries) {
+        var length = Integer.highestOneBit(Math.max(16, maxEntries - 1) << 1);
+        table = new long[length];
+        mask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * Returns the estimated number of times the key was seen, at most 15.
+     */
+    int frequency(Object key) {
+        var hash = spread(key.hashCode());
+        var start = (hash & 3) << 2;
+        var frequency = 15;
+        for (var i = 0; i < 4; i++) {
+            var count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the key.
+     */
+    void increment(Object key) {
+        var hash = spread(key.hashCode());
+        var start = (hash & 3) << 2;
+        var added = false;
+        for (var i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        var offset = counter << 2;
+        var bits = 0xfL << offset;
+        if ((table[index] & bits) != bits) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (var i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        var h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,11 @@
+package org.mailster.smtp.core;
+
+/**
+ * Emitted by the {@link SMTPDecoder} as soon as the header block of a message
+ * was received, so that the listeners check it on a worker thread while the
+ * rest of the message is still being decoded.
+ *
+ * @param headers the header fields of the message
+ */
+public record HeaderBlock(MessageHeaders headers) {
+}
@@ -0,0 +1,158 @@
+package org.mailster.smtp.core;
+
+import java.util.Arrays;
+
+/**
+ * Indexes the header block of a message while its data is decoded, fed with
+ * the raw chunks as they arrive. It undoes the dot stuffing, records the
+ * offsets of each field and ignores everything after the empty line ending
+ * the header block. It also indexes header blocks which are not dot stuffed,
+ * e.g. the ones of MIME parts.
+ * <p>
+ * Not thread safe.
+ */
+final class HeaderScanner {
+
+    private final int maxSize;
+    private final boolean dotStuffed;
+
+    private byte[] block = new byte[512];
+    private int length;
+    private int lineStart;
+    private boolean dotChecked;
+    private boolean dotSkipped;
+
+    private int[] index = new int[4 * 16];
+    private int count;
+
+    private boolean done;
+    private boolean complete;
+    private int headerLength;
+
+    /**
+     * @param maxSize    the maximum size of the header block indexed
+     * @param dotStuffed true if the data is dot stuffed, as received
+     */
+    HeaderScanner(int maxSize, boolean dotStuffed) {
+        this.maxSize = maxSize;
+        this.dotStuffed = dotStuffed;
+    }
+
+    /**
+     * Returns true once the header block is over or too large, later chunks
+     * are ignored.
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    void feed(byte[] src, int off, int len) {
+        var end = off + len;
+        for (var i = off; i < end && !done; i++) {
+            var b = src[i];
+            if (!dotChecked) {
+                dotChecked = true;
+                if (dotStuffed && b == '.') {
+                    // a leading dot is doubled by the client
+                    dotSkipped = true;
+                    continue;
+                }
+            }
+
+            if (length == maxSize) {
+                done = true;
+                headerLength = lineStart;
+                return;
+            }
+            if (length == block.length) {
+                block = Arrays.copyOf(block, Math.min(maxSize, block.length * 2));
+            }
+            block[length++] = b;
+
+            if (b == '\n') {
+                endOfLine();
+            }
+        }
+    }
+
+    /**
+     * Ends the header block at the end of the data fed so far, for a block
+     * without an empty line.
+     */
+    void finish() {
+        if (done) {
+            return;
+        }
+        if (lineStart < length) {
+            line(length);
+        }
+        done = true;
+        complete = true;
+        headerLength = length;
+    }
+
+    private void endOfLine() {
+        var contentEnd = length - 1;
+        if (contentEnd > lineStart && block[contentEnd - 1] == '\r') {
+            contentEnd--;
+        }
+        line(contentEnd);
+    }
+
+    private void line(int contentEnd) {
+        if (contentEnd == lineStart) {
+            done = true;
+            complete = true;
+            // the data terminator of a message without body
+            // also takes the line end of the last field
+            headerLength = dotSkipped ? Math.max(0, lineStart - 2) : length;
+        } else if (block[lineStart] == ' ' || block[lineStart] == '\t') {
+            if (count > 0) {
+                index[count * 4 - 1] = contentEnd;
+            }
+        } else {
+            addField(contentEnd);
+        }
+
+        lineStart = length;
+        dotChecked = false;
+        dotSkipped = false;
+    }
+
+    private void addField(int contentEnd) {
+        var colon = -1;
+        for (var i = lineStart; i < contentEnd; i++) {
+            if (block[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= lineStart) {
+            // not a field, e.g. a mbox From_ line
+            return;
+        }
+
+        var nameEnd = colon;
+        while (nameEnd > lineStart && (block[nameEnd - 1] == ' ' || block[nameEnd - 1] == '\t')) {
+            nameEnd--;
+        }
+
+        if (index.length == count * 4) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        var j = count * 4;
+        index[j] = lineStart;
+        index[j + 1] = nameEnd;
+        index[j + 2] = colon + 1;
+        index[j + 3] = contentEnd;
+        count++;
+    }
+
+    /**
+     * Returns the index of the fields scanned so far.
+     */
+    MessageHeaders toHeaders() {
+        var length = done ? headerLength : this.length;
+        return new MessageHeaders(block, index, count, length, complete);
+    }
+}
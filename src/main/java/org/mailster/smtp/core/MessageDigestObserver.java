@@ -0,0 +1,58 @@
+package org.mailster.smtp.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Computes a {@link MessageDigest} of each message, e.g. for auditing, as
+ * a lower case hex string named after its algorithm.
+ * <p>
+ * Unlike the hash of the {@link DataDeduplicator}, it covers the message
+ * unstuffed rather than as received, i.e. the data delivered to the
+ * listeners followed by the CRLF ending its last line.
+ */
+public class MessageDigestObserver implements DataObserver {
+
+    private final String algorithm;
+
+    /**
+     * @param algorithm a digest algorithm of the JDK, e.g. "SHA-256"
+     */
+    public MessageDigestObserver(String algorithm) {
+        newDigest(algorithm);
+        this.algorithm = algorithm;
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Algorithm must not be null");
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return algorithm;
+    }
+
+    @Override
+    public Observation start() {
+        var digest = newDigest(algorithm);
+        return new Observation() {
+            @Override
+            public void update(byte[] data, int offset, int length) {
+                digest.update(data, offset, length);
+            }
+
+            @Override
+            public String finish() {
+                return HexFormat.of().formatHex(digest.digest());
+            }
+        };
+    }
+}
@@ -0,0 +1,173 @@
+package org.mailster.smtp.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The header fields of a message, indexed while its data was received, so
+ * that listeners can route or tag it without parsing the stream.
+ * <p>
+ * Only the offsets of the fields in a copy of the header block are recorded,
+ * their values are decoded when asked for. Names are case insensitive and
+ * values are unfolded, without the leading white space. The header block is
+ * indexed up to {@link org.mailster.smtp.SMTPServerConfig#getMaxIndexedHeaderSize()}
+ * bytes: the fields beyond it are missing and {@link #isComplete()} returns
+ * false.
+ */
+public final class MessageHeaders {
+
+    private final byte[] block;
+    private final int[] index;
+    private final int count;
+    private final int length;
+    private final boolean complete;
+
+    /**
+     * @param block    the unstuffed header block
+     * @param index    the name start, name end, value start and value end of
+     *                 each field in the block
+     * @param count    the number of fields
+     * @param length   the length of the header block in the data stream
+     * @param complete false if the header block was truncated
+     */
+    MessageHeaders(byte[] block, int[] index, int count, int length, boolean complete) {
+        this.block = block;
+        this.index = index;
+        this.count = count;
+        this.length = length;
+        this.complete = complete;
+    }
+
+    /**
+     * Indexes a header block which is not dot stuffed, e.g. the one of a
+     * MIME part, ending with an empty line or not.
+     */
+    public static MessageHeaders parse(byte[] data, int offset, int length) {
+        var scanner = new HeaderScanner(Math.max(1, length), false);
+        scanner.feed(data, offset, length);
+        scanner.finish();
+        return scanner.toHeaders();
+    }
+
+    /**
+     * Returns the number of fields, counting each occurrence.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns true if the whole header block was indexed.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the number of bytes of the header block in the data stream
+     * handed to the listeners, including the empty line ending it: the body
+     * starts at this offset.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns true if the message has a field of that name.
+     */
+    public boolean contains(String name) {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /**
+     * Returns the value of the first field of that name or null if none.
+     */
+    public String get(String name) {
+        var i = indexOf(name, 0);
+        return i < 0 ? null : getValue(i);
+    }
+
+    /**
+     * Returns the values of all the fields of that name, in the order of the
+     * message.
+     */
+    public List<String> getAll(String name) {
+        var i = indexOf(name, 0);
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+
+        var values = new ArrayList<String>(2);
+        while (i >= 0) {
+            values.add(getValue(i));
+            i = indexOf(name, i + 1);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the names of the fields, in the order of the message, once
+     * each.
+     */
+    public List<String> getNames() {
+        var names = new ArrayList<String>(count);
+        for (var i = 0; i < count; i++) {
+            if (indexOf(getName(i), 0) == i) {
+                names.add(getName(i));
+            }
+        }
+        return names;
+    }
+
+    private int indexOf(String name, int from) {
+        var nameLength = name.length();
+        for (var i = from; i < count; i++) {
+            var start = index[i * 4];
+            if (index[i * 4 + 1] - start == nameLength && matches(name, start)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int start) {
+        for (var j = 0; j < name.length(); j++) {
+            var c = (char) (block[start + j] & 0xff);
+            var n = name.charAt(j);
+            if (c != n && Character.toLowerCase(c) != Character.toLowerCase(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of the i-th field, in the order of the message.
+     */
+    public String getName(int i) {
+        Objects.checkIndex(i, count);
+        var start = index[i * 4];
+        return new String(block, start, index[i * 4 + 1] - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the value of the i-th field, in the order of the message.
+     */
+    public String getValue(int i) {
+        Objects.checkIndex(i, count);
+        var start = index[i * 4 + 2];
+        var value = new String(block, start, index[i * 4 + 3] - start, StandardCharsets.UTF_8);
+        if (value.indexOf('\n') >= 0) {
+            value = value.replace("\r\n", "").replace("\n", "");
+        }
+        return value.strip();
+    }
+
+    @Override
+    public String toString() {
+        return new String(block, 0, Math.min(block.length, length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,259 @@
+package org.mailster.smtp.core;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.handler.SessionContext;
+
+/**
+ * A bounded cache of the {@link MessageListener#accept} decisions, keyed by
+ * listener and recipient, shared by all the sessions of a server.
+ * <p>
+ * Accepted and rejected recipients are kept for distinct durations, e.g. a
+ * few minutes for the known addresses of a mailing list and a few seconds
+ * for the unknown ones tried by a dictionary attack. When full, a new
+ * decision only replaces the least recently used one if its recipient was
+ * asked about more often recently, estimated by a TinyLFU frequency sketch,
+ * so that a flood of one-off addresses doesn't flush the useful entries.
+ * <p>
+ * The cache must only be used with listeners whose decision depends on the
+ * recipient alone, not on the session or the sender: the default delivery
+ * handler only uses it for the {@link org.mailster.smtp.api.CacheableMessageListener}s.
+ * Recipients are compared regardless of case, like the
+ * {@link org.mailster.smtp.api.handler.RecipientRouter} does.
+ */
+public class RecipientAcceptCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder rejectedAdmissions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries  the maximum number of decisions kept
+     * @param positiveTtl how long an accepted recipient is kept
+     * @param negativeTtl how long a rejected recipient is kept
+     */
+    public RecipientAcceptCache(int maxEntries, Duration positiveTtl, Duration negativeTtl) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be positive");
+        }
+        this.positiveTtl = positiveTtl.toNanos();
+        this.negativeTtl = negativeTtl.toNanos();
+
+        var perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (var i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        var h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the decision of the listener for the recipient, asking it only
+     * if not cached.
+     */
+    public boolean accept(MessageListener listener, SessionContext ctx, String from, String recipient) {
+        var cached = getIfPresent(listener, recipient);
+        if (cached != null) {
+            return cached;
+        }
+
+        var accepted = listener.accept(ctx, from, recipient);
+        put(listener, recipient, accepted);
+        return accepted;
+    }
+
+    /**
+     * Returns the cached decision of the listener for the recipient or null
+     * if unknown, counting a hit or a miss.
+     */
+    public Boolean getIfPresent(MessageListener listener, String recipient) {
+        var key = Key.of(listener, recipient);
+        var cached = segmentFor(key).get(key, System.nanoTime());
+        if (cached == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            if (!cached) {
+                negativeHits.increment();
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Caches the decision of the listener for the recipient, if admitted.
+     */
+    public void put(MessageListener listener, String recipient, boolean accepted) {
+        var key = Key.of(listener, recipient);
+        segmentFor(key).put(key, accepted, System.nanoTime() + (accepted ? positiveTtl : negativeTtl));
+    }
+
+    /**
+     * Forgets the decision of the listener for the recipient, e.g. once the
+     * address was created or deleted.
+     */
+    public void invalidate(MessageListener listener, String recipient) {
+        var key = Key.of(listener, recipient);
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Forgets all the decisions of the listener, e.g. once it was removed.
+     */
+    public void invalidate(MessageListener listener) {
+        for (var segment : segments) {
+            segment.removeIf(listener);
+        }
+    }
+
+    /**
+     * Forgets all decisions.
+     */
+    public void clear() {
+        for (var segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the number of decisions cached, including expired ones not
+     * purged yet.
+     */
+    public int size() {
+        var size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of hits on rejected recipients.
+     */
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * Returns the ratio of decisions answered from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        var h = hits.sum();
+        var total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of decisions not cached because they were less
+     * popular than the one they would have replaced.
+     */
+    public long getRejectedAdmissions() {
+        return rejectedAdmissions.sum();
+    }
+
+    /**
+     * Returns the number of decisions evicted to make room for new ones.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d, hits=%d, misses=%d, hitRatio=%.3f, negativeHits=%d, rejectedAdmissions=%d, evictions=%d",
+                size(), getHits(), getMisses(), getHitRatio(), getNegativeHits(), getRejectedAdmissions(), getEvictions());
+    }
+
+    private record Key(MessageListener listener, String recipient) {
+
+        static Key of(MessageListener listener, String recipient) {
+            return new Key(listener, recipient.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private record Decision(boolean accepted, long expiresAt) {
+    }
+
+    /**
+     * A slice of the cache, in access order, with its own lock and sketch.
+     */
+    private final class Segment {
+
+        private final int capacity;
+        private final LinkedHashMap<Key, Decision> map;
+        private final FrequencySketch sketch;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<>(16, 0.75f, true);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized Boolean get(Key key, long now) {
+            sketch.increment(key);
+            var decision = map.get(key);
+            if (decision == null) {
+                return null;
+            }
+            if (decision.expiresAt() - now <= 0) {
+                map.remove(key);
+                return null;
+            }
+            return decision.accepted();
+        }
+
+        synchronized void put(Key key, boolean accepted, long expiresAt) {
+            if (!map.containsKey(key) && map.size() >= capacity) {
+                var eldest = map.entrySet().iterator().next();
+                if (eldest.getValue().expiresAt() - System.nanoTime() > 0
+                        && sketch.frequency(key) <= sketch.frequency(eldest.getKey())) {
+                    rejectedAdmissions.increment();
+                    return;
+                }
+                map.remove(eldest.getKey());
+                evictions.increment();
+            }
+            map.put(key, new Decision(accepted, expiresAt));
+        }
+
+        synchronized void remove(Key key) {
+            map.remove(key);
+        }
+
+        synchronized void removeIf(MessageListener listener) {
+            map.keySet().removeIf(key -> key.listener().equals(listener));
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.mailster.smtp.core;
+
+import java.util.List;
+
+/**
+ * Emitted by the {@link SMTPDecoder} instead of single lines for consecutive
+ * RCPT commands received together, so that the recipients of a pipelined
+ * burst are validated at once.
+ *
+ * @param lines the RCPT command lines, in the order received
+ */
+public record RecipientBatch(List<String> lines) {
+}
@@ -1,17 +1,28 @@
 package org.mailster.smtp.core;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.mina.core.buffer.BufferDataException;
 import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.AttributeKey;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.FilterEvent;
+import org.apache.mina.filter.ssl.SslEvent;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.filter.ssl.SslFilter.SslFilterMessage;
 import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.StreamingMessageListener;
 import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.api.handler.RejectException;
 import org.mailster.smtp.core.commands.CommandException;
 import org.mailster.smtp.core.commands.CommandHandler;
 import org.slf4j.Logger;
@@ -26,8 +37,11 @@ import org.slf4j.LoggerFactory;
  */
 public class SMTPConnectionHandler extends IoHandlerAdapter {
 
-    // Session objects
-    public static final String CONTEXT_ATTRIBUTE = SMTPConnectionHandler.class.getName() + ".ctx";
+    /**
+     * The key of the {@link SMTPContext} holding all the SMTP state of a
+     * session, use {@link SMTPContext#of(IoSession)} to read it.
+     */
+    public static final AttributeKey CONTEXT_ATTRIBUTE = new AttributeKey(SMTPConnectionHandler.class, "ctx");
 
     private static final Logger LOG = LoggerFactory.getLogger(SMTPConnectionHandler.class);
 
@@ -37,12 +51,23 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
 
     private DeliveryHandlerFactory factory;
 
+    /**
+     * The pool blocking work is handed to when commands are dispatched
+     * inline, null when the whole filter chain already runs on it.
+     */
+    private volatile Executor workerExecutor;
+
     /**
      * A thread safe variable that represents the number
      * of active connections.
      */
     private AtomicInteger numberOfConnections = new AtomicInteger(0);
 
+    /**
+     * The TLS handshake counters.
+     */
+    private final TLSStatistics tlsStatistics = new TLSStatistics();
+
     public SMTPConnectionHandler(SMTPServerConfig cfg, CommandHandler handler, DeliveryHandlerFactory factory) {
         this.config = cfg;
         this.commandHandler = handler;
@@ -58,7 +83,7 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
             session.write(response);
         }
 
-        var minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
+        var minaCtx = SMTPContext.of(session);
         if (!minaCtx.getSMTPState().isActive()) {
             session.closeOnFlush();
         }
@@ -86,6 +111,23 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
         return numberOfConnections.get();
     }
 
+    /**
+     * Sets the pool blocking work is handed to. When set, messages whose
+     * processing can't block are handled on the I/O processor thread that
+     * decoded them, see {@link org.mailster.smtp.core.commands.Command#isBlocking()}.
+     * Null means that the filter chain already hands every event to a pool.
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * @return The TLS handshake counters
+     */
+    public TLSStatistics getTLSStatistics() {
+        return tlsStatistics;
+    }
+
     @Override
     public void sessionCreated(IoSession session) {
         updateNumberOfConnections(+1);
@@ -97,8 +139,12 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
 
         session.getConfig().setIdleTime(IdleStatus.READER_IDLE, config.getConnectionTimeout() / 1000);
 
-        // We're going to use SSL negotiation notification.
-        session.setAttribute(SslFilter.USE_NOTIFICATION);
+        // Implicit TLS sessions start with a handshake, others only get the
+        // SSL negotiation notification attribute if they issue STARTTLS
+        if (session.getFilterChain().contains(SslFilter.class)) {
+            session.setAttribute(SslFilter.USE_NOTIFICATION);
+            TLSStatistics.handshakeStarted(session);
+        }
 
         // Init protocol internals
         LOG.debug("SMTP connection count: {}", getNumberOfConnections());
@@ -161,6 +207,13 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
         }
     }
 
+    @Override
+    public void event(IoSession session, FilterEvent event) {
+        if (event == SslEvent.SECURED) {
+            tlsStatistics.handshakeCompleted(session);
+        }
+    }
+
     @Override
     public void messageReceived(IoSession session, Object message) throws Exception {
         if (message == null) {
@@ -177,17 +230,148 @@ public class SMTPConnectionHandler extends IoHandlerAdapter {
             return;
         }
 
-        var minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
+        var minaCtx = SMTPContext.of(session);
 
-        if (message instanceof InputStream) {
-            minaCtx.setInputStream((InputStream) message);
-            try {
-                minaCtx.getDeliveryHandler().data(minaCtx.getInputStream());
+        var executor = workerExecutor;
+        if (executor == null || (minaCtx.isIdle() && !isBlocking(message, minaCtx))) {
+            process(session, minaCtx, message);
+        } else {
+            minaCtx.getTaskQueue().submit(() -> {
+                try {
+                    process(session, minaCtx, message);
+                } catch (Throwable t) {
+                    exceptionCaught(session, t);
+                }
+            }, executor);
+        }
+    }
+
+    /**
+     * Returns true if processing the message may block: delivering data,
+     * authenticating or running a command calling the listeners.
+     */
+    private boolean isBlocking(Object message, SMTPContext minaCtx) {
+        if (message instanceof InputStream || message instanceof HeaderBlock) {
+            return true;
+        } else if (message instanceof DataRejection) {
+            return false;
+        } else if (message instanceof RecipientBatch || minaCtx.getSMTPState().isAuthenticating()) {
+            return true;
+        }
+
+        try {
+            return this.commandHandler.getCommandFromString((String) message).isBlocking();
+        } catch (CommandException e) {
+            // replied inline with an error
+            return false;
+        }
+    }
+
+    private void dataDelivered(IoSession session, SMTPContext minaCtx, CompletableFuture<Void> delivery) throws IOException {
+        try {
+            StreamingMessageListener.await(delivery);
+            minaCtx.reset();
+            sendResponse(session, "250 Ok");
+        } catch (TooMuchDataException tmdEx) {
+            sendResponse(session, "552 Too much mail data");
+        }
+    }
+
+    /**
+     * Waits for the verdict of the content filter, if any, which is usually
+     * known by the time the data ended since the message was scanned while it
+     * was received.
+     *
+     * @return the reply rejecting the message or null to deliver it
+     */
+    private DataRejection contentFilterVerdict(SMTPContext minaCtx, InputStream data) throws IOException {
+        return awaitVerdict(minaCtx.getContentFilterVerdict(), data, "Interrupted while filtering",
+                "Content filter failed");
+    }
+
+    /**
+     * Waits for a verdict on the message, closing its data if it can't be
+     * known.
+     *
+     * @return the reply rejecting the message or null
+     */
+    private static DataRejection awaitVerdict(CompletionStage<DataRejection> verdict, InputStream data,
+            String interrupted, String failed) throws IOException {
+        if (verdict == null) {
+            return null;
+        }
+        try {
+            return verdict.toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            data.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(interrupted);
+        } catch (ExecutionException e) {
+            data.close();
+            throw new IOException(failed, e.getCause());
+        }
+    }
+
+    private void process(IoSession session, SMTPContext minaCtx, Object message) throws Exception {
+        if (message instanceof InputStream data) {
+            // the headers may still be checked, or rejected, after the data ended
+            var rejection = awaitVerdict(minaCtx.getHeaderVerdict(), data, "Interrupted while checking headers",
+                    "Header check failed");
+            if (rejection == null) {
+                rejection = contentFilterVerdict(minaCtx, data);
+            }
+            if (rejection != null) {
+                data.close();
                 minaCtx.reset();
-                sendResponse(session, "250 Ok");
-            } catch (TooMuchDataException tmdEx) {
-                sendResponse(session, "552 Too much mail data");
+                sendResponse(session, rejection.reply());
+                return;
+            }
+            minaCtx.setInputStream(data);
+            var delivery = minaCtx.getDeliveryHandler().dataAsync(minaCtx.getInputStream()).toCompletableFuture();
+            if (delivery.isDone() || workerExecutor == null) {
+                dataDelivered(session, minaCtx, delivery);
+            } else {
+                // no command is read nor run until the listeners are done
+                session.suspendRead();
+                minaCtx.getTaskQueue().holdUntil(delivery.handle((v, t) -> {
+                    try {
+                        dataDelivered(session, minaCtx, delivery);
+                    } catch (Throwable e) {
+                        exceptionCaught(session, e);
+                    } finally {
+                        session.resumeRead();
+                    }
+                    return null;
+                }));
+            }
+        } else if (message instanceof HeaderBlock block) {
+            DataRejection rejection = null;
+            try {
+                minaCtx.getDeliveryHandler().headers(block.headers());
+            } catch (RejectException e) {
+                rejection = new DataRejection(e.getMessage());
+            } finally {
+                minaCtx.endHeaderCheck(rejection);
+            }
+        } else if (message instanceof DataRejection rejection) {
+            minaCtx.reset();
+            sendResponse(session, rejection.reply());
+        } else if (message instanceof RecipientBatch batch) {
+            if (minaCtx.getSMTPState().isAuthenticating() || (!minaCtx.getSMTPState().isAuthenticated()
+                    && !minaCtx.getAuthenticationHandler().getAuthenticationMechanisms().isEmpty())) {
+                // the lines are challenges or need an authentication check each
+                for (var line : batch.lines()) {
+                    process(session, minaCtx, line);
+                }
+                return;
+            }
+
+            if (LOG.isDebugEnabled()) {
+                for (var line : batch.lines()) {
+                    LOG.debug("C: " + line);
+                }
             }
+            this.commandHandler.handleRecipients(batch.lines(), session, minaCtx);
         } else {
             var line = (String) message;
 
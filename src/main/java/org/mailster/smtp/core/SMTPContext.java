@@ -2,6 +2,9 @@ package org.mailster.smtp.core;
 
 import java.io.InputStream;
 import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.SMTPServerConfig;
@@ -12,7 +15,9 @@ import org.mailster.smtp.core.auth.AuthenticationHandler;
 import org.mailster.smtp.core.auth.Credential;
 
 /**
- * The context of a SMTP session.
+ * The context of a SMTP session. It holds all the SMTP state of a session
+ * and is stored under a single session attribute; everything not needed by
+ * an idle connection is created on first use.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  */
@@ -26,23 +31,98 @@ public final class SMTPContext implements DeliveryContext {
 
     private InputStream inputStream;
 
+    private volatile String dataHash;
+    private volatile MessageHeaders messageHeaders;
+    private volatile Map<String, String> dataObservations = Map.of();
+    private volatile CompletionStage<DataRejection> contentFilterVerdict;
+
+    /**
+     * The verdict of the check of the headers of the current message, if
+     * started: completed by the worker checking them with the rejection or
+     * null, read by the decoder to discard the rest of the message and
+     * awaited before the message is delivered.
+     */
+    private volatile CompletableFuture<DataRejection> headerVerdict;
+
+    private DeliveryHandlerFactory factory;
     private AbstractDeliveryHandler deliveryHandler;
     private AuthenticationHandler authenticationHandler;
 
+    /**
+     * Created on the first bytes received.
+     */
+    private SMTPDecoderContext decoderContext;
+
+    /**
+     * Created on the first task handed off to the worker pool when commands
+     * are dispatched inline.
+     */
+    private SessionTaskQueue taskQueue;
+
     public SMTPContext(SMTPServerConfig cfg, DeliveryHandlerFactory factory, IoSession ioSession) {
         this.cfg = cfg;
+        this.factory = factory;
         this.remoteAddress = ioSession.getRemoteAddress();
         this.smtpState = new SMTPState();
+    }
+
+    /**
+     * Returns the context of the given session or null if the session has
+     * not been initialized by the {@link SMTPConnectionHandler}.
+     */
+    public static SMTPContext of(IoSession session) {
+        return (SMTPContext) session.getAttribute(SMTPConnectionHandler.CONTEXT_ATTRIBUTE);
+    }
+
+    SMTPDecoderContext getDecoderContext(SMTPDecoder decoder) {
+        if (decoderContext == null) {
+            decoderContext = new SMTPDecoderContext(decoder);
+        }
+        return decoderContext;
+    }
+
+    SMTPDecoderContext removeDecoderContext() {
+        var ctx = decoderContext;
+        decoderContext = null;
+        return ctx;
+    }
 
-        this.deliveryHandler = factory.create(this);
-        this.authenticationHandler = deliveryHandler.getAuthenticationHandler();
+    /**
+     * Returns true if no work of this session is pending on the worker pool.
+     * Only called from the I/O processor thread of the session.
+     */
+    boolean isIdle() {
+        return taskQueue == null || taskQueue.isIdle();
     }
 
+    SessionTaskQueue getTaskQueue() {
+        if (taskQueue == null) {
+            taskQueue = new SessionTaskQueue();
+        }
+        return taskQueue;
+    }
+
+    /**
+     * Returns the delivery handler of this session, created on first use so
+     * that sessions which never start a mail transaction don't pay for it.
+     */
     public AbstractDeliveryHandler getDeliveryHandler() {
+        if (deliveryHandler == null) {
+            deliveryHandler = factory.create(this, getAuthenticationHandler());
+        }
         return deliveryHandler;
     }
 
+    /**
+     * Returns the authentication handler of this session, one per session as
+     * it holds the state of an AUTH exchange. It is created on first use, by
+     * the factory set when the client first greets the server or
+     * authenticates.
+     */
     public AuthenticationHandler getAuthenticationHandler() {
+        if (authenticationHandler == null) {
+            authenticationHandler = factory.getAuthenticationHandler();
+        }
         return authenticationHandler;
     }
 
@@ -78,8 +158,98 @@ public final class SMTPContext implements DeliveryContext {
         this.credential = credential;
     }
 
+    @Override
+    public String getDataHash() {
+        return dataHash;
+    }
+
+    public void setDataHash(String dataHash) {
+        this.dataHash = dataHash;
+    }
+
+    @Override
+    public MessageHeaders getMessageHeaders() {
+        return messageHeaders;
+    }
+
+    public void setMessageHeaders(MessageHeaders messageHeaders) {
+        this.messageHeaders = messageHeaders;
+    }
+
+    @Override
+    public Map<String, String> getDataObservations() {
+        return dataObservations;
+    }
+
+    public void setDataObservations(Map<String, String> dataObservations) {
+        this.dataObservations = dataObservations;
+    }
+
+    /**
+     * Returns the verdict of the content filter on the message being
+     * delivered or null if there is no filter.
+     */
+    public CompletionStage<DataRejection> getContentFilterVerdict() {
+        return contentFilterVerdict;
+    }
+
+    public void setContentFilterVerdict(CompletionStage<DataRejection> contentFilterVerdict) {
+        this.contentFilterVerdict = contentFilterVerdict;
+    }
+
+    /**
+     * Starts the check of the headers of the current message, its verdict is
+     * then awaited before the message is delivered.
+     */
+    public void startHeaderCheck() {
+        this.headerVerdict = new CompletableFuture<>();
+    }
+
+    /**
+     * Ends the check of the headers of the current message.
+     *
+     * @param rejection the reason the headers were rejected or null
+     */
+    public void endHeaderCheck(DataRejection rejection) {
+        var verdict = headerVerdict;
+        if (verdict != null) {
+            verdict.complete(rejection);
+        }
+    }
+
+    /**
+     * Returns the rejection of the headers of the current message or null if
+     * they were accepted or are still being checked.
+     */
+    public DataRejection getHeaderRejection() {
+        var verdict = headerVerdict;
+        return verdict == null ? null : verdict.getNow(null);
+    }
+
+    /**
+     * Returns the verdict of the check of the headers of the current message
+     * or null if it was not started.
+     */
+    public CompletionStage<DataRejection> getHeaderVerdict() {
+        return headerVerdict;
+    }
+
     public void reset() {
         smtpState.reset();
-        deliveryHandler.resetMessageState();
+        dataHash = null;
+        contentFilterVerdict = null;
+        headerVerdict = null;
+        messageHeaders = null;
+        dataObservations = Map.of();
+        resetMessageState();
+    }
+
+    /**
+     * Resets the message state of the delivery handler, if created.
+     */
+    public void resetMessageState() {
+        if (deliveryHandler != null) {
+            deliveryHandler.resetMessageState();
+        }
     }
 }
@@ -22,6 +22,8 @@ package org.mailster.smtp.core;
 import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.mina.core.buffer.BufferDataException;
 import org.apache.mina.core.buffer.IoBuffer;
@@ -38,7 +40,6 @@ public final class SMTPDecoder implements ProtocolDecoder {
 
     protected final static String TMPFILE_PREFIX = "mailsterSmtp";
     protected final static String TMPFILE_SUFFIX = ".eml";
-    private final static String CONTEXT = SMTPDecoder.class.getName() + ".context";
     private final static byte[] SMTP_CMD_DELIMITER = new byte[]{'\r', '\n'};
     private final static byte[] SMTP_DATA_DELIMITER = new byte[]{'\r', '\n', '.', '\r', '\n'};
 
@@ -93,14 +94,6 @@ public final class SMTPDecoder implements ProtocolDecoder {
         this.maxLineLength = maxLineLength;
     }
 
-    private SMTPDecoderContext getContext(IoSession session) {
-        var ctx = (SMTPDecoderContext) session.getAttribute(CONTEXT);
-        if (ctx == null) {
-            ctx = new SMTPDecoderContext(this);
-            session.setAttribute(CONTEXT, ctx);
-        }
-        return ctx;
-    }
 
     @Override
     public void finishDecode(IoSession session, ProtocolDecoderOutput out) {
@@ -108,23 +101,26 @@ public final class SMTPDecoder implements ProtocolDecoder {
 
     @Override
     public void dispose(IoSession session) throws Exception {
-        var ctx = (SMTPDecoderContext) session.getAttribute(CONTEXT);
+        var minaCtx = SMTPContext.of(session);
+        var ctx = minaCtx == null ? null : minaCtx.removeDecoderContext();
         if (ctx != null) {
             ctx.getBuffer().free();
-            ctx.closeOutputStream();
-            session.removeAttribute(CONTEXT);
+            ctx.releaseData();
         }
     }
 
     @Override
     public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-        var ctx = getContext(session);
+        // a single attribute lookup gives the whole session state
+        var minaCtx = SMTPContext.of(session);
+        var ctx = minaCtx.getDecoderContext(this);
         var matchCount = ctx.getMatchCount();
 
-        var minaCtx = (SMTPContext) session.getAttribute(SMTPConnectionHandler.CONTEXT_ATTRIBUTE);
-
         var dataMode = minaCtx.getSMTPState().isDataMode();
         ctx.setDataMode(dataMode);
+        if (dataMode) {
+            ctx.startData(minaCtx);
+        }
         var delimBuf = dataMode ? SMTP_DATA_DELIMITER : SMTP_CMD_DELIMITER;
 
         // Try to find a match
@@ -135,6 +131,9 @@ public final class SMTPDecoder implements ProtocolDecoder {
             matchCount = 0;
         }
 
+        // consecutive RCPT lines, emitted together
+        List<String> recipients = null;
+
         while (in.remaining() > 0) {
             var b = in.get();
             if (delimBuf[matchCount] == b) {
@@ -146,6 +145,9 @@ public final class SMTPDecoder implements ProtocolDecoder {
                     in.position(oldPos);
 
                     ctx.write(in);
+                    if (dataMode) {
+                        checkHeaders(minaCtx, ctx, out);
+                    }
 
                     in.limit(oldLimit);
                     in.position(pos);
@@ -157,10 +159,29 @@ public final class SMTPDecoder implements ProtocolDecoder {
                         try {
                             if (dataMode) {
                                 delimBuf = SMTP_CMD_DELIMITER;
-                                out.write(ctx.getNewInputStream());
+                                if (ctx.getRejection() != null) {
+                                    out.write(ctx.getRejection());
+                                } else {
+                                    var data = ctx.getNewInputStream();
+                                    minaCtx.setDataHash(ctx.getDataHash());
+                                    minaCtx.setMessageHeaders(ctx.getMessageHeaders());
+                                    minaCtx.setDataObservations(ctx.getDataObservations());
+                                    minaCtx.setContentFilterVerdict(ctx.getContentFilterVerdict());
+                                    out.write(data);
+                                }
                             } else {
                                 buf.limit(buf.limit() - matchCount);
-                                out.write(buf.getString(ctx.getDecoder()));
+                                var line = buf.getString(ctx.getDecoder());
+                                if (isRecipientLine(line)) {
+                                    if (recipients == null) {
+                                        recipients = new ArrayList<>();
+                                    }
+                                    recipients.add(line);
+                                } else {
+                                    flushRecipients(recipients, out);
+                                    recipients = null;
+                                    out.write(line);
+                                }
                             }
                         } catch (IOException ioex) {
                             throw new CharacterCodingException();
@@ -171,6 +192,7 @@ public final class SMTPDecoder implements ProtocolDecoder {
                     } else {
                         var msg = "Line is too long: " + ctx.getOverflowPosition();
                         ctx.reset();
+                        flushRecipients(recipients, out);
                         throw new BufferDataException(msg);
                     }
 
@@ -184,13 +206,54 @@ public final class SMTPDecoder implements ProtocolDecoder {
             }
         }
 
+        flushRecipients(recipients, out);
+
         // Put remainder to buf.
         in.position(oldPos);
         ctx.write(in);
+        if (dataMode) {
+            checkHeaders(minaCtx, ctx, out);
+        }
 
         ctx.setMatchCount(matchCount);
     }
 
+    /**
+     * Emits the header index of the message as soon as its header block was
+     * received, for the delivery handler to check it on a worker thread, and
+     * discards the rest of the message once it was rejected.
+     */
+    private static void checkHeaders(SMTPContext minaCtx, SMTPDecoderContext ctx, ProtocolDecoderOutput out)
+            throws IOException {
+        var headers = ctx.takeEndedHeaders();
+        if (headers != null) {
+            minaCtx.setMessageHeaders(headers);
+            minaCtx.startHeaderCheck();
+            out.write(new HeaderBlock(headers));
+        }
+
+        var rejection = minaCtx.getHeaderRejection();
+        if (rejection != null && ctx.getRejection() == null) {
+            ctx.reject(rejection);
+        }
+    }
+
+    private static boolean isRecipientLine(String line) {
+        return line.regionMatches(true, 0, "RCPT", 0, 4)
+                && (line.length() == 4 || Character.isWhitespace(line.charAt(4)));
+    }
+
+    private static void flushRecipients(List<String> recipients, ProtocolDecoderOutput out) {
+        if (recipients == null) {
+            return;
+        }
+        if (recipients.size() == 1) {
+            out.write(recipients.get(0));
+        } else {
+            out.write(new RecipientBatch(List.copyOf(recipients)));
+        }
+    }
+
     public Charset getCharset() {
         return charset;
     }
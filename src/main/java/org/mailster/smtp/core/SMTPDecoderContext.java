@@ -5,6 +5,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.CharsetDecoder;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.mailster.smtp.util.SharedTmpFileInputStream;
@@ -23,13 +27,25 @@ public class SMTPDecoderContext {
 
     private static final Logger LOG = LoggerFactory.getLogger(SMTPDecoderContext.class);
 
-    private final CharsetDecoder charsetDecoder;
+    /**
+     * Enough for most command lines, the buffer grows as needed and is
+     * trimmed back once a line or message is done.
+     */
+    private static final int INITIAL_CAPACITY = 128;
+
+    private CharsetDecoder charsetDecoder;
     private IoBuffer buf;
     private int matchCount = 0;
     private int overflowPosition = 0;
     private boolean thresholdReached = false;
     private boolean dataMode = false;
 
+    /**
+     * True once the settings of the current message were read, until it
+     * ends.
+     */
+    private boolean started;
+
     /**
      * If we switch to file output, this is the file.
      */
@@ -40,12 +56,55 @@ public class SMTPDecoderContext {
      */
     private FileOutputStream stream;
 
+    /**
+     * The spool the current message is written to once over the threshold
+     * and, if the current message was rejected, the reply to send once it is
+     * fully received.
+     */
+    private SpoolManager spool;
+    private DataRejection rejection;
+
+    /**
+     * The memory budget the buffered data of the current message is
+     * reserved from, if any, and the number of bytes reserved.
+     */
+    private DataMemoryBudget memoryBudget;
+    private long reservedBytes;
+
     private SMTPDecoder decoder;
 
+    /**
+     * The deduplication index and running hash of the current message, if
+     * deduplication is enabled.
+     */
+    private DataDeduplicator deduplicator;
+    private MessageDigest digest;
+    private String dataHash;
+
+    /**
+     * The observers and content filter session of the current message, if
+     * any, and the results of the last message emitted.
+     */
+    private DataObservers observers;
+    private Map<String, String> dataObservations = Map.of();
+    private CompletionStage<DataRejection> contentFilterVerdict;
+
+    /**
+     * The header index of the current message, if enabled, and of the last
+     * message emitted.
+     */
+    private HeaderScanner headerScanner;
+    private MessageHeaders messageHeaders;
+
+    /**
+     * The header index of the current message once its header block ended,
+     * until taken by the decoder.
+     */
+    private MessageHeaders endedHeaders;
+
     protected SMTPDecoderContext(SMTPDecoder decoder) {
         this.decoder = decoder;
-        charsetDecoder = decoder.getCharset().newDecoder();
-        buf = IoBuffer.allocate(decoder.getMaxLineLength()).setAutoExpand(true);
+        buf = IoBuffer.allocate(INITIAL_CAPACITY).setAutoExpand(true);
     }
 
     private static byte[] asArray(IoBuffer b) {
@@ -57,6 +116,9 @@ public class SMTPDecoderContext {
     }
 
     protected CharsetDecoder getDecoder() {
+        if (charsetDecoder == null) {
+            charsetDecoder = decoder.getCharset().newDecoder();
+        }
         return charsetDecoder;
     }
 
@@ -65,8 +127,8 @@ public class SMTPDecoderContext {
     }
 
     private void compactBuffer() {
-        if (dataMode && buf.capacity() > decoder.getMaxLineLength()) {
-            buf = IoBuffer.allocate(decoder.getMaxLineLength()).setAutoExpand(true);
+        if (buf.capacity() > decoder.getMaxLineLength()) {
+            buf = IoBuffer.allocate(INITIAL_CAPACITY).setAutoExpand(true);
         } else {
             buf.clear();
         }
@@ -87,12 +149,19 @@ public class SMTPDecoderContext {
     protected void reset() throws IOException {
         overflowPosition = 0;
         matchCount = 0;
-        charsetDecoder.reset();
-        if (thresholdReached) {
-            thresholdReached = false;
-            compactBuffer();
-            closeOutputStream();
+        digest = null;
+        deduplicator = null;
+        headerScanner = null;
+        endedHeaders = null;
+        rejection = null;
+        started = false;
+        if (charsetDecoder != null) {
+            charsetDecoder.reset();
         }
+        thresholdReached = false;
+        releaseData();
+        // don't keep a message sized buffer for the rest of the session
+        compactBuffer();
     }
 
     protected void write(IoBuffer b) throws IOException {
@@ -103,19 +172,168 @@ public class SMTPDecoderContext {
         }
     }
 
+    /**
+     * Reads the spool, memory, header index, deduplication, observer and
+     * content filter settings for the message about to be received. Ignored
+     * once the message has started, since the hash, the index, the observers
+     * and the filter must cover all of it, and once it was rejected.
+     */
+    protected void startData(SMTPContext minaCtx) {
+        if (started || rejection != null) {
+            return;
+        }
+        started = true;
+        var config = minaCtx.getSMTPServerConfig();
+        this.spool = config.getSpoolManager();
+        this.memoryBudget = config.getDataMemoryBudget();
+
+        var maxHeaderSize = config.getMaxIndexedHeaderSize();
+        if (maxHeaderSize > 0) {
+            this.headerScanner = new HeaderScanner(maxHeaderSize, true);
+        }
+
+        var deduplicator = config.getDataDeduplicator();
+        if (deduplicator != null) {
+            this.deduplicator = deduplicator;
+            this.digest = DataDeduplicator.newDigest();
+        }
+
+        var observers = config.getDataObservers();
+        var filter = config.getContentFilter();
+        if (!observers.isEmpty() || filter != null) {
+            ContentFilter.Session session = null;
+            if (filter != null) {
+                var state = minaCtx.getSMTPState();
+                session = filter.start(new ContentFilter.Envelope(minaCtx.getRemoteAddress(),
+                        state.getHeloName(), state.getSender(), List.copyOf(state.getRecipients())));
+            }
+            this.observers = new DataObservers(observers, session);
+        }
+    }
+
+    /**
+     * Returns the reason the current message was rejected, e.g. because it
+     * exceeded the spool quota, or null. Its data is discarded up to the end
+     * of the message.
+     */
+    protected DataRejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Rejects the current message: the data received so far is released
+     * and the rest is discarded.
+     */
+    protected void reject(DataRejection rejection) throws IOException {
+        this.rejection = rejection;
+        digest = null;
+        headerScanner = null;
+        endedHeaders = null;
+        releaseData();
+        buf.clear();
+    }
+
+    /**
+     * Returns the header index of the current message once, as soon as its
+     * header block ended, or null.
+     */
+    protected MessageHeaders takeEndedHeaders() {
+        var headers = endedHeaders;
+        endedHeaders = null;
+        return headers;
+    }
+
+    /**
+     * Returns the hash of the last message emitted or null if it was not
+     * deduplicated.
+     */
+    protected String getDataHash() {
+        return dataHash;
+    }
+
+    /**
+     * Returns the results of the data observers of the last message emitted
+     * by name, empty if there are none.
+     */
+    protected Map<String, String> getDataObservations() {
+        return dataObservations;
+    }
+
+    /**
+     * Returns the verdict of the content filter on the last message emitted
+     * or null if there is no filter.
+     */
+    protected CompletionStage<DataRejection> getContentFilterVerdict() {
+        return contentFilterVerdict;
+    }
+
+    /**
+     * Returns the header index of the last message emitted or null if
+     * disabled.
+     */
+    protected MessageHeaders getMessageHeaders() {
+        return messageHeaders;
+    }
+
     private void write(byte[] src) throws IOException {
-        var predicted = this.thresholdReached ? 0 : this.buf.position() + src.length;
+        if (rejection != null) {
+            return;
+        }
+        if (digest != null) {
+            digest.update(src);
+        }
+        if (observers != null) {
+            observers.update(src);
+        }
+        if (headerScanner != null && !headerScanner.isDone()) {
+            headerScanner.feed(src, 0, src.length);
+            if (headerScanner.isDone()) {
+                endedHeaders = headerScanner.toHeaders();
+            }
+        }
 
-        // Checks whether reading count bytes would cross the limit.
-        if (this.thresholdReached || predicted > decoder.getThreshold()) {
-            // If previously hit, then use the stream.
-            if (!this.thresholdReached) {
-                thresholdReached();
+        if (!this.thresholdReached) {
+            // Checks whether reading count bytes would cross the limit or
+            // exceed what the memory budget currently allows.
+            if (this.buf.position() + src.length > decoder.getThreshold()) {
+                if (memoryBudget != null) {
+                    memoryBudget.thresholdSpill();
+                }
+            } else if (reserveMemory(src.length)) {
+                this.buf.put(src);
+                return;
+            }
+            thresholdReached();
+            if (rejection != null) {
+                // the buffered data already exceeded the spool quota
+                return;
             }
+        }
 
+        if (reserve(src.length)) {
             this.stream.write(src);
-        } else {
-            this.buf.put(src);
+        }
+    }
+
+    private boolean reserveMemory(int length) {
+        if (memoryBudget == null) {
+            return true;
+        }
+        if (memoryBudget.reserve(reservedBytes, length, decoder.getThreshold())) {
+            reservedBytes += length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives back the memory reserved for the buffered data of the current
+     * message.
+     */
+    private void releaseMemory() {
+        if (reservedBytes != 0) {
+            memoryBudget.release(reservedBytes);
+            reservedBytes = 0;
         }
     }
 
@@ -124,29 +342,92 @@ public class SMTPDecoderContext {
      * won't be called again for the current data transfer.
      */
     private void thresholdReached() throws IOException {
-        this.outFile = File.createTempFile(SMTPDecoder.TMPFILE_PREFIX, SMTPDecoder.TMPFILE_SUFFIX);
+        this.outFile = spool.acquire();
 
         LOG.debug("Writing message to file : {}", outFile.getAbsolutePath());
 
         this.stream = new FileOutputStream(this.outFile);
-        this.buf.flip();
-        this.stream.write(asArray(this.buf));
         this.thresholdReached = true;
+        this.buf.flip();
+        if (reserve(this.buf.remaining())) {
+            this.stream.write(asArray(this.buf));
+            LOG.debug("ByteBuffer written to stream");
+        }
         this.buf.clear();
-        LOG.debug("ByteBuffer written to stream");
+        releaseMemory();
+    }
+
+    /**
+     * Accounts for bytes about to be spooled, rejecting the message and
+     * releasing its file if they exceed the spool quota.
+     */
+    private boolean reserve(int length) throws IOException {
+        // the spool files indexed for deduplication give way to new messages
+        if (spool.reserve(length, deduplicator == null ? null : deduplicator::evictSpooled)) {
+            return true;
+        }
+        LOG.debug("Spool quota exceeded, discarding message");
+        reject(DataRejection.SPOOL_FULL);
+        return false;
     }
 
     protected void closeOutputStream() throws IOException {
         if (this.stream != null) {
             this.stream.flush();
             this.stream.close();
+            this.stream = null;
             LOG.debug("Temp file writing achieved - closing stream");
         }
     }
 
+    /**
+     * Releases the memory reserved for the current message, gives up its
+     * scan, closes its spool file and gives it back to the spool unless it
+     * was already handed to a stream.
+     */
+    protected void releaseData() throws IOException {
+        if (observers != null) {
+            observers.abort();
+            observers = null;
+        }
+        releaseMemory();
+        closeOutputStream();
+        if (this.outFile != null) {
+            spool.release(this.outFile);
+            this.outFile = null;
+        }
+    }
+
     protected InputStream getNewInputStream() throws IOException {
+        dataHash = null;
+        messageHeaders = headerScanner == null ? null : headerScanner.toHeaders();
+        headerScanner = null;
+        dataObservations = observers == null ? Map.of() : observers.finish();
+        contentFilterVerdict = observers == null ? null : observers.endFilter();
+        observers = null;
+        File file = null;
         if (this.thresholdReached) {
-            return new SharedTmpFileInputStream(this.outFile);
+            closeOutputStream();
+            file = this.outFile;
+            this.outFile = null;
+        }
+
+        if (digest != null) {
+            var dedup = deduplicator;
+            dataHash = DataDeduplicator.toHex(digest);
+            digest = null;
+            deduplicator = null;
+            if (file != null) {
+                return dedup.share(dataHash, file, spool);
+            }
+            // the index reserves the data on its own
+            var data = asArray(this.buf);
+            releaseMemory();
+            return dedup.share(dataHash, data, memoryBudget);
+        }
+
+        if (file != null) {
+            return new SharedTmpFileInputStream(file, spool::release);
         } else {
             return new SharedByteArrayInputStream(asArray(this.buf));
         }
@@ -1,5 +1,9 @@
 package org.mailster.smtp.core;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Describes the state of an SMTP session.
  *
@@ -18,6 +22,13 @@ public class SMTPState {
     private boolean hasSender = false;
     private int recipientCount = 0;
 
+    /**
+     * The envelope of the current message, kept for the content filter.
+     */
+    private String heloName;
+    private String sender;
+    private List<String> recipients;
+
     public SMTPState() {
     }
 
@@ -45,6 +56,33 @@ public class SMTPState {
         this.hasSeenHelo = hasSeenHelo;
     }
 
+    /**
+     * Returns the host name given by the client in its HELO or EHLO command
+     * or null.
+     */
+    public String getHeloName() {
+        return this.heloName;
+    }
+
+    public void setHeloName(String heloName) {
+        this.heloName = heloName;
+    }
+
+    /**
+     * Returns the sender of the current message or null if there is none.
+     */
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * Records the sender of the current message.
+     */
+    public void setSender(String sender) {
+        this.sender = sender;
+        this.hasSender = true;
+    }
+
     public boolean isDataMode() {
         return this.dataMode;
     }
@@ -57,6 +95,24 @@ public class SMTPState {
         this.recipientCount++;
     }
 
+    /**
+     * Records an accepted recipient of the current message.
+     */
+    public void addRecipient(String recipient) {
+        if (this.recipients == null) {
+            this.recipients = new ArrayList<>(4);
+        }
+        this.recipients.add(recipient);
+        this.recipientCount++;
+    }
+
+    /**
+     * Returns the accepted recipients of the current message.
+     */
+    public List<String> getRecipients() {
+        return this.recipients == null ? Collections.emptyList() : Collections.unmodifiableList(this.recipients);
+    }
+
     public int getRecipientCount() {
         return this.recipientCount;
     }
@@ -98,6 +154,11 @@ public class SMTPState {
         this.dataMode = false;
         this.active = true;
         this.hasSeenHelo = hasSeenHelo;
+        if (!hasSeenHelo) {
+            this.heloName = null;
+        }
         this.recipientCount = 0;
+        this.sender = null;
+        this.recipients = null;
     }
 }
@@ -0,0 +1,96 @@
+package org.mailster.smtp.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the work of a session handed off to the worker pool, one task at a
+ * time and in submission order, so that replies keep the order of the
+ * pipelined commands even though cheap ones run on the I/O thread.
+ * <p>
+ * Tasks are only submitted by the I/O processor thread of the session, and
+ * once a task is pending all the following ones are queued behind it. A task
+ * leaving work running asynchronously can hold the queue until it is done.
+ */
+final class SessionTaskQueue {
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>(4);
+    private boolean running;
+    private Executor executor;
+    private CompletionStage<?> hold;
+
+    /**
+     * Returns true if no task is pending or running, in which case work can
+     * be done inline without overtaking any.
+     */
+    synchronized boolean isIdle() {
+        return !running;
+    }
+
+    /**
+     * Keeps the following tasks queued until the stage completes. Called by
+     * the running task.
+     */
+    synchronized void holdUntil(CompletionStage<?> stage) {
+        hold = stage;
+    }
+
+    void submit(Runnable task, Executor executor) {
+        synchronized (this) {
+            tasks.add(task);
+            this.executor = executor;
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                tasks.clear();
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            task.run();
+
+            CompletionStage<?> stage;
+            synchronized (this) {
+                stage = hold;
+                hold = null;
+            }
+            if (stage != null) {
+                // still running, resumed by the thread completing the stage
+                stage.whenComplete((r, t) -> resume());
+                return;
+            }
+        }
+    }
+
+    private void resume() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                tasks.clear();
+                running = false;
+            }
+        }
+    }
+}
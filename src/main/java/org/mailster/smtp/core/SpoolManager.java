@@ -0,0 +1,297 @@
+package org.mailster.smtp.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the files messages larger than the data deferred size are spooled
+ * to, shared by all the sessions of a server.
+ * <p>
+ * Spool files are created in a configurable directory, which can be put on
+ * a fast device or on a memory backed file system. Released files are
+ * truncated and kept in a pool for the next messages instead of being
+ * deleted, so that the spool directory metadata is not updated for every
+ * large message. The pool is filled when the server starts and drained when
+ * it stops; files released while it is stopped are deleted.
+ * <p>
+ * The bytes currently spooled can be bounded by a quota. A message that
+ * would exceed it is rejected with a 452 reply once fully received. When the
+ * directory is on a memory backed file system (tmpfs, ramfs) and no quota
+ * is set, the quota defaults to half of the file system size since spooled
+ * data then competes with the heap for memory.
+ */
+public class SpoolManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolManager.class);
+
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final Set<String> MEMORY_FILE_SYSTEMS = Set.of("tmpfs", "ramfs");
+
+    private final Path directory;
+    private final int poolSize;
+    private volatile boolean memoryBacked;
+    private volatile long quota;
+
+    private final ConcurrentLinkedQueue<File> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private volatile boolean started;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private final AtomicInteger filesInUse = new AtomicInteger();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Spools to the default temporary directory without quota.
+     */
+    public SpoolManager() {
+        this(Path.of(System.getProperty("java.io.tmpdir")), DEFAULT_POOL_SIZE, -1);
+    }
+
+    /**
+     * @param directory the directory to create the spool files in
+     * @param poolSize  the number of released files kept for reuse
+     * @param quota     the maximum number of bytes spooled at once, 0 or
+     *                  negative for no limit
+     */
+    public SpoolManager(Path directory, int poolSize, long quota) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("Pool size must not be negative");
+        }
+        this.directory = directory;
+        this.poolSize = poolSize;
+        this.quota = quota;
+        this.memoryBacked = isMemoryBacked(directory);
+    }
+
+    private static boolean isMemoryBacked(Path directory) {
+        try {
+            return MEMORY_FILE_SYSTEMS.contains(Files.getFileStore(directory).type());
+        } catch (IOException e) {
+            LOG.debug("Unable to determine the file system of {}", directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates the spool directory if needed and fills the pool. Called when
+     * the server starts.
+     */
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        memoryBacked = isMemoryBacked(directory);
+        if (memoryBacked && quota <= 0) {
+            quota = Files.getFileStore(directory).getTotalSpace() / 2;
+            LOG.info("Spool directory {} is memory backed, quota set to {} bytes", directory, quota);
+        }
+
+        started = true;
+        while (pooled.get() < poolSize) {
+            pool.offer(createFile());
+            pooled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes the pooled files. Files still in use are deleted when released.
+     */
+    public void stop() {
+        started = false;
+        File file;
+        while ((file = pool.poll()) != null) {
+            pooled.decrementAndGet();
+            delete(file);
+        }
+    }
+
+    private File createFile() throws IOException {
+        return Files.createTempFile(directory, SMTPDecoder.TMPFILE_PREFIX, SMTPDecoder.TMPFILE_SUFFIX).toFile();
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            LOG.debug("Unable to delete spool file {}", file);
+        }
+    }
+
+    /**
+     * Returns an empty spool file, from the pool if possible.
+     */
+    public File acquire() throws IOException {
+        var file = pool.poll();
+        if (file != null) {
+            pooled.decrementAndGet();
+            reused.increment();
+        } else {
+            file = createFile();
+        }
+        acquired.increment();
+        filesInUse.incrementAndGet();
+        return file;
+    }
+
+    /**
+     * Accounts for <code>length</code> more bytes about to be written to a
+     * spool file. Returns false, without accounting them, if they would
+     * exceed the quota, in which case the message must be rejected and its
+     * file released.
+     */
+    public boolean reserve(long length) {
+        return reserve(length, null);
+    }
+
+    /**
+     * Accounts for <code>length</code> more bytes about to be written to a
+     * spool file, first asking <code>reclaimer</code> to release that many
+     * bytes if they would exceed the quota. Returns false, without
+     * accounting them, if they still exceed it.
+     *
+     * @param reclaimer releases spooled data, returning false if it has
+     *                  none, or null
+     */
+    public boolean reserve(long length, LongPredicate reclaimer) {
+        var limit = quota;
+        while (true) {
+            var used = usedBytes.get();
+            if (limit > 0 && used + length > limit) {
+                if (reclaimer != null && reclaimer.test(length)) {
+                    reclaimer = null;
+                    continue;
+                }
+                rejected.increment();
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + length)) {
+                peakBytes.accumulateAndGet(used + length, Math::max);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a spool file once its data is not needed anymore. It is
+     * truncated and pooled, or deleted if the pool is full or stopped.
+     */
+    public void release(File file) {
+        filesInUse.decrementAndGet();
+        usedBytes.addAndGet(-file.length());
+
+        if (started) {
+            if (pooled.incrementAndGet() <= poolSize) {
+                try (var raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(0);
+                    pool.offer(file);
+                    return;
+                } catch (IOException e) {
+                    LOG.debug("Unable to truncate spool file {}", file, e);
+                }
+            }
+            pooled.decrementAndGet();
+        }
+        delete(file);
+    }
+
+    /**
+     * Returns true if no more data can be spooled.
+     */
+    public boolean isFull() {
+        var limit = quota;
+        return limit > 0 && usedBytes.get() >= limit;
+    }
+
+    /**
+     * Returns true if the spool directory is on a memory backed file system.
+     */
+    public boolean isMemoryBacked() {
+        return memoryBacked;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes spooled at once, 0 or negative
+     * if unlimited.
+     */
+    public long getQuota() {
+        return quota;
+    }
+
+    public void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * Returns the number of bytes currently spooled.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the highest number of bytes spooled at once.
+     */
+    public long getPeakUsedBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * Returns the number of spool files holding data.
+     */
+    public int getFilesInUse() {
+        return filesInUse.get();
+    }
+
+    /**
+     * Returns the number of empty files waiting in the pool.
+     */
+    public int getPooledFiles() {
+        return pool.size();
+    }
+
+    /**
+     * Returns the number of spool files handed out and how many of them
+     * came from the pool.
+     */
+    public long getAcquiredFiles() {
+        return acquired.sum();
+    }
+
+    public long getReusedFiles() {
+        return reused.sum();
+    }
+
+    /**
+     * Returns the number of messages rejected because of the quota.
+     */
+    public long getRejectedMessages() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s used=%d/%d, inUse=%d, pooled=%d, reused=%d/%d, rejected=%d",
+                directory, getUsedBytes(), getQuota(), getFilesInUse(), getPooledFiles(),
+                getReusedFiles(), getAcquiredFiles(), getRejectedMessages());
+    }
+}
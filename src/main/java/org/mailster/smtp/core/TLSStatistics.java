@@ -0,0 +1,88 @@
+package org.mailster.smtp.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslEvent;
+import org.apache.mina.filter.ssl.SslFilter;
+
+/**
+ * Thread safe TLS handshake counters of a server.
+ * <p>
+ * A handshake is counted when the {@link SslEvent#SECURED} event is
+ * received. Resumed handshakes are not told apart since JSSE does not expose
+ * whether a session was resumed.
+ */
+public class TLSStatistics {
+
+    private static final AttributeKey HANDSHAKE_START = new AttributeKey(TLSStatistics.class, "handshakeStart");
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    private volatile long since = System.nanoTime();
+
+    /**
+     * Marks the beginning of a handshake on the given session. Must be called
+     * before the {@link SslFilter} is inserted in the session filter chain.
+     */
+    public static void handshakeStarted(IoSession session) {
+        session.setAttribute(HANDSHAKE_START, System.nanoTime());
+    }
+
+    /**
+     * Records the handshake completed on the given session.
+     */
+    public void handshakeCompleted(IoSession session) {
+        var start = (Long) session.removeAttribute(HANDSHAKE_START);
+        if (start == null) {
+            return;
+        }
+
+        handshakes.increment();
+        handshakeNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the number of completed handshakes.
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * Returns the number of completed handshakes per second since the
+     * statistics were created or last reset.
+     */
+    public double getHandshakeRate() {
+        var elapsed = System.nanoTime() - since;
+        return elapsed <= 0 ? 0 : handshakes.sum() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Returns the average handshake duration in milliseconds, measured from
+     * the STARTTLS command, or the connection for implicit TLS, to the
+     * secured notification.
+     */
+    public double getAverageHandshakeTime() {
+        var total = handshakes.sum();
+        return total == 0 ? 0 : handshakeNanos.sum() / 1e6 / total;
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void reset() {
+        handshakes.reset();
+        handshakeNanos.reset();
+        since = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("handshakes=%d, rate=%.1f/s, avg=%.2fms",
+                getHandshakes(), getHandshakeRate(), getAverageHandshakeTime());
+    }
+}
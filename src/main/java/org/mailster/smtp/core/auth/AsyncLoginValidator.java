@@ -0,0 +1,58 @@
+package org.mailster.smtp.core.auth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non blocking variant of {@link LoginValidator}, for validators backed by a
+ * remote directory.
+ * <p>
+ * The returned stage completes normally when the credentials are valid and
+ * exceptionally, preferably with a {@link LoginFailedException}, when they
+ * are not.
+ */
+public interface AsyncLoginValidator {
+
+    CompletionStage<Void> login(final String username, final String password);
+
+    /**
+     * Adapts a blocking validator by running it on the given executor.
+     */
+    static AsyncLoginValidator of(LoginValidator validator, Executor executor) {
+        return (username, password) -> CompletableFuture.runAsync(() -> {
+            try {
+                validator.login(username, password);
+            } catch (LoginFailedException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns a {@link LoginValidator} waiting at most the given time for the
+     * verification, so that this validator can be plugged in the AUTH
+     * handlers. They run on the server worker pool, not on the I/O threads.
+     */
+    default LoginValidator toLoginValidator(long timeout, TimeUnit unit) {
+        return (username, password) -> {
+            try {
+                login(username, password).toCompletableFuture().get(timeout, unit);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof LoginFailedException) {
+                    throw (LoginFailedException) e.getCause();
+                }
+                throw new LoginFailedException("Authentication failed: " + e.getCause());
+            } catch (TimeoutException e) {
+                throw new LoginFailedException("Authentication timed out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LoginFailedException("Authentication interrupted");
+            }
+        };
+    }
+}
@@ -0,0 +1,78 @@
+package org.mailster.smtp.core.auth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe set of authentication mechanisms shared by all the sessions
+ * of a server.
+ * <p>
+ * Since handlers are stateful, the registry holds their factories and each
+ * {@link PluginAuthenticationHandler} created by {@link #create()} only
+ * instantiates the plugin of the mechanism a client selects. The mechanism
+ * index is immutable and replaced as a whole when a plugin is registered, so
+ * sessions read it without locking and never see it change under them.
+ */
+public class AuthenticationHandlerRegistry {
+
+    private volatile Index index = Index.EMPTY;
+
+    /**
+     * Registers a plugin factory. The mechanisms of the plugin are read once
+     * from a first instance; a mechanism already registered keeps its
+     * previous plugin.
+     */
+    public synchronized void register(Supplier<? extends AuthenticationHandler> plugin) {
+        index = index.with(plugin, plugin.get().getAuthenticationMechanisms());
+    }
+
+    /**
+     * Returns the immutable list of the registered mechanisms.
+     */
+    public List<String> getAuthenticationMechanisms() {
+        return index.mechanisms();
+    }
+
+    /**
+     * Returns a new handler for a session, bound to the current mechanisms.
+     */
+    public PluginAuthenticationHandler create() {
+        return new PluginAuthenticationHandler(index);
+    }
+
+    /**
+     * An immutable mechanism to plugin index. Plugins are addressed by their
+     * registration slot.
+     */
+    record Index(List<Supplier<? extends AuthenticationHandler>> plugins, List<String> mechanisms,
+            Map<String, Integer> slots) {
+
+        static final Index EMPTY = new Index(List.of(), List.of(), Map.of());
+
+        Index with(Supplier<? extends AuthenticationHandler> plugin, List<String> pluginMechanisms) {
+            var newPlugins = new ArrayList<Supplier<? extends AuthenticationHandler>>(plugins);
+            newPlugins.add(plugin);
+
+            var newMechanisms = new ArrayList<>(mechanisms);
+            var newSlots = new HashMap<>(slots);
+            for (var mechanism : pluginMechanisms) {
+                var key = mechanism.toUpperCase();
+                if (newSlots.putIfAbsent(key, plugins.size()) == null) {
+                    newMechanisms.add(key);
+                }
+            }
+            return new Index(List.copyOf(newPlugins), List.copyOf(newMechanisms), Map.copyOf(newSlots));
+        }
+
+        /**
+         * Returns the slot of a mechanism or -1 if it is not supported.
+         */
+        int slotOf(String mechanism) {
+            var slot = slots.get(mechanism);
+            return slot == null ? -1 : slot;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.mailster.smtp.core.auth;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks authentication failures per client address and per username over a
+ * sliding window and tells how to answer the next failure: right away, after
+ * a delay growing with the number of failures, or by closing the connection.
+ * <p>
+ * Only the failures of an address lead to its rejection: rejected addresses
+ * are refused before the {@link LoginValidator} is called, so brute force
+ * attempts stop consuming its capacity. The failures for a username, from
+ * any address, only delay the replies to further failures, so that nobody
+ * can lock a user out. Delayed replies are sent from a scheduler while the
+ * session reads are suspended, no worker thread sleeps.
+ * <p>
+ * Counters are lock free and unused ones are purged periodically. The
+ * scheduler thread is a daemon, call {@link #shutdown()} to stop it.
+ */
+public class AuthenticationThrottle {
+
+    /**
+     * Returned by {@link #recordFailure(String, String)} when the connection
+     * must be closed.
+     */
+    public static final long REJECT = -1;
+
+    private static final int BUCKETS = 16;
+
+    private final long slotNanos;
+    private final long origin = System.nanoTime();
+    private final int delayThreshold;
+    private final int rejectThreshold;
+
+    private volatile long baseDelay = 1000;
+    private volatile long maxDelay = 30000;
+
+    private final Map<String, SlidingWindowCounter> counters = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param window          the length of the sliding window
+     * @param unit            the unit of the window
+     * @param delayThreshold  the number of failures within the window after
+     *                        which replies are delayed
+     * @param rejectThreshold the number of failures within the window from
+     *                        which the client is rejected
+     */
+    public AuthenticationThrottle(long window, TimeUnit unit, int delayThreshold, int rejectThreshold) {
+        if (window <= 0 || delayThreshold < 0 || rejectThreshold <= delayThreshold) {
+            throw new IllegalArgumentException("window must be positive and rejectThreshold greater than delayThreshold");
+        }
+        this.slotNanos = Math.max(1, unit.toNanos(window) / BUCKETS);
+        this.delayThreshold = delayThreshold;
+        this.rejectThreshold = rejectThreshold;
+
+        scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            var thread = new Thread(r, "MailsterSMTP Auth Throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.scheduleWithFixedDelay(this::purge, slotNanos, slotNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the delay in milliseconds of the first delayed reply. It doubles
+     * with each further failure. Defaults to 1000.
+     */
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * Sets the maximum delay of a reply in milliseconds. Defaults to 30000.
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Records an authentication failure.
+     *
+     * @param address  the client address, may be null
+     * @param username the username, may be null if not known
+     * @return the delay in milliseconds before replying, 0 to reply right
+     * away or {@link #REJECT} to close the connection
+     */
+    public long recordFailure(String address, String username) {
+        var slot = currentSlot();
+        var failures = 0;
+        if (address != null) {
+            failures = counters.computeIfAbsent(addressKey(address), k -> new SlidingWindowCounter(BUCKETS))
+                    .increment(slot);
+            if (failures >= rejectThreshold) {
+                return REJECT;
+            }
+        }
+        if (username != null) {
+            failures = Math.max(failures, counters.computeIfAbsent(userKey(username),
+                    k -> new SlidingWindowCounter(BUCKETS)).increment(slot));
+        }
+
+        if (failures > delayThreshold) {
+            var shift = Math.min(failures - delayThreshold - 1, 30);
+            return Math.min(maxDelay, baseDelay << shift);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if the client address reached the rejection threshold.
+     */
+    public boolean isRejected(String address) {
+        return address != null && count(addressKey(address), currentSlot()) >= rejectThreshold;
+    }
+
+    /**
+     * Runs the given task after the given delay in milliseconds.
+     */
+    public void schedule(Runnable task, long delay) {
+        scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduler, pending delayed replies are dropped.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Returns the IP address of a socket address or null.
+     */
+    public static String addressOf(SocketAddress address) {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return address == null ? null : address.toString();
+    }
+
+    private int count(String key, long slot) {
+        var counter = counters.get(key);
+        return counter == null ? 0 : counter.sum(slot);
+    }
+
+    private long currentSlot() {
+        return (System.nanoTime() - origin) / slotNanos;
+    }
+
+    private void purge() {
+        var slot = currentSlot();
+        counters.values().removeIf(counter -> counter.sum(slot) == 0);
+    }
+
+    private static String addressKey(String address) {
+        return "ip " + address;
+    }
+
+    private static String userKey(String username) {
+        return "user " + username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,201 @@
+package org.mailster.smtp.core.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link AsyncLoginValidator} remembering successful verifications of an
+ * other validator for a limited time, so that repeat submissions from the same
+ * account skip the directory round trip.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the credentials salted with a random
+ * value drawn for each instance, passwords are never kept in memory. Failed
+ * verifications are not cached. The cache holds at most
+ * <code>maxEntries</code> entries, the least recently used being evicted
+ * first, and concurrent verifications of the same credentials share a single
+ * call to the wrapped validator.
+ * <p>
+ * NOTE: a password change or an account removal is only noticed once the
+ * cached entry expired, unless {@link #invalidate(String)} is called. The
+ * verifications still running when it is called are not cached.
+ */
+public class CachingLoginValidator implements AsyncLoginValidator {
+
+    private final AsyncLoginValidator delegate;
+    private final long ttlNanos;
+    private final byte[] salt = new byte[16];
+
+    private final Map<String, Entry> cache;
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented by each invalidation, guarded by the cache. A verification
+     * is only cached if no invalidation happened since it started.
+     */
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Caches the successful verifications of a blocking validator, which
+     * runs in the calling thread on cache misses.
+     */
+    public CachingLoginValidator(LoginValidator delegate, int maxEntries, long ttl, TimeUnit unit) {
+        this(AsyncLoginValidator.of(delegate, Runnable::run), maxEntries, ttl, unit);
+    }
+
+    public CachingLoginValidator(AsyncLoginValidator delegate, int maxEntries, long ttl, TimeUnit unit) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate argument can't be null");
+        }
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxEntries and ttl arguments must be positive");
+        }
+
+        this.delegate = delegate;
+        this.ttlNanos = unit.toNanos(ttl);
+        new SecureRandom().nextBytes(salt);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public CompletionStage<Void> login(String username, String password) {
+        var key = hash(username, password);
+        var now = System.nanoTime();
+        long started;
+
+        synchronized (cache) {
+            var entry = cache.get(key);
+            if (entry != null) {
+                if (entry.expires - now > 0) {
+                    hits.increment();
+                    return CompletableFuture.completedFuture(null);
+                }
+                cache.remove(key);
+            }
+            started = generation;
+        }
+        misses.increment();
+
+        var future = new CompletableFuture<Void>();
+        var running = pending.putIfAbsent(key, future);
+        if (running != null) {
+            return running.thenApply(v -> v);
+        }
+
+        try {
+            delegate.login(username, password).whenComplete((v, t) -> {
+                if (t == null) {
+                    synchronized (cache) {
+                        if (started == generation) {
+                            cache.put(key, new Entry(username, System.nanoTime() + ttlNanos));
+                        }
+                    }
+                }
+                pending.remove(key, future);
+                if (t == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future.thenApply(v -> v);
+    }
+
+    /**
+     * Removes the cached verifications of the given user. The running
+     * verifications, of any user, won't be cached nor joined by later logins.
+     */
+    public void invalidate(String username) {
+        synchronized (cache) {
+            generation++;
+            pending.clear();
+            cache.values().removeIf(e -> e.username.equals(username));
+        }
+    }
+
+    /**
+     * Removes all the cached verifications. The running verifications won't
+     * be cached nor joined by later logins.
+     */
+    public void clear() {
+        synchronized (cache) {
+            generation++;
+            pending.clear();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached verifications, including expired ones
+     * not yet evicted.
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Returns the number of verifications answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of verifications handed to the wrapped validator or
+     * joined to a running one.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private String hash(String username, String password) {
+        try {
+            var md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            update(md, username);
+            update(md, password);
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hashes a value prefixed with its length, since decoded credentials may
+     * contain any character, including NUL.
+     */
+    private static void update(MessageDigest md, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        md.update(ByteBuffer.allocate(4).putInt(bytes.length).flip());
+        md.update(bytes);
+    }
+
+    private record Entry(String username, long expires) {
+    }
+}
@@ -0,0 +1,81 @@
+package org.mailster.smtp.core.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread safe {@link VerifierStore} kept in memory, mostly useful for
+ * tests and small setups. Verifiers are derived once in
+ * {@link #addUser(String, String)}.
+ */
+public class InMemoryVerifierStore implements VerifierStore {
+
+    private final Map<String, ScramCredential> scramCredentials = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> cramSecrets = new ConcurrentHashMap<>();
+
+    private final int iterations;
+    private final boolean cramMD5Enabled;
+
+    /**
+     * Creates a store with {@link ScramCredential#DEFAULT_ITERATIONS} that
+     * does not keep any CRAM-MD5 secret.
+     */
+    public InMemoryVerifierStore() {
+        this(ScramCredential.DEFAULT_ITERATIONS, false);
+    }
+
+    /**
+     * @param iterations     the PBKDF2 iteration count of new verifiers
+     * @param cramMD5Enabled whether to keep the password equivalent secret
+     *                       required by CRAM-MD5
+     */
+    public InMemoryVerifierStore(int iterations, boolean cramMD5Enabled) {
+        this.iterations = iterations;
+        this.cramMD5Enabled = cramMD5Enabled;
+    }
+
+    /**
+     * Adds or replaces a user.
+     */
+    public void addUser(String username, String password) {
+        scramCredentials.put(username, ScramCredential.create(password, iterations));
+        if (cramMD5Enabled) {
+            cramSecrets.put(username, password.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Adds or replaces a user whose verifier was computed elsewhere.
+     */
+    public void addUser(String username, ScramCredential credential) {
+        scramCredentials.put(username, credential);
+        cramSecrets.remove(username);
+    }
+
+    public void removeUser(String username) {
+        scramCredentials.remove(username);
+        cramSecrets.remove(username);
+    }
+
+    @Override
+    public ScramCredential getScramCredential(String username) {
+        return scramCredentials.get(username);
+    }
+
+    @Override
+    public int getScramIterations() {
+        return iterations;
+    }
+
+    @Override
+    public boolean supportsCramMD5() {
+        return cramMD5Enabled;
+    }
+
+    @Override
+    public byte[] getCramMD5Secret(String username) {
+        var secret = cramSecrets.get(username);
+        return secret == null ? null : secret.clone();
+    }
+}
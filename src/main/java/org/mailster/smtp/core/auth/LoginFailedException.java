@@ -11,10 +11,27 @@ public class LoginFailedException extends Exception {
     private static final long serialVersionUID = -2568432389605367270L;
 
     public LoginFailedException() {
-        super("Authentication failed");
+        this("Authentication failed");
     }
 
+    /**
+     * The username whose authentication failed, if known.
+     */
+    private final String username;
+
     public LoginFailedException(String msg) {
+        this(msg, null);
+    }
+
+    public LoginFailedException(String msg, String username) {
         super(msg);
+        this.username = username;
+    }
+
+    /**
+     * Returns the username whose authentication failed or null if unknown.
+     */
+    public String getUsername() {
+        return username;
     }
 }
@@ -1,6 +1,8 @@
 package org.mailster.smtp.core.auth;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -10,33 +12,43 @@ import org.mailster.smtp.core.SMTPContext;
  * This handler makes it possible to sum the capabilities of two or more handlers types.<br>
  * Hence, you can design a single handler for each authentication mechanism and decide how many
  * authentication mechanisms to support by simply plugging them here.
+ * <p>
+ * Mechanisms are looked up in an immutable index rebuilt only when plugins change, which may be
+ * shared across sessions through an {@link AuthenticationHandlerRegistry}.
  *
  * @author Marco Trevisan &lt;mrctrevisan@yahoo.it&gt;
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  */
 public class PluginAuthenticationHandler implements AuthenticationHandler {
 
-    private List<AuthenticationHandler> plugins;
+    private AuthenticationHandlerRegistry.Index index;
+
+    /**
+     * The plugins of this session, instantiated on first use.
+     */
+    private AuthenticationHandler[] instances;
 
     private AuthenticationHandler activeHandler;
 
     public PluginAuthenticationHandler() {
-        this.plugins = new ArrayList<>();
+        this(AuthenticationHandlerRegistry.Index.EMPTY);
+    }
+
+    PluginAuthenticationHandler(AuthenticationHandlerRegistry.Index index) {
+        this.index = index;
+        this.instances = new AuthenticationHandler[index.plugins().size()];
     }
 
     @Override
     public List<String> getAuthenticationMechanisms() {
-        List<String> ret = new ArrayList<>();
-        for (var plugin : plugins) {
-            ret.addAll(plugin.getAuthenticationMechanisms());
-        }
-        return ret;
+        return index.mechanisms();
     }
 
     @Override
     public boolean auth(String clientInput, StringBuilder response, SMTPContext ctx) throws LoginFailedException {
         var stk = new StringTokenizer(clientInput);
-        if (stk.nextToken().equalsIgnoreCase("AUTH")) {
+        // the last response of a challenge may be an empty line
+        if (stk.hasMoreTokens() && stk.nextToken().equalsIgnoreCase("AUTH")) {
             resetState();
             activateHandler(stk.nextToken().toUpperCase());
         }
@@ -52,24 +64,45 @@ public class PluginAuthenticationHandler implements AuthenticationHandler {
     }
 
     private void activateHandler(final String mechanism) {
-        for (var plugin : plugins) {
-            if (plugin.getAuthenticationMechanisms().contains(mechanism)) {
-                setActiveHandler(plugin);
-                return;
-            }
+        var slot = index.slotOf(mechanism);
+        setActiveHandler(slot < 0 ? null : plugin(slot));
+    }
+
+    private AuthenticationHandler plugin(int slot) {
+        var plugin = instances[slot];
+        if (plugin == null) {
+            plugin = index.plugins().get(slot).get();
+            instances[slot] = plugin;
         }
+        return plugin;
     }
 
+    /**
+     * Returns an unmodifiable snapshot of the plugins, use
+     * {@link #addPlugin(AuthenticationHandler)} or {@link #setPlugins(List)}
+     * to change them.
+     */
     public List<AuthenticationHandler> getPlugins() {
-        return plugins;
+        var ret = new ArrayList<AuthenticationHandler>(instances.length);
+        for (var i = 0; i < instances.length; i++) {
+            ret.add(plugin(i));
+        }
+        return Collections.unmodifiableList(ret);
     }
 
     public void setPlugins(List<AuthenticationHandler> plugins) {
-        this.plugins = plugins;
+        resetState();
+        this.index = AuthenticationHandlerRegistry.Index.EMPTY;
+        this.instances = new AuthenticationHandler[0];
+        for (var plugin : plugins) {
+            addPlugin(plugin);
+        }
     }
 
     public void addPlugin(AuthenticationHandler plugin) {
-        plugins.add(plugin);
+        index = index.with(() -> plugin, plugin.getAuthenticationMechanisms());
+        instances = Arrays.copyOf(instances, instances.length + 1);
+        instances[instances.length - 1] = plugin;
     }
 
     private AuthenticationHandler getActiveHandler() {
@@ -0,0 +1,151 @@
+package org.mailster.smtp.core.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.Normalizer;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The SCRAM-SHA-256 verifier of a user as defined by RFC 5802 and RFC 7677:
+ * the salt and iteration count given to the client along with the stored and
+ * server keys derived from the password.
+ * <p>
+ * The password itself cannot be recovered from these values, yet the stored
+ * key must be kept secret as it allows to impersonate the server.
+ */
+public final class ScramCredential {
+
+    /**
+     * The minimum iteration count recommended by RFC 7677.
+     */
+    public static final int DEFAULT_ITERATIONS = 4096;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] storedKey;
+    private final byte[] serverKey;
+
+    public ScramCredential(byte[] salt, int iterations, byte[] storedKey, byte[] serverKey) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iteration count must be positive");
+        }
+        this.salt = salt.clone();
+        this.iterations = iterations;
+        this.storedKey = storedKey.clone();
+        this.serverKey = serverKey.clone();
+    }
+
+    /**
+     * Derives the verifier of a password with a random salt and
+     * {@link #DEFAULT_ITERATIONS}.
+     */
+    public static ScramCredential create(String password) {
+        return create(password, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Derives the verifier of a password with a random salt. This runs
+     * PBKDF2 and is meant to be called when the password is set, not when a
+     * user logs in.
+     */
+    public static ScramCredential create(String password, int iterations) {
+        var salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        return create(password, salt, iterations);
+    }
+
+    /**
+     * Derives the verifier of a password with the given salt.
+     */
+    public static ScramCredential create(String password, byte[] salt, int iterations) {
+        var saltedPassword = saltedPassword(password, salt, iterations);
+        return new ScramCredential(salt, iterations, sha256(hmac(saltedPassword, "Client Key")),
+                hmac(saltedPassword, "Server Key"));
+    }
+
+    /**
+     * Returns the PBKDF2-HMAC-SHA-256 derivation of the password. The
+     * password is normalized with NFKC, which matches SASLprep for the
+     * printable characters used in practice.
+     */
+    public static byte[] saltedPassword(String password, byte[] salt, int iterations) {
+        var chars = Normalizer.normalize(password, Normalizer.Form.NFKC).toCharArray();
+        try {
+            var factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            return factory.generateSecret(new PBEKeySpec(chars, salt, iterations, 256)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] getStoredKey() {
+        return storedKey.clone();
+    }
+
+    public byte[] getServerKey() {
+        return serverKey.clone();
+    }
+
+    static byte[] hmac(byte[] key, String data) {
+        return hmac(key, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks a client proof against this verifier and returns the server
+     * signature to send back or null if the proof is wrong.
+     *
+     * @param authMessage the concatenation of the client-first-bare,
+     *                    server-first and client-final-without-proof messages
+     * @param clientProof the proof sent by the client
+     */
+    public byte[] verify(String authMessage, byte[] clientProof) {
+        var message = authMessage.getBytes(StandardCharsets.UTF_8);
+        var clientSignature = hmac(storedKey, message);
+        if (clientProof == null || clientProof.length != clientSignature.length) {
+            return null;
+        }
+
+        var clientKey = new byte[clientSignature.length];
+        for (var i = 0; i < clientKey.length; i++) {
+            clientKey[i] = (byte) (clientProof[i] ^ clientSignature[i]);
+        }
+        if (!MessageDigest.isEqual(sha256(clientKey), storedKey)) {
+            return null;
+        }
+        return hmac(serverKey, message);
+    }
+}
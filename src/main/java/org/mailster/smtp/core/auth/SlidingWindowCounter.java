@@ -0,0 +1,57 @@
+package org.mailster.smtp.core.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free counter of the events of the last <code>n</code> time slots.
+ * <p>
+ * Each bucket packs the slot it belongs to in its upper bits and the count of
+ * the slot in its lower {@value #COUNT_BITS} bits, so that a bucket is
+ * recycled for a new slot with a single compare and set.
+ */
+final class SlidingWindowCounter {
+
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final AtomicLongArray buckets;
+
+    SlidingWindowCounter(int size) {
+        buckets = new AtomicLongArray(size);
+    }
+
+    /**
+     * Counts an event in the given slot.
+     *
+     * @return the number of events of the window ending with this slot
+     */
+    int increment(long slot) {
+        var idx = (int) (slot % buckets.length());
+        long current;
+        long next;
+        do {
+            current = buckets.get(idx);
+            if (current >>> COUNT_BITS == slot) {
+                next = (current & COUNT_MASK) == COUNT_MASK ? current : current + 1;
+            } else {
+                next = (slot << COUNT_BITS) | 1;
+            }
+        } while (!buckets.compareAndSet(idx, current, next));
+        return sum(slot);
+    }
+
+    /**
+     * Returns the number of events of the window ending with the given slot.
+     */
+    int sum(long slot) {
+        var total = 0;
+        for (var i = 0; i < buckets.length(); i++) {
+            var value = buckets.get(i);
+            var age = slot - (value >>> COUNT_BITS);
+            if (age >= 0 && age < buckets.length()) {
+                total += (int) (value & COUNT_MASK);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,49 @@
+package org.mailster.smtp.core.auth;
+
+/**
+ * The lookup interface of the challenge-response authentication mechanisms.
+ * <p>
+ * Unlike a {@link LoginValidator}, a store never sees the password of a
+ * login attempt: it only returns what was computed when the password was
+ * provisioned, so that the expensive key derivation is never done while a
+ * client waits.
+ *
+ * @see InMemoryVerifierStore
+ */
+public interface VerifierStore {
+
+    /**
+     * Returns the SCRAM-SHA-256 verifier of the given user or null if the
+     * user is unknown.
+     */
+    ScramCredential getScramCredential(String username);
+
+    /**
+     * Returns the PBKDF2 iteration count of the SCRAM-SHA-256 verifiers of
+     * the store. Clients logging in as an unknown user are given the same
+     * count, so that it does not tell whether the user exists. Defaults to
+     * {@link ScramCredential#DEFAULT_ITERATIONS}.
+     */
+    default int getScramIterations() {
+        return ScramCredential.DEFAULT_ITERATIONS;
+    }
+
+    /**
+     * Returns the CRAM-MD5 shared secret of the given user or null if the
+     * user is unknown or may not use CRAM-MD5.
+     * <p>
+     * Beware that this secret is equivalent to the password: anybody who
+     * reads it can log in.
+     */
+    default byte[] getCramMD5Secret(String username) {
+        return null;
+    }
+
+    /**
+     * Returns true if the store keeps CRAM-MD5 secrets, in which case
+     * CRAM-MD5 is offered to clients. Defaults to false.
+     */
+    default boolean supportsCramMD5() {
+        return false;
+    }
+}
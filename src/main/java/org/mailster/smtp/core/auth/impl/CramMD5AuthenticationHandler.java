@@ -0,0 +1,114 @@
+package org.mailster.smtp.core.auth.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+import org.mailster.smtp.core.auth.Credential;
+import org.mailster.smtp.core.auth.LoginFailedException;
+import org.mailster.smtp.core.auth.VerifierStore;
+import org.mailster.smtp.util.Base64;
+
+/**
+ * Implements the SMTP AUTH CRAM-MD5 mechanism (RFC 2195) against the
+ * secrets of a {@link VerifierStore}.
+ * <p>
+ * CRAM-MD5 keeps the password off the wire but requires a password
+ * equivalent secret on the server: prefer SCRAM-SHA-256 whenever the clients
+ * support it.
+ */
+public class CramMD5AuthenticationHandler implements AuthenticationHandler {
+
+    public static final String MECHANISM = "CRAM-MD5";
+
+    private static final List<String> MECHANISMS = List.of(MECHANISM);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final VerifierStore store;
+
+    private String challenge;
+
+    public CramMD5AuthenticationHandler(VerifierStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public List<String> getAuthenticationMechanisms() {
+        return MECHANISMS;
+    }
+
+    @Override
+    public boolean auth(String clientInput, StringBuilder response, SMTPContext ctx) throws LoginFailedException {
+        var stk = new StringTokenizer(clientInput);
+        if (stk.hasMoreTokens() && stk.nextToken().equalsIgnoreCase("AUTH")) {
+            resetState();
+            if (!stk.nextToken().equalsIgnoreCase(MECHANISM)) {
+                response.append("504 AUTH mechanism mismatch");
+                return true;
+            }
+            if (stk.hasMoreTokens()) {
+                response.append("535 Initial response not allowed in AUTH CRAM-MD5");
+                return true;
+            }
+
+            challenge = "<" + Long.toUnsignedString(RANDOM.nextLong()) + "." + System.currentTimeMillis()
+                    + "@" + ctx.getSMTPServerConfig().getHostName() + ">";
+            response.append("334 ").append(Base64.encodeToString(challenge.getBytes(StandardCharsets.US_ASCII), false));
+            return false;
+        }
+
+        var decoded = Base64.decode(clientInput.trim());
+        if (decoded == null) {
+            resetState();
+            throw new LoginFailedException();
+        }
+
+        // username SP 32 lowercase hex digits
+        var answer = new String(decoded, StandardCharsets.UTF_8);
+        var space = answer.lastIndexOf(' ');
+        if (space <= 0) {
+            resetState();
+            throw new LoginFailedException();
+        }
+        var username = answer.substring(0, space);
+        var digest = answer.substring(space + 1).toLowerCase().getBytes(StandardCharsets.US_ASCII);
+
+        try {
+            var secret = store.getCramMD5Secret(username);
+            if (secret == null || secret.length == 0 || !MessageDigest.isEqual(digest, expected(secret))) {
+                throw new LoginFailedException("Authentication failed", username);
+            }
+        } finally {
+            resetState();
+        }
+
+        ctx.setCredential(new Credential(username));
+        return true;
+    }
+
+    private byte[] expected(byte[] secret) {
+        try {
+            var mac = Mac.getInstance("HmacMD5");
+            mac.init(new SecretKeySpec(secret, "HmacMD5"));
+            var hmac = mac.doFinal(challenge.getBytes(StandardCharsets.US_ASCII));
+            return HexFormat.of().formatHex(hmac).getBytes(StandardCharsets.US_ASCII);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void resetState() {
+        challenge = null;
+    }
+}
@@ -1,6 +1,5 @@
 package org.mailster.smtp.core.auth.impl;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.mailster.smtp.core.SMTPContext;
@@ -19,7 +18,7 @@ public class DummyAuthenticationHandler implements AuthenticationHandler {
 
     @Override
     public List<String> getAuthenticationMechanisms() {
-        return new ArrayList<>();
+        return List.of();
     }
 
     @Override
@@ -1,7 +1,5 @@
 package org.mailster.smtp.core.auth.impl;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -22,19 +20,16 @@ import org.mailster.smtp.util.Base64;
  */
 public class LoginAuthenticationHandler implements AuthenticationHandler {
 
+    private static final List<String> MECHANISMS = List.of("LOGIN");
+
     private String username;
 
     private String password;
 
     private LoginValidator helper;
 
-    private List<String> authentificationMechanisms;
-
     public LoginAuthenticationHandler(LoginValidator helper) {
         this.helper = helper;
-
-        authentificationMechanisms = new ArrayList<>(1);
-        authentificationMechanisms.add("LOGIN");
     }
 
     /**
@@ -42,7 +37,7 @@ public class LoginAuthenticationHandler implements AuthenticationHandler {
      */
     @Override
     public List<String> getAuthenticationMechanisms() {
-        return Collections.unmodifiableList(authentificationMechanisms);
+        return MECHANISMS;
     }
 
     /**
@@ -90,10 +85,10 @@ public class LoginAuthenticationHandler implements AuthenticationHandler {
 
         try {
             helper.login(username, password);
-            resetState();
         } catch (LoginFailedException lfe) {
+            throw lfe.getUsername() == null ? new LoginFailedException(lfe.getMessage(), username) : lfe;
+        } finally {
             resetState();
-            throw lfe;
         }
 
         ctx.setCredential(new Credential(username));
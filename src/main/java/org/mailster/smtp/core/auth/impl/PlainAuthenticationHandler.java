@@ -1,7 +1,5 @@
 package org.mailster.smtp.core.auth.impl;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -22,20 +20,17 @@ import org.mailster.smtp.util.Base64;
  */
 public class PlainAuthenticationHandler implements AuthenticationHandler {
 
-    private LoginValidator helper;
+    private static final List<String> MECHANISMS = List.of("PLAIN");
 
-    private List<String> authentificationMechanisms;
+    private LoginValidator helper;
 
     public PlainAuthenticationHandler(LoginValidator helper) {
         this.helper = helper;
-
-        authentificationMechanisms = new ArrayList<>(1);
-        authentificationMechanisms.add("PLAIN");
     }
 
     @Override
     public List<String> getAuthenticationMechanisms() {
-        return Collections.unmodifiableList(authentificationMechanisms);
+        return MECHANISMS;
     }
 
     @Override
@@ -76,10 +71,10 @@ public class PlainAuthenticationHandler implements AuthenticationHandler {
         var password = new String(decodedSecret, usernameStop + 1, decodedSecret.length - usernameStop - 1);
         try {
             helper.login(username, password);
-            resetState();
         } catch (LoginFailedException lfe) {
+            throw lfe.getUsername() == null ? new LoginFailedException(lfe.getMessage(), username) : lfe;
+        } finally {
             resetState();
-            throw lfe;
         }
 
         ctx.setCredential(new Credential(username));
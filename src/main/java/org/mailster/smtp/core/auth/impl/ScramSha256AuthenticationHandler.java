@@ -0,0 +1,204 @@
+package org.mailster.smtp.core.auth.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+import org.mailster.smtp.core.auth.Credential;
+import org.mailster.smtp.core.auth.LoginFailedException;
+import org.mailster.smtp.core.auth.ScramCredential;
+import org.mailster.smtp.core.auth.VerifierStore;
+import org.mailster.smtp.util.Base64;
+
+/**
+ * Implements the SMTP AUTH SCRAM-SHA-256 mechanism (RFC 5802, RFC 7677)
+ * against a {@link VerifierStore}. Channel binding is not supported.
+ * <p>
+ * The login only costs a few HMAC computations as the salted password is
+ * derived when the verifier is provisioned. Unknown users are answered with
+ * a stable fake salt so that they cannot be told apart from wrong passwords.
+ */
+public class ScramSha256AuthenticationHandler implements AuthenticationHandler {
+
+    public static final String MECHANISM = "SCRAM-SHA-256";
+
+    private static final List<String> MECHANISMS = List.of(MECHANISM);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Key of the fake salts given for unknown users, renewed on restart.
+     */
+    private static final byte[] DECOY_KEY = new byte[32];
+
+    static {
+        RANDOM.nextBytes(DECOY_KEY);
+    }
+
+    private final VerifierStore store;
+
+    private String username;
+    private String gs2Header;
+    private String clientFirstBare;
+    private String serverFirst;
+    private String nonce;
+    private ScramCredential credential;
+    private boolean verified;
+
+    public ScramSha256AuthenticationHandler(VerifierStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public List<String> getAuthenticationMechanisms() {
+        return MECHANISMS;
+    }
+
+    @Override
+    public boolean auth(String clientInput, StringBuilder response, SMTPContext ctx) throws LoginFailedException {
+        var stk = new StringTokenizer(clientInput);
+        if (stk.hasMoreTokens() && stk.nextToken().equalsIgnoreCase("AUTH")) {
+            resetState();
+            if (!stk.nextToken().equalsIgnoreCase(MECHANISM)) {
+                response.append("504 AUTH mechanism mismatch");
+                return true;
+            }
+            if (!stk.hasMoreTokens()) {
+                // no initial response, ask for the client first message
+                response.append("334 ");
+                return false;
+            }
+            clientInput = stk.nextToken();
+        }
+
+        try {
+            if (gs2Header == null) {
+                clientFirst(decode(clientInput));
+                response.append("334 ").append(encode(serverFirst));
+                return false;
+            }
+            if (!verified) {
+                var signature = clientFinal(decode(clientInput));
+                verified = true;
+                response.append("334 ").append(encode("v=" + Base64.encodeToString(signature, false)));
+                return false;
+            }
+
+            // the client acknowledged the server signature
+            ctx.setCredential(new Credential(username));
+            resetState();
+            return true;
+        } catch (LoginFailedException e) {
+            var user = username;
+            resetState();
+            throw e.getUsername() == null ? new LoginFailedException(e.getMessage(), user) : e;
+        }
+    }
+
+    private void clientFirst(String message) throws LoginFailedException {
+        // gs2-header: n,[a=authzid], followed by n=username,r=nonce
+        var second = message.indexOf(',', message.indexOf(',') + 1);
+        if (!message.startsWith("n,") || second < 0) {
+            throw new LoginFailedException("Unsupported GS2 header");
+        }
+
+        var header = message.substring(0, second + 1);
+        var bare = message.substring(second + 1);
+        var attributes = bare.split(",");
+        if (attributes.length < 2 || !attributes[0].startsWith("n=") || !attributes[1].startsWith("r=")
+                || attributes[1].length() < 3) {
+            throw new LoginFailedException("Malformed client first message");
+        }
+
+        var user = unescape(attributes[0].substring(2));
+        var authzid = header.substring(2, header.length() - 1);
+        if (!authzid.isEmpty() && !authzid.equals("a=" + attributes[0].substring(2))) {
+            throw new LoginFailedException("Authorization identity not allowed", user);
+        }
+
+        this.username = user;
+        var stored = store.getScramCredential(user);
+        this.credential = stored != null ? stored : decoy(user);
+
+        var serverNonce = new byte[18];
+        RANDOM.nextBytes(serverNonce);
+        this.nonce = attributes[1].substring(2) + Base64.encodeToString(serverNonce, false);
+        this.gs2Header = header;
+        this.clientFirstBare = bare;
+        this.serverFirst = "r=" + nonce + ",s=" + Base64.encodeToString(credential.getSalt(), false)
+                + ",i=" + credential.getIterations();
+    }
+
+    private byte[] clientFinal(String message) throws LoginFailedException {
+        var proofIndex = message.lastIndexOf(",p=");
+        if (proofIndex < 0) {
+            throw new LoginFailedException("Malformed client final message");
+        }
+
+        var withoutProof = message.substring(0, proofIndex);
+        var expected = "c=" + Base64.encodeToString(gs2Header.getBytes(StandardCharsets.UTF_8), false)
+                + ",r=" + nonce;
+        if (!withoutProof.equals(expected) && !withoutProof.startsWith(expected + ",")) {
+            throw new LoginFailedException("Channel binding or nonce mismatch");
+        }
+
+        var proof = Base64.decode(message.substring(proofIndex + 3));
+        var signature = credential.verify(clientFirstBare + "," + serverFirst + "," + withoutProof, proof);
+        if (signature == null) {
+            throw new LoginFailedException();
+        }
+        return signature;
+    }
+
+    private ScramCredential decoy(String username) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(DECOY_KEY, "HmacSHA256"));
+            var salt = Arrays.copyOf(mac.doFinal(username.getBytes(StandardCharsets.UTF_8)), 16);
+            // random keys: no proof can ever match
+            var key = new byte[32];
+            RANDOM.nextBytes(key);
+            return new ScramCredential(salt, store.getScramIterations(), key, key);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String unescape(String name) throws LoginFailedException {
+        if (name.isEmpty()) {
+            throw new LoginFailedException("Empty username");
+        }
+        return name.replace("=2C", ",").replace("=3D", "=");
+    }
+
+    private static String decode(String input) throws LoginFailedException {
+        var decoded = Base64.decode(input.trim());
+        if (decoded == null) {
+            throw new LoginFailedException();
+        }
+        return new String(decoded, StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String message) {
+        return Base64.encodeToString(message.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    @Override
+    public void resetState() {
+        username = null;
+        gs2Header = null;
+        clientFirstBare = null;
+        serverFirst = null;
+        nonce = null;
+        credential = null;
+        verified = false;
+    }
+}
@@ -17,4 +17,16 @@ public interface Command {
     String getName();
 
     boolean isAuthRequired();
+
+    /**
+     * Returns true if the execution may block, e.g. because it calls the
+     * message listeners or an authentication backend. Commands which don't
+     * block can be executed on the I/O processor thread that decoded them
+     * instead of being handed to the worker pool, see
+     * {@link org.mailster.smtp.SMTPServerConfig#setInlineCommandDispatch(boolean)}.
+     * Defaults to true.
+     */
+    default boolean isBlocking() {
+        return true;
+    }
 }
@@ -3,6 +3,7 @@ package org.mailster.smtp.core.commands;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
@@ -10,6 +11,7 @@ import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPConnectionHandler;
 import org.mailster.smtp.core.SMTPContext;
 import org.mailster.smtp.core.commands.impl.AuthCommand;
+import org.mailster.smtp.core.commands.impl.ReceiptCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,6 +71,19 @@ public final class CommandHandler {
         }
     }
 
+    /**
+     * Executes consecutive RCPT commands pipelined by the client.
+     */
+    public void handleRecipients(List<String> cmdStrings, IoSession session, SMTPContext ctx) throws IOException {
+        if (this.commandMap.get("RCPT") instanceof ReceiptCommand cmd) {
+            cmd.executeBatch(cmdStrings, session, ctx);
+        } else {
+            for (var cmdString : cmdStrings) {
+                handleCommand(cmdString, session, ctx);
+            }
+        }
+    }
+
     /**
      * Executes an auth command.
      */
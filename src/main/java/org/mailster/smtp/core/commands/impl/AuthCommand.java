@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.AuthenticationThrottle;
 import org.mailster.smtp.core.auth.LoginFailedException;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
@@ -41,7 +42,16 @@ public class AuthCommand extends AbstractCommand {
 
         var authenticating = smtpState.isAuthenticating();
 
+        var throttle = ctx.getSMTPServerConfig().getAuthenticationThrottle();
+        var address = AuthenticationThrottle.addressOf(ioSession.getRemoteAddress());
+
         if (!authenticating) {
+            if (throttle != null && throttle.isRejected(address)) {
+                smtpState.quit();
+                sendResponse(ioSession, "421 Too many authentication failures, closing connection");
+                return;
+            }
+
             var args = getArgs(commandString);
 
             // Let's check the command syntax
@@ -82,9 +92,26 @@ public class AuthCommand extends AbstractCommand {
             smtpState.setAuthenticated(true);
             sendResponse(ioSession, "235 Authentication successful");
         } catch (LoginFailedException ex) {
-            sendResponse(ioSession, "535 Authentication failure");
             smtpState.setAuthenticated(false);
             smtpState.setAuthenticating(false);
+
+            var delay = throttle == null ? 0 : throttle.recordFailure(address, ex.getUsername());
+            if (delay == AuthenticationThrottle.REJECT) {
+                smtpState.quit();
+                sendResponse(ioSession, "421 Too many authentication failures, closing connection");
+            } else if (delay > 0) {
+                // hold the session until the delayed reply without keeping a worker thread
+                ioSession.suspendRead();
+                throttle.schedule(() -> {
+                    try {
+                        sendResponse(ioSession, "535 Authentication failure");
+                    } finally {
+                        ioSession.resumeRead();
+                    }
+                }, delay);
+            } else {
+                sendResponse(ioSession, "535 Authentication failure");
+            }
         }
     }
 }
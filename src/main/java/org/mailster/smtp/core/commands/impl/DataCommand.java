@@ -20,6 +20,11 @@ public class DataCommand extends AbstractCommand {
         super("DATA", "The DATA command initiates the message transmission.\n" + "Message ends with <CR><LF>.<CR><LF>");
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         var smtpState = ctx.getSMTPState();
@@ -30,6 +35,9 @@ public class DataCommand extends AbstractCommand {
         } else if (smtpState.getRecipientCount() == 0) {
             sendResponse(ioSession, "503 Error: need RCPT command");
             return;
+        } else if (ctx.getSMTPServerConfig().getSpoolManager().isFull()) {
+            sendResponse(ioSession, "452 Insufficient system storage");
+            return;
         }
 
         smtpState.setDataMode(true);
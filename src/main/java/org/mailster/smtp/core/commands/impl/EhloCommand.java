@@ -3,6 +3,7 @@ package org.mailster.smtp.core.commands.impl;
 import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.mailster.smtp.core.SMTPContext;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
 import org.mailster.smtp.core.auth.impl.DummyAuthenticationHandler;
@@ -28,6 +29,11 @@ public class EhloCommand extends AbstractCommand {
         return false;
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         var args = getArgs(commandString);
@@ -49,12 +55,15 @@ public class EhloCommand extends AbstractCommand {
             var cfg = ctx.getSMTPServerConfig();
 
             smtpState.setHasSeenHelo(true);
+            smtpState.setHeloName(args[1]);
             response.append("250-");
             response.append(cfg.getHostName());
             response.append("\r\n");
             response.append("250-8BITMIME\r\n");
 
-            if (cfg.isTLSSupported() && getCommandHandler().containsCommand("STARTTLS")) {
+            // RFC 3207: STARTTLS must not be advertised on a secured session
+            if (cfg.isTLSSupported() && getCommandHandler().containsCommand("STARTTLS")
+                    && !ioSession.getFilterChain().contains(SslFilter.class)) {
                 response.append("250-STARTTLS\r\n");
             }
 
@@ -25,6 +25,11 @@ public class HeloCommand extends AbstractCommand {
         return false;
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         var args = getArgs(commandString);
@@ -34,6 +39,7 @@ public class HeloCommand extends AbstractCommand {
         }
 
         ctx.getSMTPState().setHasSeenHelo(true);
+        ctx.getSMTPState().setHeloName(args[1]);
         sendResponse(ioSession, "250 " + ctx.getSMTPServerConfig().getHostName());
     }
 }
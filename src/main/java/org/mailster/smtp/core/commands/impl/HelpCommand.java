@@ -25,6 +25,11 @@ public class HelpCommand extends AbstractCommand {
               "[<topic>]\n topic = the topic we want help info about\n");
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         var args = getArgPredicate(commandString);
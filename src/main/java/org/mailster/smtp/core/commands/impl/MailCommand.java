@@ -45,7 +45,7 @@ public class MailCommand extends AbstractCommand {
             if (isValidEmailAddress(emailAddress)) {
                 try {
                     ctx.getDeliveryHandler().from(emailAddress);
-                    smtpState.setHasSender(true);
+                    smtpState.setSender(emailAddress);
                     sendResponse(ioSession, "250 Ok");
                 } catch (RejectException ex) {
                     sendResponse(ioSession, ex.getMessage());
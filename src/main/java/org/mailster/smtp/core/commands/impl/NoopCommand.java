@@ -23,6 +23,11 @@ public class NoopCommand extends AbstractCommand {
         return false;
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         sendResponse(ioSession, "250 Ok");
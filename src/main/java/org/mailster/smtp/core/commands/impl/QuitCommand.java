@@ -24,6 +24,11 @@ public class QuitCommand extends AbstractCommand {
         return false;
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         ctx.getSMTPState().quit();
@@ -1,6 +1,8 @@
 package org.mailster.smtp.core.commands.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.api.handler.RejectException;
@@ -8,7 +10,8 @@ import org.mailster.smtp.core.SMTPContext;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
 /**
- * The RCPT command implementation.
+ * The RCPT command implementation. Consecutive RCPT commands pipelined by the
+ * client are validated together by {@link #executeBatch}.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  * @author Ian McFarland &lt;ian@neo.com&gt;
@@ -37,22 +40,90 @@ public class ReceiptCommand extends AbstractCommand {
             return;
         }
 
-        var args = getArgPredicate(commandString);
-        if (args.toUpperCase().startsWith("TO:")) {
-            var recipientAddress = extractEmailAddress(args, 3);
-            if (isValidEmailAddress(recipientAddress)) {
-                try {
-                    ctx.getDeliveryHandler().recipient(recipientAddress);
-                    smtpState.addRecipient();
-                    sendResponse(ioSession, "250 Ok");
-                } catch (RejectException ex) {
-                    sendResponse(ioSession, ex.getMessage());
+        var parsed = parse(commandString);
+        if (parsed.error() != null) {
+            sendResponse(ioSession, parsed.error());
+            return;
+        }
+
+        try {
+            ctx.getDeliveryHandler().recipient(parsed.address());
+            smtpState.addRecipient(parsed.address());
+            sendResponse(ioSession, "250 Ok");
+        } catch (RejectException ex) {
+            sendResponse(ioSession, ex.getMessage());
+        }
+    }
+
+    /**
+     * Executes consecutive RCPT commands, asking the delivery handler about
+     * their recipients with as few calls as the recipients limit allows, and
+     * writes their replies in order at once. The replies are the same as if
+     * the commands were executed one by one.
+     */
+    public void executeBatch(List<String> commandStrings, IoSession ioSession, SMTPContext ctx) {
+        var smtpState = ctx.getSMTPState();
+        var replies = new String[commandStrings.size()];
+        var max = ctx.getSMTPServerConfig().getMaxRecipients();
+
+        var next = 0;
+        while (next < replies.length) {
+            var positions = new ArrayList<Integer>();
+            var addresses = new ArrayList<String>();
+            var capacity = max > -1 ? max - smtpState.getRecipientCount() : Integer.MAX_VALUE;
+
+            // collect the recipients which can be accepted before the limit is reached
+            for (; next < replies.length && addresses.size() < capacity; next++) {
+                if (!smtpState.getHasSender()) {
+                    replies[next] = "503 Error: need MAIL command";
+                    continue;
+                }
+                var parsed = parse(commandStrings.get(next));
+                if (parsed.error() != null) {
+                    replies[next] = parsed.error();
+                } else {
+                    positions.add(next);
+                    addresses.add(parsed.address());
+                }
+            }
+
+            if (addresses.isEmpty()) {
+                for (; next < replies.length; next++) {
+                    replies[next] = smtpState.getHasSender() ? "452 Too many recipients" : "503 Error: need MAIL command";
+                }
+                break;
+            }
+
+            var results = ctx.getDeliveryHandler().recipients(addresses);
+            for (var i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    smtpState.addRecipient(addresses.get(i));
+                    replies[positions.get(i)] = "250 Ok";
+                } else {
+                    replies[positions.get(i)] = results[i].getMessage();
                 }
-            } else {
-                sendResponse(ioSession, "553 <" + recipientAddress + "> Invalid email address");
             }
-        } else {
-            sendResponse(ioSession, "501 Syntax: RCPT TO: <address> Error in parameters: \"" + args + "\"");
         }
+
+        sendResponse(ioSession, String.join("\r\n", replies));
+    }
+
+    private Recipient parse(String commandString) {
+        var args = getArgPredicate(commandString);
+        if (!args.toUpperCase().startsWith("TO:")) {
+            return new Recipient(null, "501 Syntax: RCPT TO: <address> Error in parameters: \"" + args + "\"");
+        }
+
+        var recipientAddress = extractEmailAddress(args, 3);
+        if (!isValidEmailAddress(recipientAddress)) {
+            return new Recipient(null, "553 <" + recipientAddress + "> Invalid email address");
+        }
+        return new Recipient(recipientAddress, null);
+    }
+
+    /**
+     * The address of a RCPT command, or the reply if it is invalid.
+     */
+    private record Recipient(String address, String error) {
     }
 }
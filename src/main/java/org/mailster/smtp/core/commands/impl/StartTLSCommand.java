@@ -5,8 +5,8 @@ import java.io.IOException;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.TLSStatistics;
 import org.mailster.smtp.core.commands.AbstractCommand;
-import org.mailster.smtp.util.DummySSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,24 +19,22 @@ public class StartTLSCommand extends AbstractCommand {
 
     private static final Logger LOG = LoggerFactory.getLogger(StartTLSCommand.class);
 
-    private static SslFilter sslFilter;
-
-    static {
-        try {
-            var socketFactory = new DummySSLSocketFactory();
-            sslFilter = new SslFilter(socketFactory.getSSLContext());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+    /**
+     * Overrides the SSL filter of the server configuration when set.
+     */
+    private static volatile SslFilter sslFilter;
 
     public StartTLSCommand() {
         super("STARTTLS", "The STARTTLS command starts a secured connection for the current\nSMTP session");
     }
 
     /**
-     * Ability to override the SSLFilter
+     * Ability to override the SSLFilter of all servers.
+     *
+     * @deprecated configure the SSL context and TLS options with
+     * {@link org.mailster.smtp.SMTPServerConfig} instead.
      */
+    @Deprecated
     public static void setSSLFilter(SslFilter filter) {
         if (filter == null) {
             throw new IllegalArgumentException("filter argument can't be null");
@@ -45,6 +43,11 @@ public class StartTLSCommand extends AbstractCommand {
         sslFilter = filter;
     }
 
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
     @Override
     public void execute(String commandString, IoSession ioSession, SMTPContext ctx) throws IOException {
         if (commandString.trim().indexOf(" ") > 0) {
@@ -53,14 +56,29 @@ public class StartTLSCommand extends AbstractCommand {
         }
 
         try {
+            var sslFilter = StartTLSCommand.sslFilter;
+            if (sslFilter == null) {
+                sslFilter = ctx.getSMTPServerConfig().getSslFilter();
+            }
+
             if (sslFilter.isSslStarted(ioSession)) {
                 sendResponse(ioSession, "454 TLS not available due to temporary reason: TLS already active");
                 return;
             }
 
+            // We're going to use SSL negotiation notification.
+            ioSession.setAttribute(SslFilter.USE_NOTIFICATION);
+            TLSStatistics.handshakeStarted(ioSession);
+
             // Insert SSLFilter to get ready for handshaking
             ioSession.getFilterChain().addFirst("SSLfilter", sslFilter);
 
+            // Move the handshake and decryption off the I/O processor threads
+            var tlsExecutorFilter = ctx.getSMTPServerConfig().getTLSExecutorFilter();
+            if (tlsExecutorFilter != null) {
+                ioSession.getFilterChain().addFirst("tlsThreadPool", tlsExecutorFilter);
+            }
+
             // Disable encryption temporarily.
             // This attribute will be removed by SSLFilter
             // inside the Session.write() call below.
@@ -73,7 +91,7 @@ public class StartTLSCommand extends AbstractCommand {
             assert ioSession.getAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE) == null;
 
             ctx.getSMTPState().resetAll(); // clean state
-            ctx.getDeliveryHandler().resetMessageState();
+            ctx.resetMessageState();
         } catch (Exception e) {
             LOG.debug("startTLS() failed: {}", e.getMessage());
             LOG.trace("startTLS() failure stack trace", e);
@@ -0,0 +1,224 @@
+package org.mailster.smtp.core.milter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection to a milter, speaking version 6 of the protocol: packets made
+ * of a 4 bytes length, a command byte and its data.
+ * <p>
+ * Not thread safe, except {@link #close()} which unblocks a pending read.
+ */
+final class MilterConnection implements Closeable {
+
+    static final int VERSION = 6;
+
+    /**
+     * The largest body chunk a milter accepts.
+     */
+    static final int MAX_BODY_CHUNK = 65535;
+
+    // commands sent to the milter
+    static final byte SMFIC_ABORT = 'A';
+    static final byte SMFIC_BODY = 'B';
+    static final byte SMFIC_CONNECT = 'C';
+    static final byte SMFIC_BODYEOB = 'E';
+    static final byte SMFIC_HELO = 'H';
+    static final byte SMFIC_QUIT_NC = 'K';
+    static final byte SMFIC_HEADER = 'L';
+    static final byte SMFIC_MAIL = 'M';
+    static final byte SMFIC_EOH = 'N';
+    static final byte SMFIC_OPTNEG = 'O';
+    static final byte SMFIC_QUIT = 'Q';
+    static final byte SMFIC_RCPT = 'R';
+    static final byte SMFIC_DATA = 'T';
+
+    // replies of the milter
+    static final byte SMFIR_ACCEPT = 'a';
+    static final byte SMFIR_CONTINUE = 'c';
+    static final byte SMFIR_DISCARD = 'd';
+    static final byte SMFIR_CONN_FAIL = 'f';
+    static final byte SMFIR_PROGRESS = 'p';
+    static final byte SMFIR_REJECT = 'r';
+    static final byte SMFIR_SKIP = 's';
+    static final byte SMFIR_TEMPFAIL = 't';
+    static final byte SMFIR_REPLYCODE = 'y';
+    static final byte SMFIR_SHUTDOWN = '4';
+
+    // protocol steps the milter can opt out of, or not reply to
+    static final int SMFIP_NOCONNECT = 0x1;
+    static final int SMFIP_NOHELO = 0x2;
+    static final int SMFIP_NOMAIL = 0x4;
+    static final int SMFIP_NORCPT = 0x8;
+    static final int SMFIP_NOBODY = 0x10;
+    static final int SMFIP_NOHDRS = 0x20;
+    static final int SMFIP_NOEOH = 0x40;
+    static final int SMFIP_NR_HDR = 0x80;
+    static final int SMFIP_NODATA = 0x200;
+    static final int SMFIP_NR_CONN = 0x1000;
+    static final int SMFIP_NR_HELO = 0x2000;
+    static final int SMFIP_NR_MAIL = 0x4000;
+    static final int SMFIP_NR_RCPT = 0x8000;
+    static final int SMFIP_NR_DATA = 0x10000;
+    static final int SMFIP_NR_EOH = 0x40000;
+    static final int SMFIP_NR_BODY = 0x80000;
+
+    /**
+     * The steps offered to the milter. Header values are sent unfolded,
+     * without their leading space, and no message modification is supported.
+     */
+    private static final int OFFERED_PROTOCOL = SMFIP_NOCONNECT | SMFIP_NOHELO | SMFIP_NOMAIL | SMFIP_NORCPT
+            | SMFIP_NOBODY | SMFIP_NOHDRS | SMFIP_NOEOH | SMFIP_NR_HDR | SMFIP_NODATA | SMFIP_NR_CONN
+            | SMFIP_NR_HELO | SMFIP_NR_MAIL | SMFIP_NR_RCPT | SMFIP_NR_DATA | SMFIP_NR_EOH | SMFIP_NR_BODY;
+
+    /**
+     * Packets larger than this are a protocol error.
+     */
+    private static final int MAX_PACKET = 1024 * 1024;
+
+    record Reply(byte command, byte[] data) {
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int protocol;
+    private boolean reused;
+
+    private MilterConnection(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 8192));
+    }
+
+    /**
+     * Connects to a milter listening on a TCP or Unix domain socket and
+     * negotiates the protocol.
+     */
+    static MilterConnection open(SocketAddress address) throws IOException {
+        var connection = new MilterConnection(SocketChannel.open(address));
+        try {
+            connection.negotiate();
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private void negotiate() throws IOException {
+        out.writeInt(13);
+        out.writeByte(SMFIC_OPTNEG);
+        out.writeInt(VERSION);
+        out.writeInt(0);
+        out.writeInt(OFFERED_PROTOCOL);
+        out.flush();
+
+        var reply = read();
+        if (reply.command() != SMFIC_OPTNEG || reply.data().length < 12) {
+            throw new IOException("Unexpected milter negotiation reply: " + (char) reply.command());
+        }
+        var data = new DataInputStream(new ByteArrayInputStream(reply.data()));
+        var version = data.readInt();
+        data.readInt();
+        var steps = data.readInt();
+        if (version < 2) {
+            throw new IOException("Unsupported milter version: " + version);
+        }
+        // the flags of steps not offered are ignored
+        this.protocol = steps & OFFERED_PROTOCOL;
+    }
+
+    /**
+     * Returns true if the connection served a message before, in which case
+     * the milter may have closed it since.
+     */
+    boolean isReused() {
+        return reused;
+    }
+
+    void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * Returns true if the milter wants the step, given its opt out flag.
+     */
+    boolean wants(int noFlag) {
+        return (protocol & noFlag) == 0;
+    }
+
+    /**
+     * Returns true if the milter replies to the step, given its no reply
+     * flag.
+     */
+    boolean replies(int noReplyFlag) {
+        return (protocol & noReplyFlag) == 0;
+    }
+
+    void send(byte command, byte[] data, int offset, int length) throws IOException {
+        out.writeInt(length + 1);
+        out.writeByte(command);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Sends a command whose arguments are NUL terminated strings.
+     */
+    void send(byte command, String... args) throws IOException {
+        var data = new ByteArrayOutputStream(64);
+        for (var arg : args) {
+            data.writeBytes(arg.getBytes(StandardCharsets.UTF_8));
+            data.write(0);
+        }
+        send(command, data.toByteArray(), 0, data.size());
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    Reply read() throws IOException {
+        out.flush();
+        var length = in.readInt();
+        if (length < 1 || length > MAX_PACKET) {
+            throw new IOException("Invalid milter packet length: " + length);
+        }
+        var command = in.readByte();
+        var data = new byte[length - 1];
+        in.readFully(data);
+        return new Reply(command, data);
+    }
+
+    /**
+     * Tells the milter the connection is over and closes it.
+     */
+    void quit() {
+        try {
+            send(SMFIC_QUIT, new byte[0], 0, 0);
+            out.flush();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
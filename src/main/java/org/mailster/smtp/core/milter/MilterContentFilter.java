@@ -0,0 +1,260 @@
+package org.mailster.smtp.core.milter;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mailster.smtp.core.ContentFilter;
+import org.mailster.smtp.core.DataMemoryBudget;
+import org.mailster.smtp.core.DataRejection;
+
+/**
+ * A {@link ContentFilter} delegating to a milter, e.g. a spam or virus
+ * scanner, over a local TCP or Unix domain socket, with version 6 of the
+ * milter protocol.
+ * <p>
+ * Each message is streamed to the milter by a thread of the filter while it
+ * is still being received, so that the verdict is usually ready when its
+ * data ends. The connections to the milter are pooled and reused for the
+ * messages of any session. The milter sees the envelope, the header fields
+ * and the body of each message; the modifications it asks for are ignored.
+ * A rejection at any step rejects the whole message.
+ * <p>
+ * If all the connections are busy, the milter can't be reached in time,
+ * falls too far behind or is too slow to give its verdict, the message is
+ * either temporarily rejected or, if the filter fails open, accepted. The
+ * threads of the filter are daemons, {@link #shutdown()} closes its
+ * connections; the server does it when it stops.
+ */
+public class MilterContentFilter implements ContentFilter {
+
+    private static final DataRejection UNAVAILABLE = new DataRejection("451 4.7.1 Content filter unavailable");
+
+    private final SocketAddress address;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<MilterConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger threadSequence = new AtomicInteger();
+
+    /**
+     * One thread per connection, created when the first message starts.
+     */
+    private ThreadPoolExecutor executor;
+    private volatile boolean shutdown;
+
+    private volatile long timeout = 30000;
+    private volatile long maxBacklog = 4 * 1024 * 1024;
+    private volatile boolean failOpen;
+    private volatile DataMemoryBudget memoryBudget;
+
+    /**
+     * @param address        the address of the milter, an
+     *                       {@link java.net.InetSocketAddress} or a
+     *                       {@link java.net.UnixDomainSocketAddress}
+     * @param maxConnections the maximum number of connections to the
+     *                       milter, hence of messages scanned at once, the
+     *                       messages beyond failing at once
+     */
+    public MilterContentFilter(SocketAddress address, int maxConnections) {
+        if (address == null || maxConnections <= 0) {
+            throw new IllegalArgumentException("address must not be null and maxConnections must be positive");
+        }
+        this.address = address;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Returns the time in milliseconds the milter has to give its verdict
+     * once the data of a message ended, which is also the time a connection
+     * has to be ready once the message started.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the time in milliseconds the milter has to give its verdict once
+     * the data of a message ended, which is also the time a connection has
+     * to be ready once the message started. Defaults to 30000.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the number of bytes of a message which may wait for the milter.
+     */
+    public long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * Sets the number of bytes of a message which may wait for the milter,
+     * held in memory, beyond which the scan fails. Defaults to 4 MiB.
+     *
+     * @see #setMemoryBudget(DataMemoryBudget)
+     */
+    public void setMaxBacklog(long maxBacklog) {
+        if (maxBacklog <= 0) {
+            throw new IllegalArgumentException("Backlog must be positive");
+        }
+        this.maxBacklog = maxBacklog;
+    }
+
+    public DataMemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the budget the bytes waiting for the milter are reserved from,
+     * usually the {@link org.mailster.smtp.SMTPServerConfig#getDataMemoryBudget()
+     * budget of the server}. A scan fails if the budget is exhausted. Null,
+     * the default, only bounds each message by the maximum backlog.
+     * <p>
+     * NOTE: read when a message starts to be scanned.
+     */
+    public void setMemoryBudget(DataMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public boolean isFailOpen() {
+        return failOpen;
+    }
+
+    /**
+     * Sets whether messages are accepted rather than temporarily rejected
+     * when the milter fails. Defaults to false.
+     */
+    public void setFailOpen(boolean failOpen) {
+        this.failOpen = failOpen;
+    }
+
+    /**
+     * Returns the verdict given when the milter fails.
+     */
+    DataRejection getFailureVerdict() {
+        return failOpen ? null : UNAVAILABLE;
+    }
+
+    /**
+     * Starts scanning a message if a connection is available. Otherwise the
+     * scan fails at once rather than holding a thread and the message until
+     * another one ends.
+     */
+    @Override
+    public Session start(Envelope envelope) {
+        var session = new MilterSession(this, envelope);
+        if (!permits.tryAcquire()) {
+            session.fail();
+            return session;
+        }
+        try {
+            executor().execute(session);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            session.fail();
+            return session;
+        }
+        session.startTimeout();
+        return session;
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        var thread = new Thread(r, "MailsterSMTP Milter Thread " + threadSequence.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            shutdown = false;
+        }
+        return executor;
+    }
+
+    /**
+     * Returns an idle connection or opens a new one.
+     */
+    MilterConnection acquire() throws IOException {
+        var connection = idle.pollFirst();
+        if (connection != null) {
+            connection.setReused(true);
+            return connection;
+        }
+        return MilterConnection.open(address);
+    }
+
+    /**
+     * Gives back an acquired connection, closed unless it can serve another
+     * message.
+     */
+    void release(MilterConnection connection, boolean reusable) {
+        if (connection == null) {
+            return;
+        }
+        if (reusable && !shutdown) {
+            idle.addFirst(connection);
+        } else {
+            connection.close();
+        }
+
+        if (shutdown) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * Makes room for another message once a scan is over.
+     */
+    void ended() {
+        permits.release();
+    }
+
+    /**
+     * Returns the number of open connections waiting for a message.
+     */
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Closes the idle connections and stops the filter: the scans in progress
+     * fail. The filter starts again with the next message.
+     */
+    @Override
+    public void shutdown() {
+        ThreadPoolExecutor stopped;
+        synchronized (this) {
+            shutdown = true;
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            for (var pending : stopped.shutdownNow()) {
+                var session = (MilterSession) pending;
+                session.fail();
+                session.finish();
+                ended();
+            }
+        }
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        MilterConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.quit();
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.mailster.smtp.core.milter;
+
+import static org.mailster.smtp.core.milter.MilterConnection.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mailster.smtp.core.ContentFilter;
+import org.mailster.smtp.core.DataMemoryBudget;
+import org.mailster.smtp.core.DataRejection;
+import org.mailster.smtp.core.MessageHeaders;
+import org.mailster.smtp.util.MimeWalker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The scan of one message by a milter. The decoder queues the chunks of the
+ * message and a thread of the filter streams them to a pooled connection,
+ * waiting for the reply to each step, until the milter gives its verdict.
+ * Chunks arriving after an early verdict are dropped. The queued bytes are
+ * reserved from the memory budget of the filter, if any.
+ */
+final class MilterSession implements ContentFilter.Session, Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MilterSession.class);
+
+    static final DataRejection REJECTED = new DataRejection("550 5.7.1 Command rejected");
+    static final DataRejection TEMPFAILED = new DataRejection("451 4.7.1 Service unavailable - try again later");
+
+    /**
+     * The reply to a discarded message: the client believes it was
+     * delivered.
+     */
+    static final DataRejection DISCARDED = new DataRejection("250 Ok");
+
+    /**
+     * Queued after the last chunk, or to give up the scan.
+     */
+    private static final byte[] END = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private final MilterContentFilter filter;
+    private final ContentFilter.Envelope envelope;
+    private final DataMemoryBudget memoryBudget;
+    private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private final AtomicLong backlog = new AtomicLong();
+    private final CompletableFuture<DataRejection> verdict = new CompletableFuture<>();
+    private volatile MilterConnection connection;
+    private volatile boolean connected;
+    private volatile boolean failed;
+    private boolean ended;
+
+    /** True once no thread takes the queued chunks any more. */
+    private volatile boolean finished;
+
+    /** True once the milter replied to the end of the message. */
+    private boolean messageEnded;
+
+    /** The header block, collected until its empty line. */
+    private ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(1024);
+    private boolean headerLineEmpty = true;
+
+    MilterSession(MilterContentFilter filter, ContentFilter.Envelope envelope) {
+        this.filter = filter;
+        this.envelope = envelope;
+        this.memoryBudget = filter.getMemoryBudget();
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        if (ended || verdict.isDone() || length == 0) {
+            return;
+        }
+        if (backlog.addAndGet(length) > filter.getMaxBacklog()) {
+            LOG.debug("Milter too far behind, giving up the scan");
+            fail();
+            return;
+        }
+        if (memoryBudget != null && !memoryBudget.reserve(length)) {
+            LOG.debug("Memory budget exhausted, giving up the scan");
+            fail();
+            return;
+        }
+        var chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        chunks.add(chunk);
+        if (finished) {
+            drain();
+        }
+    }
+
+    @Override
+    public CompletionStage<DataRejection> end() {
+        if (!ended) {
+            ended = true;
+            chunks.add(END);
+            CompletableFuture.delayedExecutor(filter.getTimeout(), TimeUnit.MILLISECONDS).execute(() -> {
+                if (!verdict.isDone()) {
+                    LOG.debug("Milter timed out");
+                    fail();
+                }
+            });
+        }
+        return verdict;
+    }
+
+    @Override
+    public void abort() {
+        ended = true;
+        chunks.add(ABORT);
+    }
+
+    /**
+     * Fails the scan unless a connection is ready within the timeout of the
+     * filter.
+     */
+    void startTimeout() {
+        CompletableFuture.delayedExecutor(filter.getTimeout(), TimeUnit.MILLISECONDS).execute(() -> {
+            if (!connected && !verdict.isDone()) {
+                LOG.debug("No milter connection in time");
+                fail();
+            }
+        });
+    }
+
+    /**
+     * Completes the verdict with the failure policy of the filter and drops
+     * the connection, unblocking the thread using it.
+     */
+    void fail() {
+        if (verdict.complete(filter.getFailureVerdict())) {
+            failed = true;
+            var c = connection;
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        MilterConnection c = null;
+        var reusable = false;
+        try {
+            c = filter.acquire();
+            connection = c;
+            connected = true;
+            boolean decided;
+            try {
+                decided = verdict.isDone() || sendEnvelope(c);
+            } catch (IOException e) {
+                if (!c.isReused() || failed) {
+                    throw e;
+                }
+                // the milter closed the idle connection, try a new one
+                connection = null;
+                filter.release(c, false);
+                c = null;
+                c = filter.acquire();
+                connection = c;
+                decided = verdict.isDone() || sendEnvelope(c);
+            }
+            if (!decided) {
+                content(c);
+            }
+
+            if (!failed) {
+                // resets the milter for the next message, which may come
+                // from another client
+                if (!messageEnded) {
+                    c.send(SMFIC_ABORT);
+                }
+                c.send(SMFIC_QUIT_NC);
+                c.flush();
+                // unless it timed out meanwhile
+                reusable = !failed;
+            }
+        } catch (IOException e) {
+            LOG.debug("Milter failure", e);
+            fail();
+        } catch (InterruptedException e) {
+            fail();
+            Thread.currentThread().interrupt();
+        } finally {
+            connection = null;
+            filter.release(c, reusable);
+            finish();
+            filter.ended();
+        }
+    }
+
+    /**
+     * Drops the chunks still queued, now and when they arrive.
+     */
+    void finish() {
+        finished = true;
+        drain();
+    }
+
+    private void drain() {
+        byte[] chunk;
+        while ((chunk = chunks.poll()) != null) {
+            if (memoryBudget != null) {
+                memoryBudget.release(chunk.length);
+            }
+        }
+    }
+
+    /**
+     * Sends the envelope of the message.
+     *
+     * @return true if the milter gave its verdict
+     */
+    private boolean sendEnvelope(MilterConnection c) throws IOException {
+        if (c.wants(SMFIP_NOCONNECT)) {
+            var data = connectData();
+            c.send(SMFIC_CONNECT, data, 0, data.length);
+            if (c.replies(SMFIP_NR_CONN) && replied(c)) {
+                return true;
+            }
+        }
+        if (envelope.heloName() != null && c.wants(SMFIP_NOHELO)) {
+            c.send(SMFIC_HELO, envelope.heloName());
+            if (c.replies(SMFIP_NR_HELO) && replied(c)) {
+                return true;
+            }
+        }
+        if (c.wants(SMFIP_NOMAIL)) {
+            c.send(SMFIC_MAIL, "<" + envelope.sender() + ">");
+            if (c.replies(SMFIP_NR_MAIL) && replied(c)) {
+                return true;
+            }
+        }
+        if (c.wants(SMFIP_NORCPT)) {
+            for (var recipient : envelope.recipients()) {
+                c.send(SMFIC_RCPT, "<" + recipient + ">");
+                if (c.replies(SMFIP_NR_RCPT) && replied(c)) {
+                    return true;
+                }
+            }
+        }
+        if (c.wants(SMFIP_NODATA)) {
+            c.send(SMFIC_DATA);
+            return c.replies(SMFIP_NR_DATA) && replied(c);
+        }
+        return false;
+    }
+
+    private byte[] connectData() {
+        var data = new ByteArrayOutputStream(64);
+        if (envelope.remoteAddress() instanceof InetSocketAddress inet && inet.getAddress() != null) {
+            var ip = inet.getAddress().getHostAddress();
+            data.writeBytes(("[" + ip + "]").getBytes(StandardCharsets.US_ASCII));
+            data.write(0);
+            data.write(ip.indexOf(':') >= 0 ? '6' : '4');
+            data.write(inet.getPort() >> 8);
+            data.write(inet.getPort());
+            data.writeBytes(ip.getBytes(StandardCharsets.US_ASCII));
+            data.write(0);
+        } else {
+            data.writeBytes("localhost".getBytes(StandardCharsets.US_ASCII));
+            data.write(0);
+            data.write('U');
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Streams the headers and the body of the message as they are queued,
+     * until the verdict of the milter or the end of the scan.
+     */
+    private void content(MilterConnection c) throws IOException, InterruptedException {
+        var bodyWanted = c.wants(SMFIP_NOBODY);
+        while (!verdict.isDone()) {
+            var chunk = chunks.take();
+            if (chunk == ABORT) {
+                return;
+            }
+            if (chunk == END) {
+                if (headerBlock != null && endHeaders(c, headerBlock.size())) {
+                    return;
+                }
+                c.send(SMFIC_BODYEOB);
+                read(c);
+                messageEnded = true;
+                // a milter continuing at the end accepts the message
+                verdict.complete(null);
+                return;
+            }
+            backlog.addAndGet(-chunk.length);
+            if (memoryBudget != null) {
+                memoryBudget.release(chunk.length);
+            }
+
+            var bodyStart = 0;
+            if (headerBlock != null) {
+                bodyStart = scanHeaders(c, chunk);
+                if (headerBlock != null || verdict.isDone()) {
+                    continue;
+                }
+            }
+            if (bodyWanted && bodyStart < chunk.length) {
+                bodyWanted = body(c, chunk, bodyStart);
+            }
+        }
+    }
+
+    /**
+     * Collects the header block, sending it once its empty line is found or
+     * it is too large.
+     *
+     * @return the offset of the body in the chunk
+     */
+    private int scanHeaders(MilterConnection c, byte[] chunk) throws IOException {
+        for (var i = 0; i < chunk.length; i++) {
+            var b = chunk[i];
+            if (b == '\n') {
+                if (headerLineEmpty) {
+                    headerBlock.write(chunk, 0, i + 1);
+                    endHeaders(c, headerBlock.size());
+                    return i + 1;
+                }
+                headerLineEmpty = true;
+            } else if (b != '\r') {
+                headerLineEmpty = false;
+            }
+        }
+        headerBlock.write(chunk, 0, chunk.length);
+        if (headerBlock.size() > MimeWalker.MAX_HEADER_SIZE) {
+            endHeaders(c, headerBlock.size());
+        }
+        return chunk.length;
+    }
+
+    /**
+     * Sends the header fields then the end of the headers.
+     *
+     * @return true if the milter gave its verdict
+     */
+    private boolean endHeaders(MilterConnection c, int length) throws IOException {
+        var headers = MessageHeaders.parse(headerBlock.toByteArray(), 0, length);
+        headerBlock = null;
+
+        if (c.wants(SMFIP_NOHDRS)) {
+            for (var i = 0; i < headers.size(); i++) {
+                c.send(SMFIC_HEADER, headers.getName(i), headers.getValue(i));
+                if (c.replies(SMFIP_NR_HDR) && replied(c)) {
+                    return true;
+                }
+            }
+        }
+        if (c.wants(SMFIP_NOEOH)) {
+            c.send(SMFIC_EOH);
+            return c.replies(SMFIP_NR_EOH) && replied(c);
+        }
+        return false;
+    }
+
+    /**
+     * Sends a part of the body, in chunks the milter accepts.
+     *
+     * @return false if the milter does not want more of the body
+     */
+    private boolean body(MilterConnection c, byte[] chunk, int offset) throws IOException {
+        for (var i = offset; i < chunk.length; i += MAX_BODY_CHUNK) {
+            c.send(SMFIC_BODY, chunk, i, Math.min(MAX_BODY_CHUNK, chunk.length - i));
+            if (c.replies(SMFIP_NR_BODY) && read(c) != SMFIR_CONTINUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the reply to a step.
+     *
+     * @return true if the milter gave its verdict
+     */
+    private boolean replied(MilterConnection c) throws IOException {
+        return read(c) != SMFIR_CONTINUE;
+    }
+
+    /**
+     * Reads replies up to the one ending the step, completing the verdict if
+     * it decides the fate of the message.
+     *
+     * @return the command of the reply ending the step
+     */
+    private byte read(MilterConnection c) throws IOException {
+        while (true) {
+            var reply = c.read();
+            switch (reply.command()) {
+                case SMFIR_CONTINUE, SMFIR_SKIP:
+                    return reply.command();
+                case SMFIR_ACCEPT:
+                    verdict.complete(null);
+                    return reply.command();
+                case SMFIR_DISCARD:
+                    verdict.complete(DISCARDED);
+                    return reply.command();
+                case SMFIR_REJECT:
+                    verdict.complete(REJECTED);
+                    return reply.command();
+                case SMFIR_TEMPFAIL:
+                    verdict.complete(TEMPFAILED);
+                    return reply.command();
+                case SMFIR_REPLYCODE:
+                    verdict.complete(replyCode(reply.data()));
+                    return reply.command();
+                case SMFIR_SHUTDOWN, SMFIR_CONN_FAIL:
+                    throw new IOException("Milter closed the connection: " + (char) reply.command());
+                default:
+                    // progress, or a message modification which is not supported
+                    break;
+            }
+        }
+    }
+
+    private static DataRejection replyCode(byte[] data) {
+        var length = data.length > 0 && data[data.length - 1] == 0 ? data.length - 1 : data.length;
+        var reply = new String(data, 0, length, StandardCharsets.UTF_8).strip();
+        if (reply.length() < 3 || (reply.charAt(0) != '4' && reply.charAt(0) != '5')) {
+            return REJECTED;
+        }
+        return new DataRejection(reply);
+    }
+}
@@ -0,0 +1,159 @@
+package org.mailster.smtp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes a message body read from a stream as read-only
+ * {@link ByteBuffer} slices, to a single subscriber.
+ * <p>
+ * Slices are only read when requested: a subscriber which stops requesting
+ * keeps the rest of the body in the decoder buffer or in the spool file. The
+ * stream is read on the thread calling {@link Flow.Subscription#request},
+ * which is cheap since the body is already fully received. It is closed when
+ * the body is completed, cancelled, fails or when the publisher is closed.
+ */
+public class BodyPublisher implements Flow.Publisher<ByteBuffer>, Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final InputStream in;
+    private final int chunkSize;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+    private boolean done;
+
+    public BodyPublisher(InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param in        the unstuffed body
+     * @param chunkSize the maximum size of the slices
+     */
+    public BodyPublisher(InputStream in, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.in = in;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (cancelled || !subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Body can only be subscribed to once"));
+            return;
+        }
+
+        this.subscriber = subscriber;
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+                } else {
+                    demand.getAndUpdate(d -> d > Long.MAX_VALUE - n ? Long.MAX_VALUE : d + n);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Stops publishing and closes the stream, e.g. once the delivery is over
+     * even though the subscriber did not read the whole body.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        drain();
+    }
+
+    /**
+     * Emits the requested slices. Only one thread at a time emits, the
+     * others leave their work to it, which also makes request() reentrant.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        var missed = 1;
+        do {
+            while (!done) {
+                if (cancelled) {
+                    finish();
+                } else if (invalidRequest != null) {
+                    finish();
+                    subscriber.onError(invalidRequest);
+                } else if (demand.get() == 0) {
+                    break;
+                } else {
+                    ByteBuffer slice;
+                    try {
+                        slice = read();
+                    } catch (IOException e) {
+                        finish();
+                        subscriber.onError(e);
+                        break;
+                    }
+
+                    if (slice == null) {
+                        finish();
+                        subscriber.onComplete();
+                    } else {
+                        demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+                        subscriber.onNext(slice);
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private ByteBuffer read() throws IOException {
+        var chunk = new byte[chunkSize];
+        var length = in.readNBytes(chunk, 0, chunkSize);
+        if (length == 0) {
+            return null;
+        }
+        return ByteBuffer.wrap(chunk, 0, length).asReadOnlyBuffer();
+    }
+
+    private void finish() {
+        done = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // the body was read, or is not needed anymore
+        }
+    }
+}
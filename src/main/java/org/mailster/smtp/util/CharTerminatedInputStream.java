@@ -20,42 +20,61 @@ package org.mailster.smtp.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * An InputStream class that terminates the stream when it encounters a
  * particular byte sequence.
+ * <p>
+ * The wrapped stream is read in blocks. Bytes which may be the beginning of
+ * the terminating sequence are held back until enough data has been read to
+ * decide whether they are part of it or not. Large reads go straight into the
+ * caller's array.
  *
  * @version 1.0.0, 24/04/1999
  */
 public class CharTerminatedInputStream extends InputStream {
 
+    /**
+     * The size of the internal read ahead buffer
+     */
+    private static final int BUFFER_SIZE = 8192;
+
     /**
      * The wrapped input stream
      */
-    private InputStream in;
+    private final InputStream in;
 
     /**
-     * The terminating character array
+     * The terminating byte sequence
      */
-    private int[] match;
+    private final byte[] match;
 
     /**
-     * An array containing the last N characters read from the stream, where
-     * N is the length of the terminating character array
+     * Bytes read from the wrapped stream that have not been returned yet.
+     * The valid range is <code>[start, end)</code>.
      */
-    private int[] buffer;
+    private final byte[] buffer;
+    private int start;
+    private int end;
 
     /**
-     * The number of bytes that have been read that have not been placed
-     * in the internal buffer.
+     * Reusable array for single byte reads
      */
-    private int pos = 0;
+    private final byte[] single = new byte[1];
 
     /**
      * Whether the terminating sequence has been read from the stream
      */
     private boolean endFound = false;
 
+    /**
+     * Whether the wrapped stream reached its end without the terminating
+     * sequence being seen
+     */
+    private boolean eof = false;
+
     /**
      * A constructor for this object that takes a stream to be wrapped
      * and a terminating character sequence.
@@ -71,11 +90,11 @@ public class CharTerminatedInputStream extends InputStream {
         if (terminator.length == 0) {
             throw new IllegalArgumentException("The terminating character array cannot be of zero length.");
         }
-        match = new int[terminator.length];
-        buffer = new int[terminator.length];
+        match = new byte[terminator.length];
         for (var i = 0; i < terminator.length; i++) {
-            match[i] = (int) terminator[i];
+            match[i] = (byte) terminator[i];
         }
+        buffer = new byte[Math.max(BUFFER_SIZE, 2 * terminator.length)];
         this.in = in;
     }
 
@@ -88,74 +107,124 @@ public class CharTerminatedInputStream extends InputStream {
      */
     @Override
     public int read() throws IOException {
-        if (endFound) {
-            //We've found the match to the terminator
-            return -1;
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /**
+     * Read bytes off this stream. Bytes read before the underlying stream
+     * ended are returned first, the {@link ProtocolException} is only thrown
+     * once they have all been consumed.
+     *
+     * @param b   the byte array into which the bytes will be read
+     * @param off the offset into the byte array where the bytes will be inserted
+     * @param len the maximum number of bytes to be read off the stream
+     * @return the number of bytes read or -1 once the terminator was found
+     * @throws IOException       if an IOException is encountered while reading off the stream
+     * @throws ProtocolException if the underlying stream returns -1 before the terminator is seen.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
         }
-        if (pos == 0) {
-            //We have no data... read in a record
-            var b = in.read();
-            if (b == -1) {
+
+        while (!endFound) {
+            if (start < end) {
+                var pos = indexOfTerminator(buffer, start, end);
+                if (pos > start || eof) {
+                    //bytes before a (possible) terminator can be handed out,
+                    // once the stream ended everything left is plain data
+                    var n = Math.min(len, (eof ? end : pos) - start);
+                    System.arraycopy(buffer, start, b, off, n);
+                    start += n;
+                    return n;
+                }
+                if (end - pos >= match.length) {
+                    //A complete match was made...
+                    endFound = true;
+                    start = end = 0;
+                    return -1;
+                }
+                //only a part of the terminator is buffered, read more
+                fill();
+            } else if (eof) {
                 //End of stream reached without seeing the terminator
                 throw new ProtocolException("pre-mature end of data");
-            }
-            if (b != match[0]) {
-                //this char is not the first char of the match
-                return b;
-            }
-            //this is a match...put this in the first byte of the buffer,
-            // and fall through to matching logic
-            buffer[0] = b;
-            pos++;
-        } else {
-            if (buffer[0] != match[0]) {
-                //Maybe from a previous scan, there is existing data,
-                // and the first available char does not match the
-                // beginning of the terminating string.
-                return topChar();
-            }
-            //we have a match... fall through to matching logic.
-        }
-        //MATCHING LOGIC
-
-        //The first character is a match... scan for complete match,
-        // reading extra chars as needed, until complete match is found
-        for (var i = 0; i < match.length; i++) {
-            if (i >= pos) {
-                var b = in.read();
-                if (b == -1) {
-                    //end of stream found, so match cannot be fulfilled.
-                    // note we don't set endFound, because otherwise
-                    // remaining part of buffer won't be returned.
-                    return topChar();
+            } else if (len >= buffer.length) {
+                var n = readDirect(b, off, len);
+                if (n > 0) {
+                    return n;
                 }
-                //put the read char in the buffer
-                buffer[pos] = b;
-                pos++;
-            }
-            if (buffer[i] != match[i]) {
-                //we did not find a match... return the top char
-                return topChar();
+            } else {
+                fill();
             }
         }
-        //A complete match was made...
-        endFound = true;
         return -1;
     }
 
     /**
-     * Private helper method to update the internal buffer of last read characters
+     * Reads from the wrapped stream straight into the caller's array and
+     * moves a trailing partial terminator into the internal buffer.
      *
-     * @return the byte that was previously at the front of the internal buffer
+     * @return the number of bytes that can be handed out, 0 if none
+     */
+    private int readDirect(byte[] b, int off, int len) throws IOException {
+        var n = in.read(b, off, len);
+        if (n == -1) {
+            eof = true;
+            return 0;
+        }
+
+        var to = off + n;
+        var pos = indexOfTerminator(b, off, to);
+        if (pos < to) {
+            if (to - pos >= match.length) {
+                endFound = true;
+            } else {
+                System.arraycopy(b, pos, buffer, 0, to - pos);
+                start = 0;
+                end = to - pos;
+            }
+        }
+        return pos - off;
+    }
+
+    /**
+     * Compacts the internal buffer and appends the next block of the wrapped
+     * stream to it.
      */
-    private int topChar() {
-        var b = buffer[0];
-        if (pos > 1) {
-            //copy down the buffer to keep the fresh data at top
-            System.arraycopy(buffer, 1, buffer, 0, pos - 1);
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        var n = in.read(buffer, end, buffer.length - end);
+        if (n == -1) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of the terminator within
+     * <code>[from, to)</code>, or of its partial occurrence cut by the end
+     * of the range. Returns <code>to</code> when there is none.
+     */
+    private int indexOfTerminator(byte[] b, int from, int to) {
+        var first = match[0];
+        for (var i = from; i < to; i++) {
+            if (b[i] == first) {
+                var k = Math.min(match.length, to - i);
+                if (Arrays.mismatch(b, i, i + k, match, 0, k) == -1) {
+                    return i;
+                }
+            }
         }
-        pos--;
-        return b;
+        return to;
     }
 
     @Override
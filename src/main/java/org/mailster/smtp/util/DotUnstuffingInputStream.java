@@ -20,19 +20,31 @@ package org.mailster.smtp.util;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Objects;
 
 /**
  * Removes the dot-stuffing happening during the SMTP message
  * transfer.
+ * <p>
+ * Bulk reads are unstuffed in place in the caller's array. A dot following
+ * '\r\n' is dropped and the byte after it is always kept, even if it is
+ * another dot.
  */
 public class DotUnstuffingInputStream extends FilterInputStream {
 
     /**
-     * An array to hold the last two bytes read off the stream.
-     * This allows the stream to detect '\r\n' sequences even
-     * when they occur across read boundaries.
+     * The last two bytes returned by the stream. This allows the stream
+     * to detect '\r\n' sequences even when they occur across read
+     * boundaries.
      */
-    protected int[] last = {-1, -1};
+    private int last1 = -1;
+    private int last2 = -1;
+
+    /**
+     * Whether a dot has just been dropped, in which case the next byte is
+     * returned as is.
+     */
+    private boolean dotDropped = false;
 
     public DotUnstuffingInputStream(InputStream in) {
         super(in);
@@ -45,14 +57,19 @@ public class DotUnstuffingInputStream extends FilterInputStream {
      */
     @Override
     public int read() throws IOException {
-        var b = in.read();
-        if (b == '.' && last[0] == '\r' && last[1] == '\n') {
-            //skip this '.' because it should have been stuffed
-            b = in.read();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (!dotDropped && b == '.' && last1 == '\n' && last2 == '\r') {
+                //skip this '.' because it should have been stuffed
+                dotDropped = true;
+                continue;
+            }
+            dotDropped = false;
+            last2 = last1;
+            last1 = b;
+            return b;
         }
-        last[0] = last[1];
-        last[1] = b;
-        return b;
+        return -1;
     }
 
     /**
@@ -65,31 +82,80 @@ public class DotUnstuffingInputStream extends FilterInputStream {
      */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (b == null) {
-            throw new NullPointerException();
-        } else if (len == 0) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
             return 0;
-        } else if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
-            throw new IndexOutOfBoundsException();
         }
 
-        var c = read();
-        if (c == -1) {
-            return -1;
+        int n;
+        while ((n = in.read(b, off, len)) != -1) {
+            n = unstuff(b, off, off + n) - off;
+            if (n > 0) {
+                return n;
+            }
+            //the block was a single stuffed dot, read on
         }
-        b[off] = (byte) c;
+        return -1;
+    }
 
-        var i = 1;
+    /**
+     * Removes the stuffed dots of <code>[from, to)</code> by moving the
+     * following bytes down.
+     *
+     * @return the end of the unstuffed range
+     */
+    private int unstuff(byte[] b, int from, int to) {
+        var w = from;
+        var l1 = last1;
+        var l2 = last2;
+        var dropped = dotDropped;
 
-        for (; i < len; i++) {
-            c = read();
-            if (c == -1) {
-                break;
+        for (var r = from; r < to; r++) {
+            var c = b[r];
+            if (dropped) {
+                dropped = false;
+            } else if (c == '.' && l1 == '\n' && l2 == '\r') {
+                //skip this '.' because it should have been stuffed
+                dropped = true;
+                continue;
+            }
+            if (w != r) {
+                b[w] = c;
             }
-            b[off + i] = (byte) c;
+            w++;
+            l2 = l1;
+            l1 = c;
         }
 
-        return i;
+        last1 = l1;
+        last2 = l2;
+        dotDropped = dropped;
+        return w;
+    }
+
+    /**
+     * Skips unstuffed bytes, reading them through so that a dot starting
+     * the next line is still dropped.
+     *
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        var buffer = new byte[(int) Math.min(n, 2048)];
+        var remaining = n;
+        while (remaining > 0) {
+            var read = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
     }
 
     @Override
@@ -0,0 +1,211 @@
+package org.mailster.smtp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+import org.mailster.smtp.core.MessageHeaders;
+
+import jakarta.mail.internet.MimeUtility;
+
+/**
+ * A leaf part of a MIME message returned by the {@link MimeWalker}. Its
+ * content can only be read until the walker moves to the next part.
+ */
+public class MimePart {
+
+    private final MessageHeaders headers;
+    private final int depth;
+    private final String contentType;
+    private final InputStream rawContent;
+    private InputStream content;
+
+    MimePart(MessageHeaders headers, int depth, String contentType, InputStream rawContent) {
+        this.headers = headers;
+        this.depth = depth;
+        this.contentType = contentType;
+        this.rawContent = rawContent;
+    }
+
+    public MessageHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the number of multiparts enclosing the part, 0 for the body of
+     * a message which is not a multipart.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the media type of the part in lower case, without parameters,
+     * e.g. <code>text/plain</code>.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the charset parameter of the content type or null.
+     */
+    public String getCharset() {
+        return getParameter(headers.get("Content-Type"), "charset");
+    }
+
+    /**
+     * Returns the content transfer encoding in lower case, <code>7bit</code>
+     * by default.
+     */
+    public String getTransferEncoding() {
+        var encoding = headers.get("Content-Transfer-Encoding");
+        return encoding == null || encoding.isEmpty() ? "7bit" : encoding.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the file name of the part, from its content disposition or
+     * else its content type, or null.
+     */
+    public String getFileName() {
+        var name = getParameter(headers.get("Content-Disposition"), "filename");
+        if (name == null) {
+            name = getParameter(headers.get("Content-Type"), "name");
+        }
+        if (name != null && name.contains("=?")) {
+            try {
+                name = MimeUtility.decodeText(name);
+            } catch (UnsupportedEncodingException e) {
+                // keep the encoded name
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns true if the part is meant to be saved rather than displayed.
+     */
+    public boolean isAttachment() {
+        var disposition = headers.get("Content-Disposition");
+        return disposition != null && disposition.regionMatches(true, 0, "attachment", 0, 10);
+    }
+
+    /**
+     * Returns the content as it appears in the message.
+     */
+    public InputStream getRawContent() {
+        return rawContent;
+    }
+
+    /**
+     * Returns the content, decoded from Base64 or quoted-printable as it is
+     * read.
+     */
+    public InputStream getContent() {
+        if (content == null) {
+            content = switch (getTransferEncoding()) {
+                case "base64" -> Base64.getMimeDecoder().wrap(rawContent);
+                case "quoted-printable" -> new QuotedPrintableInputStream(rawContent);
+                default -> rawContent;
+            };
+        }
+        return content;
+    }
+
+    @Override
+    public String toString() {
+        return contentType + (getFileName() == null ? "" : " " + getFileName()) + " depth=" + depth;
+    }
+
+    /**
+     * Returns the value of a parameter of a structured header field, e.g. the
+     * boundary of a multipart content type, or null. RFC 2231 extended
+     * values are decoded, but not continuations.
+     */
+    static String getParameter(String field, String name) {
+        if (field == null) {
+            return null;
+        }
+
+        String value = null;
+        var i = nextParameter(field, 0);
+        while (i >= 0) {
+            var eq = field.indexOf('=', i);
+            if (eq < 0) {
+                break;
+            }
+            var key = field.substring(i, eq).strip().toLowerCase(Locale.ROOT);
+
+            var j = eq + 1;
+            while (j < field.length() && (field.charAt(j) == ' ' || field.charAt(j) == '\t')) {
+                j++;
+            }
+            String v;
+            if (j < field.length() && field.charAt(j) == '"') {
+                var sb = new StringBuilder();
+                for (j++; j < field.length() && field.charAt(j) != '"'; j++) {
+                    if (field.charAt(j) == '\\' && j + 1 < field.length()) {
+                        j++;
+                    }
+                    sb.append(field.charAt(j));
+                }
+                v = sb.toString();
+            } else {
+                var end = field.indexOf(';', j);
+                v = field.substring(j, end < 0 ? field.length() : end).strip();
+            }
+
+            if (key.equals(name + "*")) {
+                return decodeExtendedValue(v);
+            } else if (key.equals(name) && value == null) {
+                value = v;
+            }
+            i = nextParameter(field, j);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the start of the parameter after the next ';' from
+     * <code>from</code>, or -1.
+     */
+    private static int nextParameter(String field, int from) {
+        var semicolon = field.indexOf(';', from);
+        return semicolon < 0 ? -1 : semicolon + 1;
+    }
+
+    /**
+     * Decodes a <code>charset'language'percent-encoded</code> value.
+     */
+    private static String decodeExtendedValue(String value) {
+        var first = value.indexOf('\'');
+        var second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+        if (second < 0) {
+            return value;
+        }
+
+        var bytes = new ByteArrayOutputStream(value.length());
+        for (var i = second + 1; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length() && Character.digit(value.charAt(i + 1), 16) >= 0
+                    && Character.digit(value.charAt(i + 2), 16) >= 0) {
+                bytes.write(Integer.parseInt(value, i + 1, i + 3, 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+
+        Charset charset;
+        try {
+            charset = Charset.forName(value.substring(0, first));
+        } catch (RuntimeException e) {
+            charset = StandardCharsets.UTF_8;
+        }
+        return bytes.toString(charset);
+    }
+}
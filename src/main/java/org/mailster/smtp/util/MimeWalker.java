@@ -0,0 +1,463 @@
+package org.mailster.smtp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.mailster.smtp.core.MessageHeaders;
+
+/**
+ * Walks the leaf parts of a MIME message in a single pass over its stream,
+ * e.g. the one handed to a {@link org.mailster.smtp.api.MessageListener}.
+ * Multiparts are entered, their preambles and epilogues skipped, every
+ * other part is returned with its headers and a content stream decoding
+ * Base64 or quoted-printable as it is read. Enclosed messages are returned
+ * as parts.
+ * <p>
+ * Memory is bounded by the size of a line buffer and of the header blocks,
+ * whatever the size of the parts:
+ *
+ * <pre>
+ * var walker = new MimeWalker(data);
+ * for (var part = walker.next(); part != null; part = walker.next()) {
+ *     if (part.isAttachment()) {
+ *         Files.copy(part.getContent(), dir.resolve(...));
+ *     }
+ * }
+ * </pre>
+ *
+ * The content of a part is only readable until the next call to
+ * {@link #next()}, which skips what was left unread. The stream of the
+ * message is not closed. Not thread safe.
+ */
+public class MimeWalker {
+
+    /**
+     * Beyond it, the fields of a header block are ignored.
+     */
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    /**
+     * Beyond it, nested multiparts are returned as parts.
+     */
+    public static final int MAX_DEPTH = 32;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /** The current segment, a whole line or the part of it fitting the buffer. */
+    private int segStart;
+    private int segContentEnd;
+    private int segEnd;
+    private boolean segLineStart;
+    private boolean segLineEnd = true;
+
+    /** The "--boundary" of the enclosing multiparts, innermost last. */
+    private final List<byte[]> boundaries = new ArrayList<>();
+    private final List<Boolean> digests = new ArrayList<>();
+
+    /** The level of the last delimiter read, -1 for the end of the stream. */
+    private int delimiterLevel;
+    private boolean delimiterClosing;
+
+    private MessageHeaders messageHeaders;
+    private PartInputStream current;
+    private boolean done;
+
+    public MimeWalker(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Stream can't be null");
+        }
+        this.in = in;
+    }
+
+    /**
+     * Returns the headers of the message, read by the first call to
+     * {@link #next()}.
+     */
+    public MessageHeaders getMessageHeaders() {
+        return messageHeaders;
+    }
+
+    /**
+     * Returns the next leaf part of the message or null when there are no
+     * more.
+     */
+    public MimePart next() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        if (messageHeaders == null) {
+            messageHeaders = readHeaders();
+            var part = startPart(messageHeaders, false);
+            if (part != null) {
+                return part;
+            }
+        } else {
+            current.skipRest();
+        }
+
+        while (true) {
+            if (delimiterLevel < 0) {
+                done = true;
+                return null;
+            }
+
+            while (boundaries.size() > delimiterLevel + 1) {
+                pop();
+            }
+
+            if (delimiterClosing) {
+                pop();
+                if (boundaries.isEmpty()) {
+                    done = true;
+                    return null;
+                }
+                // the epilogue
+                current = new PartInputStream(false);
+                current.skipRest();
+                continue;
+            }
+
+            var headers = readHeaders();
+            var part = startPart(headers, digests.get(digests.size() - 1));
+            if (part != null) {
+                return part;
+            }
+        }
+    }
+
+    private void pop() {
+        boundaries.remove(boundaries.size() - 1);
+        digests.remove(digests.size() - 1);
+    }
+
+    /**
+     * Enters a multipart, skipping its preamble, and returns null, or returns
+     * a leaf part.
+     */
+    private MimePart startPart(MessageHeaders headers, boolean digestParent) throws IOException {
+        var field = headers.get("Content-Type");
+        var type = contentType(field, digestParent);
+
+        // already set if the header block was cut short
+        var content = current;
+        if (content == null && type.startsWith("multipart/") && boundaries.size() < MAX_DEPTH) {
+            var boundary = MimePart.getParameter(field, "boundary");
+            if (boundary != null && !boundary.isEmpty()) {
+                boundaries.add(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+                digests.add(type.equals("multipart/digest"));
+                // the preamble
+                current = new PartInputStream(false);
+                current.skipRest();
+                return null;
+            }
+        }
+
+        current = content != null ? content : new PartInputStream(false);
+        return new MimePart(headers, boundaries.size(), type, current);
+    }
+
+    private static String contentType(String field, boolean digestParent) {
+        if (field != null) {
+            var semicolon = field.indexOf(';');
+            var type = (semicolon < 0 ? field : field.substring(0, semicolon)).strip();
+            if (type.indexOf('/') > 0) {
+                return type.toLowerCase(Locale.ROOT);
+            }
+        }
+        return digestParent ? "message/rfc822" : "text/plain";
+    }
+
+    /**
+     * Reads a header block up to the empty line ending it. A delimiter or the
+     * end of the stream also ends it, leaving a finished empty content.
+     */
+    private MessageHeaders readHeaders() throws IOException {
+        current = null;
+        var block = new ByteArrayOutputStream(1024);
+        while (nextSegment(true) > 0) {
+            if (segLineStart && isLine()) {
+                if (segContentEnd == segStart) {
+                    break;
+                }
+                if (delimiter()) {
+                    current = new PartInputStream(true);
+                    break;
+                }
+            }
+            if (block.size() + segEnd - segStart <= MAX_HEADER_SIZE) {
+                block.write(buf, segStart, segEnd - segStart);
+            }
+        }
+        if (current == null && eof && pos == limit) {
+            // nothing follows the headers
+            delimiterLevel = -1;
+            current = new PartInputStream(true);
+        }
+        return MessageHeaders.parse(block.toByteArray(), 0, block.size());
+    }
+
+    /**
+     * Returns true if the current segment is a whole line or the last one of
+     * the stream.
+     */
+    private boolean isLine() {
+        return segLineEnd || eof && segEnd == limit;
+    }
+
+    /**
+     * Returns true if the current line is the delimiter of an enclosing
+     * multipart, setting the delimiter level.
+     */
+    private boolean delimiter() {
+        var length = segContentEnd - segStart;
+        for (var level = boundaries.size() - 1; level >= 0; level--) {
+            var boundary = boundaries.get(level);
+            if (length < boundary.length || !startsWith(boundary)) {
+                continue;
+            }
+
+            var i = segStart + boundary.length;
+            var closing = i + 1 < segContentEnd && buf[i] == '-' && buf[i + 1] == '-';
+            if (closing) {
+                i += 2;
+            }
+            while (i < segContentEnd && (buf[i] == ' ' || buf[i] == '\t')) {
+                i++;
+            }
+            if (i == segContentEnd) {
+                delimiterLevel = level;
+                delimiterClosing = closing;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean startsWith(byte[] boundary) {
+        for (var i = 0; i < boundary.length; i++) {
+            if (buf[segStart + i] != boundary[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next segment of the stream: the rest of the current line,
+     * up to its line end included, or as much of it as the buffer holds.
+     *
+     * @param block false to return 0 rather than read the stream
+     * @return 1 if there is a segment, 0 if the stream would have to be read,
+     *         -1 at the end of the stream
+     */
+    private int nextSegment(boolean block) throws IOException {
+        segLineStart = segLineEnd;
+        var scanned = pos;
+        while (true) {
+            for (var i = scanned; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    var contentEnd = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    return segment(contentEnd, i + 1, true);
+                }
+            }
+
+            if (eof) {
+                if (pos == limit) {
+                    return -1;
+                }
+                return segment(limit, limit, false);
+            }
+            if (pos == 0 && limit == buf.length) {
+                // a line longer than the buffer, keeping a CR for the next
+                var end = buf[limit - 1] == '\r' ? limit - 1 : limit;
+                return segment(end, end, false);
+            }
+            if (!block) {
+                return 0;
+            }
+
+            scanned = limit - pos;
+            fill();
+        }
+    }
+
+    private int segment(int contentEnd, int end, boolean lineEnd) {
+        segStart = pos;
+        segContentEnd = contentEnd;
+        segEnd = end;
+        segLineEnd = lineEnd;
+        pos = end;
+        return 1;
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        var n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /**
+     * The content of a part, up to the next delimiter. The line end before
+     * a delimiter belongs to it, so the line end of each line is held back
+     * until the next line is known not to be a delimiter.
+     */
+    private class PartInputStream extends InputStream {
+
+        private final byte[] heldEol = new byte[2];
+        private int heldEolLength;
+        private final byte[] eol = new byte[2];
+        private int eolLength;
+        private int eolPos;
+
+        private int outPos;
+        private int outEnd;
+
+        private final byte[] single = new byte[1];
+        private boolean finished;
+        private boolean atEnd;
+
+        PartInputStream(boolean finished) {
+            this.finished = finished;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            var n = 0;
+            while (n < len) {
+                if (eolPos < eolLength) {
+                    var count = Math.min(len - n, eolLength - eolPos);
+                    System.arraycopy(eol, eolPos, b, off + n, count);
+                    eolPos += count;
+                    n += count;
+                } else if (outPos < outEnd) {
+                    var count = Math.min(len - n, outEnd - outPos);
+                    System.arraycopy(buf, outPos, b, off + n, count);
+                    outPos += count;
+                    n += count;
+                } else if (atEnd) {
+                    finished = true;
+                    break;
+                } else if (finished || !advance(n == 0)) {
+                    break;
+                }
+            }
+            return n == 0 && finished ? -1 : n;
+        }
+
+        /**
+         * Moves to the next segment of content.
+         *
+         * @return false if it would block or the content is over
+         */
+        private boolean advance(boolean block) throws IOException {
+            var r = nextSegment(block);
+            if (r == 0) {
+                return false;
+            }
+            if (r < 0) {
+                // the held line end is content
+                release();
+                delimiterLevel = -1;
+                atEnd = true;
+                return true;
+            }
+
+            if (segLineStart) {
+                if (isLine() && !boundaries.isEmpty() && delimiter()) {
+                    finished = true;
+                    return false;
+                }
+                release();
+            }
+            outPos = segStart;
+            outEnd = segContentEnd;
+            heldEolLength = segEnd - segContentEnd;
+            System.arraycopy(buf, segContentEnd, heldEol, 0, heldEolLength);
+            return true;
+        }
+
+        private void release() {
+            System.arraycopy(heldEol, 0, eol, 0, heldEolLength);
+            eolLength = heldEolLength;
+            eolPos = 0;
+            heldEolLength = 0;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            var skipped = 0L;
+            while (skipped < n) {
+                if (eolPos < eolLength) {
+                    eolPos++;
+                    skipped++;
+                } else if (outPos < outEnd) {
+                    var count = (int) Math.min(n - skipped, outEnd - outPos);
+                    outPos += count;
+                    skipped += count;
+                } else if (atEnd) {
+                    finished = true;
+                    break;
+                } else if (finished || !advance(true)) {
+                    break;
+                }
+            }
+            return skipped;
+        }
+
+        /**
+         * Skips the content left up to the next delimiter.
+         */
+        void skipRest() throws IOException {
+            while (!finished) {
+                eolPos = eolLength;
+                outPos = outEnd;
+                if (atEnd) {
+                    finished = true;
+                } else {
+                    advance(true);
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            return (eolLength - eolPos) + (outEnd - outPos);
+        }
+
+        /**
+         * Does nothing, the walker skips the rest of the content.
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
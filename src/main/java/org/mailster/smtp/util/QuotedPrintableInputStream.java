@@ -0,0 +1,136 @@
+package org.mailster.smtp.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * An InputStream decoding quoted-printable content (RFC 2045) as it is read,
+ * with a look ahead bounded by the maximum length of an encoded line.
+ * <p>
+ * Soft line breaks are removed, even when followed by white space added by
+ * transports. Invalid escapes are kept as they are.
+ */
+public class QuotedPrintableInputStream extends FilterInputStream {
+
+    /**
+     * The longest white space run looked at between a '=' and a line end.
+     */
+    private static final int MAX_PADDING = 76;
+
+    public QuotedPrintableInputStream(InputStream in) {
+        super(new PushbackInputStream(in, MAX_PADDING + 2));
+    }
+
+    @Override
+    public int read() throws IOException {
+        var pin = (PushbackInputStream) in;
+        while (true) {
+            var c = pin.read();
+            if (c != '=') {
+                return c;
+            }
+
+            var c1 = pin.read();
+            if (c1 == '\r' || c1 == '\n') {
+                softBreak(pin, c1);
+                continue;
+            }
+
+            var high = Character.digit(c1, 16);
+            if (high >= 0) {
+                var c2 = pin.read();
+                var low = Character.digit(c2, 16);
+                if (low >= 0) {
+                    return (high << 4) | low;
+                }
+                unread(pin, c2);
+            } else if (c1 == ' ' || c1 == '\t') {
+                if (skipPadding(pin, c1)) {
+                    continue;
+                }
+                return c;
+            }
+            unread(pin, c1);
+            return c;
+        }
+    }
+
+    /**
+     * Skips the line end of a soft line break starting with <code>c</code>.
+     */
+    private static void softBreak(PushbackInputStream pin, int c) throws IOException {
+        if (c == '\r') {
+            var next = pin.read();
+            if (next != '\n') {
+                unread(pin, next);
+            }
+        }
+    }
+
+    /**
+     * Skips the white space following a '=' if a line end follows it, or
+     * else leaves it unread.
+     */
+    private static boolean skipPadding(PushbackInputStream pin, int first) throws IOException {
+        var padding = new byte[MAX_PADDING + 1];
+        var length = 0;
+        var c = first;
+        while ((c == ' ' || c == '\t') && length < MAX_PADDING) {
+            padding[length++] = (byte) c;
+            c = pin.read();
+        }
+
+        if (c == '\r' || c == '\n') {
+            softBreak(pin, c);
+            return true;
+        }
+
+        unread(pin, c);
+        pin.unread(padding, 0, length);
+        return false;
+    }
+
+    private static void unread(PushbackInputStream pin, int c) throws IOException {
+        if (c >= 0) {
+            pin.unread(c);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        var n = 0;
+        while (n < len) {
+            var c = read();
+            if (c < 0) {
+                break;
+            }
+            b[off + n++] = (byte) c;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = 0L;
+        while (skipped < n && read() >= 0) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -45,6 +45,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.function.Consumer;
 
 import jakarta.mail.internet.SharedInputStream;
 
@@ -65,7 +66,8 @@ import jakarta.mail.internet.SharedInputStream;
 /**
  * This class has been modified to ensure that the temporary
  * underlying file is deleted when last reference is gone or
- * when JVM exits normally.
+ * when JVM exits normally. Files created with a release callback,
+ * such as pooled spool files, are handed back to it instead.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  */
@@ -117,6 +119,19 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
         this(file, defaultBufferSize);
     }
 
+    /**
+     * Creates a <code>SharedFileInputStream</code>
+     * for the file, handing it to <code>onRelease</code> instead of
+     * deleting it when the last reference is gone.
+     *
+     * @param file      the file
+     * @param onRelease called with the file once it is not read anymore
+     */
+    public SharedTmpFileInputStream(File file, Consumer<File> onRelease) throws IOException {
+        super(null);
+        init(new SharedFile(file, onRelease), defaultBufferSize);
+    }
+
     /**
      * Creates a <code>SharedFileInputStream</code>
      * for the named file
@@ -225,13 +240,17 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
             }
         }
         count = pos;
-        in.seek(bufpos + pos);
         // limit to datalen
         var len = buf.length - pos;
         if (bufpos - start + pos + len > datalen) {
             len = (int) (datalen - (bufpos - start + pos));
         }
-        var n = in.read(buf, pos, len);
+        int n;
+        // the file may be read by streams of several sessions
+        synchronized (in) {
+            in.seek(bufpos + pos);
+            n = in.read(buf, pos, len);
+        }
         if (n > 0) {
             count = n + pos;
         }
@@ -515,6 +534,7 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
         private int cnt;
         private RandomAccessFile in;
         private File sharedFile;
+        private Consumer<File> onRelease;
 
         SharedFile(String file) throws IOException {
             this(new File(file));
@@ -530,7 +550,13 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
             this.in = new RandomAccessFile(file, "r");
         }
 
-        public RandomAccessFile open() {
+        SharedFile(File file, Consumer<File> onRelease) throws IOException {
+            this.sharedFile = file;
+            this.onRelease = onRelease;
+            this.in = new RandomAccessFile(file, "r");
+        }
+
+        public synchronized RandomAccessFile open() {
             cnt++;
             return in;
         }
@@ -538,7 +564,9 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
         public synchronized void close() throws IOException {
             if (cnt > 0 && --cnt <= 0) {
                 in.close();
-                if (!sharedFile.delete()) {
+                if (onRelease != null) {
+                    onRelease.accept(sharedFile);
+                } else if (!sharedFile.delete()) {
                     throw new IOException("Some other process must be locking the file or file is write protected");
                 }
             }
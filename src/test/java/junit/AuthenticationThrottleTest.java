@@ -0,0 +1,79 @@
+package junit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.smtp.core.auth.AuthenticationThrottle;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the failure accounting of {@link AuthenticationThrottle}.
+ */
+public class AuthenticationThrottleTest extends TestCase {
+
+    private AuthenticationThrottle throttle;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (throttle != null) {
+            throttle.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testDelayAndReject() {
+        throttle = new AuthenticationThrottle(1, TimeUnit.MINUTES, 2, 6);
+        throttle.setBaseDelay(100);
+        throttle.setMaxDelay(350);
+
+        assertEquals(0, throttle.recordFailure("10.0.0.1", "john"));
+        assertEquals(0, throttle.recordFailure("10.0.0.1", "john"));
+        assertEquals(100, throttle.recordFailure("10.0.0.1", "john"));
+        assertEquals(200, throttle.recordFailure("10.0.0.1", "john"));
+        assertEquals(350, throttle.recordFailure("10.0.0.1", "john"));
+        assertFalse(throttle.isRejected("10.0.0.1"));
+        assertEquals(AuthenticationThrottle.REJECT, throttle.recordFailure("10.0.0.1", "john"));
+
+        assertTrue(throttle.isRejected("10.0.0.1"));
+        assertFalse(throttle.isRejected("10.0.0.2"));
+    }
+
+    public void testUsernameAcrossAddresses() {
+        throttle = new AuthenticationThrottle(1, TimeUnit.MINUTES, 1, 3);
+        throttle.setBaseDelay(100);
+        assertEquals(0, throttle.recordFailure("10.0.0.1", "john"));
+        assertEquals(100, throttle.recordFailure("10.0.0.2", "JOHN"));
+
+        // the failures for a username delay the replies but never reject
+        assertEquals(200, throttle.recordFailure("10.0.0.3", "john"));
+        assertEquals(400, throttle.recordFailure("10.0.0.4", "john"));
+        assertFalse(throttle.isRejected("10.0.0.4"));
+    }
+
+    public void testWindowSlides() throws Exception {
+        throttle = new AuthenticationThrottle(160, TimeUnit.MILLISECONDS, 1, 2);
+        throttle.recordFailure("10.0.0.1", null);
+        Thread.sleep(250);
+        assertEquals(0, throttle.recordFailure("10.0.0.1", null));
+        assertEquals(AuthenticationThrottle.REJECT, throttle.recordFailure("10.0.0.1", null));
+    }
+
+    public void testConcurrentFailures() throws Exception {
+        throttle = new AuthenticationThrottle(1, TimeUnit.MINUTES, 80000, 80001);
+        var threads = new Thread[8];
+        for (var i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (var j = 0; j < 10000; j++) {
+                    throttle.recordFailure("10.0.0.1", null);
+                }
+            });
+            threads[i].start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        // no increment lost: exactly at the delay threshold, one short of rejection
+        assertFalse(throttle.isRejected("10.0.0.1"));
+        assertEquals(AuthenticationThrottle.REJECT, throttle.recordFailure("10.0.0.1", null));
+    }
+}
@@ -0,0 +1,151 @@
+package junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.mailster.smtp.util.BodyPublisher;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the demand driven publishing of a message body by
+ * {@link BodyPublisher}.
+ */
+public class BodyPublisherTest extends TestCase {
+
+    private static final byte[] BODY = "Subject: test\r\n\r\nSome body text\r\n".getBytes();
+
+    public void testDemand() {
+        var in = new TrackingInputStream(BODY);
+        var publisher = new BodyPublisher(in, 10);
+        var subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+
+        assertTrue(subscriber.slices.isEmpty());
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.slices.size());
+        assertEquals(20, in.position());
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed);
+        assertTrue(in.closed);
+        assertEquals(new String(BODY), subscriber.body());
+        for (var slice : subscriber.slices) {
+            assertTrue(slice.isReadOnly());
+        }
+    }
+
+    public void testReentrantRequest() {
+        var publisher = new BodyPublisher(new ByteArrayInputStream(BODY), 1);
+        var subscriber = new Recorder() {
+            @Override
+            public void onNext(ByteBuffer item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        assertTrue(subscriber.completed);
+        assertEquals(new String(BODY), subscriber.body());
+    }
+
+    public void testCancelAndClose() {
+        var in = new TrackingInputStream(BODY);
+        var publisher = new BodyPublisher(in, 10);
+        var subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(1);
+
+        assertTrue(in.closed);
+        assertEquals(1, subscriber.slices.size());
+        assertFalse(subscriber.completed);
+
+        var unread = new TrackingInputStream(BODY);
+        new BodyPublisher(unread).close();
+        assertTrue(unread.closed);
+    }
+
+    public void testSingleSubscriber() {
+        var publisher = new BodyPublisher(new ByteArrayInputStream(BODY));
+        publisher.subscribe(new Recorder());
+        var second = new Recorder();
+        publisher.subscribe(second);
+
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    public void testInvalidRequest() {
+        var publisher = new BodyPublisher(new ByteArrayInputStream(BODY));
+        var subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    private static class Recorder implements Flow.Subscriber<ByteBuffer> {
+
+        Flow.Subscription subscription;
+        final List<ByteBuffer> slices = new ArrayList<>();
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            slices.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        String body() {
+            var out = new ByteArrayOutputStream();
+            for (var slice : slices) {
+                var bytes = new byte[slice.remaining()];
+                slice.duplicate().get(bytes);
+                out.writeBytes(bytes);
+            }
+            return out.toString();
+        }
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+
+        boolean closed;
+
+        TrackingInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        int position() {
+            return pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+}
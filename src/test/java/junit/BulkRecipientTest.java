@@ -0,0 +1,147 @@
+package junit;
+
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.mailster.smtp.DefaultDeliveryHandler;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.CacheableMessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.RoutedMessageListener;
+import org.mailster.smtp.api.handler.DeliveryContext;
+import org.mailster.smtp.api.handler.RecipientRouter;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.RecipientAcceptCache;
+import org.mailster.smtp.core.auth.Credential;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the validation of pipelined recipients by
+ * {@link DefaultDeliveryHandler#recipients(List)}.
+ */
+public class BulkRecipientTest extends TestCase {
+
+    private final SMTPServerConfig config = new SMTPServerConfig() {
+    };
+
+    private DefaultDeliveryHandler newHandler(RecipientRouter router) {
+        var handler = new DefaultDeliveryHandler(new DeliveryContext() {
+            @Override
+            public SMTPServerConfig getSMTPServerConfig() {
+                return config;
+            }
+
+            @Override
+            public SocketAddress getRemoteAddress() {
+                return null;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return null;
+            }
+
+            @Override
+            public Credential getCredential() {
+                return null;
+            }
+        }, null);
+        handler.setRecipientRouter(router);
+        handler.from("sender@example.org");
+        return handler;
+    }
+
+    public void testOneCallPerListener() {
+        var tenant1 = new Directory("tenant1.example.org");
+        var tenant2 = new Directory("tenant2.example.org");
+        var handler = newHandler(RecipientRouter.of(List.of(tenant1, tenant2)));
+
+        var results = handler.recipients(List.of(
+                "a@tenant1.example.org", "b@tenant2.example.org", "unknown@tenant1.example.org",
+                "c@tenant1.example.org", "d@example.com"));
+
+        assertEquals(5, results.length);
+        assertNull(results[0]);
+        assertNull(results[1]);
+        assertEquals("553 <unknown@tenant1.example.org> address unknown.", results[2].getMessage());
+        assertNull(results[3]);
+        assertEquals("553 <d@example.com> address unknown.", results[4].getMessage());
+
+        assertEquals(List.of(List.of("a@tenant1.example.org", "unknown@tenant1.example.org", "c@tenant1.example.org")),
+                tenant1.calls);
+        assertEquals(List.of(List.of("b@tenant2.example.org")), tenant2.calls);
+    }
+
+    public void testCachedDecisionsNotAsked() {
+        config.setRecipientAcceptCache(new RecipientAcceptCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1)));
+        var tenant1 = new Directory("tenant1.example.org");
+        var router = RecipientRouter.of(List.of(tenant1));
+
+        newHandler(router).recipients(List.of("a@tenant1.example.org", "unknown@tenant1.example.org"));
+        var results = newHandler(router).recipients(List.of(
+                "a@tenant1.example.org", "b@tenant1.example.org", "unknown@tenant1.example.org"));
+
+        assertNull(results[0]);
+        assertNull(results[1]);
+        assertNotNull(results[2]);
+        assertEquals(List.of(List.of("a@tenant1.example.org", "unknown@tenant1.example.org"),
+                List.of("b@tenant1.example.org")), tenant1.calls);
+    }
+
+    public void testUncacheableListenersAlwaysAsked() throws Exception {
+        config.setRecipientAcceptCache(new RecipientAcceptCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1)));
+        var calls = new ArrayList<String>();
+        var bySender = new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                calls.add(recipient);
+                return from.equals("sender@example.org");
+            }
+        };
+        var router = RecipientRouter.of(List.of(bySender));
+
+        assertNull(newHandler(router).recipients(List.of("a@example.org"))[0]);
+        newHandler(router).recipient("a@example.org");
+        assertEquals(List.of("a@example.org", "a@example.org"), calls);
+        assertEquals(0, config.getRecipientAcceptCache().size());
+    }
+
+    /**
+     * Knows every address of its domain but "unknown".
+     */
+    private static class Directory extends MessageListenerAdapter
+            implements RoutedMessageListener, CacheableMessageListener {
+
+        private final String domain;
+        private final List<List<String>> calls = new ArrayList<>();
+
+        Directory(String domain) {
+            this.domain = domain;
+        }
+
+        @Override
+        public Collection<String> getRoutes() {
+            return List.of(domain);
+        }
+
+        @Override
+        public boolean accept(SessionContext ctx, String from, String recipient) {
+            return acceptAll(ctx, from, List.of(recipient))[0];
+        }
+
+        @Override
+        public boolean[] acceptAll(SessionContext ctx, String from, List<String> recipients) {
+            calls.add(List.copyOf(recipients));
+            var accepted = new boolean[recipients.size()];
+            for (var i = 0; i < accepted.length; i++) {
+                accepted[i] = !recipients.get(i).startsWith("unknown@");
+            }
+            return accepted;
+        }
+    }
+}
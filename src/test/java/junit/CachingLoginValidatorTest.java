@@ -0,0 +1,138 @@
+package junit;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mailster.smtp.core.auth.CachingLoginValidator;
+import org.mailster.smtp.core.auth.LoginFailedException;
+import org.mailster.smtp.core.auth.LoginValidator;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that {@link CachingLoginValidator} only calls the
+ * wrapped validator when needed.
+ */
+public class CachingLoginValidatorTest extends TestCase {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final LoginValidator directory = (username, password) -> {
+        calls.incrementAndGet();
+        if (!password.equals(username + "-secret")) {
+            throw new LoginFailedException();
+        }
+    };
+
+    public void testSuccessIsCached() throws Exception {
+        var validator = new CachingLoginValidator(directory, 10, 1, TimeUnit.MINUTES);
+        var blocking = validator.toLoginValidator(1, TimeUnit.SECONDS);
+
+        blocking.login("john", "john-secret");
+        blocking.login("john", "john-secret");
+        assertEquals(1, calls.get());
+        assertEquals(1, validator.getHits());
+
+        // an other password is not a hit
+        try {
+            blocking.login("john", "other");
+            fail("LoginFailedException expected");
+        } catch (LoginFailedException e) {
+            // expected
+        }
+        assertEquals(2, calls.get());
+
+        validator.invalidate("john");
+        blocking.login("john", "john-secret");
+        assertEquals(3, calls.get());
+    }
+
+    public void testFailureIsNotCached() throws Exception {
+        var validator = new CachingLoginValidator(directory, 10, 1, TimeUnit.MINUTES);
+        for (var i = 0; i < 2; i++) {
+            try {
+                validator.login("john", "wrong").toCompletableFuture().get();
+                fail("ExecutionException expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LoginFailedException);
+            }
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, validator.size());
+    }
+
+    public void testCredentialsWithNul() throws Exception {
+        var validator = new CachingLoginValidator(directory, 10, 1, TimeUnit.MINUTES);
+        validator.login("x\0y", "x\0y-secret").toCompletableFuture().get();
+
+        // the same bytes split at an other NUL are other credentials
+        try {
+            validator.login("x", "y\0x\0y-secret").toCompletableFuture().get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LoginFailedException);
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, validator.getHits());
+    }
+
+    public void testExpiry() throws Exception {
+        var validator = new CachingLoginValidator(directory, 10, 50, TimeUnit.MILLISECONDS);
+        validator.login("john", "john-secret").toCompletableFuture().get();
+        Thread.sleep(100);
+        validator.login("john", "john-secret").toCompletableFuture().get();
+        assertEquals(2, calls.get());
+    }
+
+    public void testBoundedSize() throws Exception {
+        var validator = new CachingLoginValidator(directory, 3, 1, TimeUnit.MINUTES);
+        for (var user : new String[]{"a", "b", "c", "a", "d"}) {
+            validator.login(user, user + "-secret").toCompletableFuture().get();
+        }
+        assertEquals(3, validator.size());
+        assertEquals(4, calls.get());
+
+        // b was the least recently used
+        validator.login("a", "a-secret").toCompletableFuture().get();
+        validator.login("b", "b-secret").toCompletableFuture().get();
+        assertEquals(5, calls.get());
+    }
+
+    public void testConcurrentVerificationsAreShared() throws Exception {
+        var pending = new CompletableFuture<Void>();
+        var validator = new CachingLoginValidator((username, password) -> {
+            calls.incrementAndGet();
+            return pending;
+        }, 10, 1, TimeUnit.MINUTES);
+
+        var first = validator.login("john", "john-secret").toCompletableFuture();
+        var second = validator.login("john", "john-secret").toCompletableFuture();
+        assertFalse(first.isDone());
+        assertEquals(1, calls.get());
+
+        pending.complete(null);
+        first.get();
+        second.get();
+        assertEquals(1, validator.size());
+    }
+
+    public void testInvalidationDuringVerification() throws Exception {
+        var pending = new CompletableFuture<Void>();
+        var validator = new CachingLoginValidator((username, password) -> {
+            calls.incrementAndGet();
+            return calls.get() == 1 ? pending : CompletableFuture.completedFuture(null);
+        }, 10, 1, TimeUnit.MINUTES);
+
+        var stale = validator.login("john", "old-secret").toCompletableFuture();
+        validator.invalidate("john");
+        pending.complete(null);
+        stale.get();
+        assertEquals(0, validator.size());
+
+        validator.login("john", "old-secret").toCompletableFuture().get();
+        assertEquals(2, calls.get());
+        assertEquals(1, validator.size());
+    }
+}
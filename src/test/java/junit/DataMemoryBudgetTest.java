@@ -0,0 +1,91 @@
+package junit;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mailster.smtp.core.DataMemoryBudget;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the shared heap budget of {@link DataMemoryBudget}.
+ */
+public class DataMemoryBudgetTest extends TestCase {
+
+    private static final int THRESHOLD = 1000;
+
+    public void testAllowanceShrinks() {
+        var budget = new DataMemoryBudget(4000);
+        assertEquals(THRESHOLD, budget.getAllowance(THRESHOLD));
+
+        // the full threshold while that much of the budget is free
+        assertTrue(budget.reserve(0, 1000, THRESHOLD));
+        assertTrue(budget.reserve(0, 1000, THRESHOLD));
+        assertTrue(budget.reserve(0, 1000, THRESHOLD));
+        assertEquals(THRESHOLD, budget.getAllowance(THRESHOLD));
+
+        // then only the free part
+        assertTrue(budget.reserve(0, 600, THRESHOLD));
+        assertEquals(400, budget.getAllowance(THRESHOLD));
+        assertFalse(budget.reserve(0, 500, THRESHOLD));
+
+        // a message already holding 300 bytes can't grow past the allowance
+        assertTrue(budget.reserve(0, 300, THRESHOLD));
+        assertFalse(budget.reserve(300, 200, THRESHOLD));
+        assertEquals(2, budget.getPressureSpills());
+        assertEquals(3900, budget.getUsedBytes());
+
+        budget.release(3900);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(3900, budget.getPeakUsedBytes());
+        assertEquals(THRESHOLD, budget.getAllowance(THRESHOLD));
+    }
+
+    public void testLoneMessageReachesThreshold() {
+        var budget = new DataMemoryBudget(THRESHOLD);
+        long held = 0;
+        while (held < THRESHOLD && budget.reserve(held, 100, THRESHOLD)) {
+            held += 100;
+        }
+        assertEquals(THRESHOLD, held);
+        assertFalse(budget.reserve(held, 100, THRESHOLD));
+    }
+
+    public void testNeverExceeded() throws Exception {
+        var budget = new DataMemoryBudget(100_000);
+        var threads = new ArrayList<Thread>();
+        var start = new CountDownLatch(1);
+        var overshoot = new AtomicLong();
+
+        for (var t = 0; t < 8; t++) {
+            var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (var i = 0; i < 10_000; i++) {
+                    long held = 0;
+                    while (budget.reserve(held, 512, 64 * 1024)) {
+                        held += 512;
+                        if (budget.getUsedBytes() > budget.getMaxBytes()) {
+                            overshoot.incrementAndGet();
+                        }
+                    }
+                    budget.release(held);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, overshoot.get());
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(budget.getPeakUsedBytes() <= budget.getMaxBytes());
+    }
+}
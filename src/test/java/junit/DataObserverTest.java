@@ -0,0 +1,96 @@
+package junit;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import org.mailster.smtp.core.DataObserver;
+import org.mailster.smtp.core.DkimBodyHashObserver;
+import org.mailster.smtp.core.DkimBodyHashObserver.Canonicalization;
+import org.mailster.smtp.core.MessageDigestObserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the digests computed by the {@link DataObserver}s, fed with chunks
+ * of every size.
+ */
+public class DataObserverTest extends TestCase {
+
+    private static final String MESSAGE = "From: sender@example.org\r\n"
+            + "Subject: a\r\n\tfolded subject\r\n"
+            + "\r\n"
+            + " Leading and  inner \t white space \r\n"
+            + "\r\n"
+            + "Last line\t\r\n"
+            + "  \r\n"
+            + "\r\n";
+
+    public void testMessageDigest() throws Exception {
+        var observer = new MessageDigestObserver("SHA-256");
+        assertEquals("SHA-256", observer.getName());
+
+        var expected = HexFormat.of().formatHex(sha256(MESSAGE));
+        for (var chunk = 1; chunk <= MESSAGE.length(); chunk++) {
+            assertEquals(expected, observe(observer, MESSAGE, chunk));
+        }
+
+        try {
+            new MessageDigestObserver("NO-SUCH-DIGEST");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSimpleBodyHash() throws Exception {
+        var observer = new DkimBodyHashObserver(Canonicalization.SIMPLE, "SHA-256");
+        assertEquals("dkim-simple-sha256", observer.getName());
+
+        var expected = base64(sha256(" Leading and  inner \t white space \r\n\r\nLast line\t\r\n  \r\n"));
+        for (var chunk = 1; chunk <= MESSAGE.length(); chunk++) {
+            assertEquals(expected, observe(observer, MESSAGE, chunk));
+        }
+    }
+
+    public void testRelaxedBodyHash() throws Exception {
+        var observer = new DkimBodyHashObserver(Canonicalization.RELAXED, "SHA-256");
+        assertEquals("dkim-relaxed-sha256", observer.getName());
+
+        var expected = base64(sha256(" Leading and inner white space\r\n\r\nLast line\r\n"));
+        for (var chunk = 1; chunk <= MESSAGE.length(); chunk++) {
+            assertEquals(expected, observe(observer, MESSAGE, chunk));
+        }
+    }
+
+    public void testEmptyAndUnterminatedBodies() throws Exception {
+        var simple = new DkimBodyHashObserver(Canonicalization.SIMPLE, "SHA-256");
+        var relaxed = new DkimBodyHashObserver(Canonicalization.RELAXED, "SHA-256");
+
+        // RFC 6376 section 3.4.3 and 3.4.4
+        assertEquals("frcCV1k9oG9oKj3dpUqdJg1PxRT2RSN/XKdLCPjaYaY=", observe(simple, "Subject: a\r\n\r\n", 4));
+        assertEquals("47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=", observe(relaxed, "Subject: a\r\n\r\n\r\n", 4));
+        assertEquals(observe(simple, "Subject: a\r\n", 4), observe(simple, "Subject: a\r\n\r\n\r\n\r\n", 4));
+
+        assertEquals(base64(sha256("text\r\n")), observe(simple, "Subject: a\r\n\r\ntext", 3));
+        assertEquals(base64(sha256("text\r\n")), observe(relaxed, "Subject: a\r\n\r\ntext \t", 3));
+    }
+
+    private static String observe(DataObserver observer, String message, int chunk) {
+        var data = message.getBytes(StandardCharsets.US_ASCII);
+        var observation = observer.start();
+        for (var i = 0; i < data.length; i += chunk) {
+            observation.update(data, i, Math.min(chunk, data.length - i));
+        }
+        return observation.finish();
+    }
+
+    private static byte[] sha256(String data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String base64(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
@@ -0,0 +1,246 @@
+package junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mailster.smtp.util.CharTerminatedInputStream;
+import org.mailster.smtp.util.DotUnstuffingInputStream;
+import org.mailster.smtp.util.SharedStreamUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Differential tests of the block oriented {@link CharTerminatedInputStream}
+ * and {@link DotUnstuffingInputStream} against the original byte at a time
+ * implementations, kept below as references.
+ */
+public class DataStreamsTest extends TestCase {
+
+    private static final byte[] ALPHABET = {'\r', '\n', '.', 'a', '\r', '\n', '.', (byte) 0xe9};
+
+    public void testBasicUnstuffing() throws Exception {
+        var raw = "Subject: test\r\n\r\n..line\r\n...\r\nend\r\n.\r\nignored".getBytes();
+        var in = SharedStreamUtils.getPrivateInputStream(false, new ByteArrayInputStream(raw));
+        assertEquals("Subject: test\r\n\r\n.line\r\n..\r\nend", new String(in.readAllBytes()));
+        assertEquals(-1, in.read());
+    }
+
+    public void testSkipKeepsUnstuffing() throws Exception {
+        var raw = "Subject: test\r\n\r\n..line\r\n.\r\n".getBytes();
+        var in = SharedStreamUtils.getPrivateInputStream(false, new ByteArrayInputStream(raw));
+        in.skipNBytes(17);
+        assertEquals(".line", new String(in.readAllBytes()));
+    }
+
+    public void testMissingTerminator() throws Exception {
+        var in = new CharTerminatedInputStream(new ByteArrayInputStream("data\r\n.\r".getBytes()),
+                SharedStreamUtils.SMTP_TERMINATOR);
+        var out = new ByteArrayOutputStream();
+        var b = new byte[64];
+        try {
+            int n;
+            while ((n = in.read(b)) != -1) {
+                out.write(b, 0, n);
+            }
+            fail("ProtocolException expected");
+        } catch (ProtocolException e) {
+            // data read before the end of the stream is returned first
+            assertEquals("data\r\n.\r", out.toString());
+        }
+    }
+
+    public void testTerminatedFuzz() throws Exception {
+        var rnd = new Random(0x5eed);
+        for (var i = 0; i < 5000; i++) {
+            var data = randomData(rnd);
+            var seed = rnd.nextLong();
+
+            var expected = drain(new LegacyCharTerminatedInputStream(new ByteArrayInputStream(data),
+                    SharedStreamUtils.SMTP_TERMINATOR), null);
+            var actual = drain(new CharTerminatedInputStream(new ChunkedInputStream(data, new Random(seed)),
+                    SharedStreamUtils.SMTP_TERMINATOR), new Random(seed));
+            assertEquals("case " + i + ": " + Arrays.toString(data), expected, actual);
+        }
+    }
+
+    public void testUnstuffingFuzz() throws Exception {
+        var rnd = new Random(0xd07);
+        for (var i = 0; i < 5000; i++) {
+            var data = randomData(rnd);
+            var seed = rnd.nextLong();
+
+            var expected = drain(new LegacyDotUnstuffingInputStream(new LegacyCharTerminatedInputStream(
+                    new ByteArrayInputStream(data), SharedStreamUtils.SMTP_TERMINATOR)), null);
+            var actual = drain(new DotUnstuffingInputStream(new CharTerminatedInputStream(
+                    new ChunkedInputStream(data, new Random(seed)), SharedStreamUtils.SMTP_TERMINATOR)),
+                    new Random(seed));
+            assertEquals("case " + i + ": " + Arrays.toString(data), expected, actual);
+        }
+    }
+
+    /**
+     * Builds data with plenty of CR, LF and dots, most of the time followed
+     * by the SMTP terminator and some trailing garbage.
+     */
+    private static byte[] randomData(Random rnd) {
+        var out = new ByteArrayOutputStream();
+        var len = rnd.nextInt(4) == 0 ? rnd.nextInt(40000) : rnd.nextInt(64);
+        for (var i = 0; i < len; i++) {
+            out.write(ALPHABET[rnd.nextInt(ALPHABET.length)]);
+        }
+        if (rnd.nextInt(5) > 0) {
+            out.writeBytes("\r\n.\r\n".getBytes());
+            for (var i = rnd.nextInt(8); i > 0; i--) {
+                out.write(ALPHABET[rnd.nextInt(ALPHABET.length)]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the stream entirely, with single byte reads when <code>rnd</code>
+     * is null or else with a random mix of single byte and block reads.
+     * Returns the bytes read and whether the stream failed.
+     */
+    private static String drain(InputStream in, Random rnd) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var buffer = new byte[70000];
+        try {
+            while (true) {
+                if (rnd == null || rnd.nextInt(8) == 0) {
+                    var b = in.read();
+                    if (b == -1) {
+                        break;
+                    }
+                    out.write(b);
+                } else {
+                    var off = rnd.nextInt(4);
+                    var len = rnd.nextBoolean() ? 1 + rnd.nextInt(16) : 1 + rnd.nextInt(buffer.length - off);
+                    var n = in.read(buffer, off, len);
+                    if (n == -1) {
+                        break;
+                    }
+                    assertTrue(n > 0 && n <= len);
+                    out.write(buffer, off, n);
+                }
+            }
+            return Arrays.toString(out.toByteArray());
+        } catch (ProtocolException e) {
+            return Arrays.toString(out.toByteArray()) + " failed";
+        }
+    }
+
+    /**
+     * Returns its data in short chunks of random size.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final Random rnd;
+
+        ChunkedInputStream(byte[] data, Random rnd) {
+            super(data);
+            this.rnd = rnd;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + rnd.nextInt(rnd.nextBoolean() ? 7 : 9000)));
+        }
+    }
+
+    /**
+     * The original byte at a time CharTerminatedInputStream.
+     */
+    private static class LegacyCharTerminatedInputStream extends InputStream {
+
+        private final InputStream in;
+        private final int[] match;
+        private final int[] buffer;
+        private int pos = 0;
+        private boolean endFound = false;
+
+        LegacyCharTerminatedInputStream(InputStream in, char[] terminator) {
+            match = new int[terminator.length];
+            buffer = new int[terminator.length];
+            for (var i = 0; i < terminator.length; i++) {
+                match[i] = terminator[i];
+            }
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (endFound) {
+                return -1;
+            }
+            if (pos == 0) {
+                var b = in.read();
+                if (b == -1) {
+                    throw new ProtocolException("pre-mature end of data");
+                }
+                if (b != match[0]) {
+                    return b;
+                }
+                buffer[0] = b;
+                pos++;
+            } else {
+                if (buffer[0] != match[0]) {
+                    return topChar();
+                }
+            }
+            for (var i = 0; i < match.length; i++) {
+                if (i >= pos) {
+                    var b = in.read();
+                    if (b == -1) {
+                        return topChar();
+                    }
+                    buffer[pos] = b;
+                    pos++;
+                }
+                if (buffer[i] != match[i]) {
+                    return topChar();
+                }
+            }
+            endFound = true;
+            return -1;
+        }
+
+        private int topChar() {
+            var b = buffer[0];
+            if (pos > 1) {
+                System.arraycopy(buffer, 1, buffer, 0, pos - 1);
+            }
+            pos--;
+            return b;
+        }
+    }
+
+    /**
+     * The original byte at a time DotUnstuffingInputStream.
+     */
+    private static class LegacyDotUnstuffingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final int[] last = {-1, -1};
+
+        LegacyDotUnstuffingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = in.read();
+            if (b == '.' && last[0] == '\r' && last[1] == '\n') {
+                b = in.read();
+            }
+            last[0] = last[1];
+            last[1] = b;
+            return b;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package junit;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.session.DummySession;
+import org.mailster.smtp.AllSchemesAuthenticationHandler;
+import org.mailster.smtp.DefaultDeliveryHandler;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
+import org.mailster.smtp.api.handler.DeliveryContext;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.core.RecipientAcceptCache;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the delivery handler creation of {@link DeliveryHandlerFactory}.
+ */
+public class DeliveryHandlerFactoryTest extends TestCase {
+
+    private final SMTPServerConfig config = new SMTPServerConfig() {
+    };
+
+    public void testLazyCreation() {
+        var created = new AtomicInteger();
+        var factory = new DeliveryHandlerFactory(null);
+        factory.setDeliveryHandlerSupplier((ctx, authHandler) -> {
+            created.incrementAndGet();
+            return new DefaultDeliveryHandler(ctx, authHandler);
+        });
+
+        var ctx = new SMTPContext(config, factory, new DummySession());
+        ctx.reset();
+        assertEquals(0, created.get());
+        assertNotNull(ctx.getAuthenticationHandler());
+
+        var handler = ctx.getDeliveryHandler();
+        assertSame(handler, ctx.getDeliveryHandler());
+        assertSame(ctx.getAuthenticationHandler(), handler.getAuthenticationHandler());
+        assertEquals(1, created.get());
+    }
+
+    public void testAuthenticationHandlerPerSession() {
+        var factory = new DeliveryHandlerFactory(null);
+        factory.setAuthenticationHandlerFactory(new AllSchemesAuthenticationHandler((username, password) -> {
+        }));
+
+        var a = new SMTPContext(config, factory, new DummySession());
+        var b = new SMTPContext(config, factory, new DummySession());
+        assertNotSame(a.getAuthenticationHandler(), b.getAuthenticationHandler());
+        assertSame(a.getAuthenticationHandler(), a.getDeliveryHandler().getAuthenticationHandler());
+        assertEquals(a.getAuthenticationHandler().getAuthenticationMechanisms(),
+                b.getAuthenticationHandler().getAuthenticationMechanisms());
+    }
+
+    public void testSharedListeners() {
+        var first = new MessageListenerAdapter() {
+        };
+        var second = new MessageListenerAdapter() {
+        };
+        var factory = new DeliveryHandlerFactory(List.of(first));
+
+        var a = new SMTPContext(config, factory, new DummySession()).getDeliveryHandler();
+        var b = new SMTPContext(config, factory, new DummySession()).getDeliveryHandler();
+        assertSame(a.getListeners(), b.getListeners());
+
+        factory.addListener(second);
+        var c = new SMTPContext(config, factory, new DummySession()).getDeliveryHandler();
+        assertEquals(List.<MessageListener>of(first), List.copyOf(a.getListeners()));
+        assertEquals(List.<MessageListener>of(first, second), List.copyOf(c.getListeners()));
+
+        factory.removeListener(first);
+        assertEquals(List.<MessageListener>of(second), factory.getListeners());
+    }
+
+    public void testImplClass() {
+        var factory = new DeliveryHandlerFactory(null);
+        factory.setDeliveryHandlerImplClass(ProtectedHandler.class);
+        assertTrue(new SMTPContext(config, factory, new DummySession()).getDeliveryHandler() instanceof ProtectedHandler);
+
+        try {
+            factory.setDeliveryHandlerImplClass(BrokenHandler.class);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // no suitable constructor
+        }
+    }
+
+    static class ProtectedHandler extends DefaultDeliveryHandler {
+
+        protected ProtectedHandler(DeliveryContext ctx, AuthenticationHandler authHandler) {
+            super(ctx, authHandler);
+        }
+    }
+
+    static class BrokenHandler extends AbstractDeliveryHandler {
+
+        BrokenHandler() {
+            super(null, null);
+        }
+
+        @Override
+        public void from(String from) {
+        }
+
+        @Override
+        public void recipient(String recipient) {
+        }
+
+        @Override
+        public void data(InputStream data) {
+        }
+
+        @Override
+        public void resetMessageState() {
+        }
+    }
+
+    public void testRemovedListenerLeavesTheCache() {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        config.setRecipientAcceptCache(cache);
+        MessageListener listener = new MessageListenerAdapter();
+        var factory = new DeliveryHandlerFactory(List.of(listener), config);
+        cache.put(listener, "one@example.org", true);
+
+        factory.removeListener(listener);
+        assertTrue(factory.getListeners().isEmpty());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,98 @@
+package junit;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.SessionContext;
+
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+/**
+ * Tests that replies keep the order of pipelined commands when cheap
+ * commands are executed on the I/O thread and the blocking ones on the
+ * worker pool.
+ */
+public class InlineDispatchTest extends ServerTestCase {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    public InlineDispatchTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        wiser.getServer().getConfig().setInlineCommandDispatch(true);
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                try {
+                    // a slow backend lookup
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("accept " + recipient + " on " + Thread.currentThread().getName());
+                return true;
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                events.add("deliver " + recipient);
+            }
+        });
+
+        client.close();
+        wiser.stop();
+        wiser.start();
+        client = new Client("localhost", wiser.getPort());
+    }
+
+    public void testPipelinedOrder() throws Exception {
+        expect("220");
+        send("EHLO foo.com");
+        expect("250");
+
+        send("MAIL FROM: <sender@example.org>\r\n" +
+                "RCPT TO: <first@example.org>\r\n" +
+                "NOOP\r\n" +
+                "RCPT TO: <second@example.org>\r\n" +
+                "RSET\r\n" +
+                "NOOP");
+        expect("250 Ok");
+        expect("250 Ok");
+        expect("250 Ok");
+        expect("250 Ok");
+        expect("250 Ok");
+        expect("250 Ok");
+
+        assertEquals(2, events.size());
+        assertTrue(events.get(0).startsWith("accept first@example.org on MailsterSMTP Thread"));
+        assertTrue(events.get(1).startsWith("accept second@example.org on MailsterSMTP Thread"));
+    }
+
+    public void testDelivery() throws Exception {
+        expect("220");
+        send("HELO foo.com");
+        expect("250");
+        send("MAIL FROM: <sender@example.org>");
+        expect("250");
+        send("RCPT TO: <first@example.org>");
+        expect("250");
+        send("DATA");
+        expect("354");
+        send("Subject: inline\r\n\r\nbody\r\n.");
+        expect("250");
+        send("NOOP");
+        expect("250");
+
+        assertEquals("deliver first@example.org", events.get(events.size() - 1));
+        assertEquals(1, wiser.getMessages().size());
+    }
+}
@@ -0,0 +1,312 @@
+package junit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.smtp.core.ContentFilter;
+import org.mailster.smtp.core.DataMemoryBudget;
+import org.mailster.smtp.core.DataRejection;
+import org.mailster.smtp.core.milter.MilterContentFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link MilterContentFilter} against a stand-in milter answering
+ * on a loopback socket.
+ */
+public class MilterContentFilterTest extends TestCase {
+
+    private static final String MESSAGE = "From: sender@example.org\r\n"
+            + "Subject: a\r\n\tfolded subject\r\n"
+            + "\r\n"
+            + "Some body\r\n";
+
+    private static final ContentFilter.Envelope ENVELOPE = new ContentFilter.Envelope(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 2525), "client.example.org",
+            "sender@example.org", List.of("one@example.org", "two@example.org"));
+
+    private StandInMilter milter;
+    private MilterContentFilter filter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        milter = new StandInMilter();
+        filter = new MilterContentFilter(milter.getAddress(), 2);
+        filter.setTimeout(5000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        filter.shutdown();
+        milter.close();
+        super.tearDown();
+    }
+
+    public void testAcceptStreamedMessage() throws Exception {
+        assertNull(scan(filter, MESSAGE, 3));
+
+        var commands = milter.awaitCommands("K");
+        assertEquals(List.of("C", "H client.example.org", "M <sender@example.org>", "R <one@example.org>",
+                "R <two@example.org>", "T", "L From sender@example.org", "L Subject a\tfolded subject",
+                "N", "B Some body\r\n", "E", "K"), commands);
+    }
+
+    public void testRejectWithReplyCode() throws Exception {
+        milter.replyTo('E', 'y', "554 5.7.1 Spam detected");
+        var rejection = scan(filter, MESSAGE, 1000);
+        assertEquals("554 5.7.1 Spam detected", rejection.reply());
+    }
+
+    public void testEarlyVerdict() throws Exception {
+        milter.replyTo('R', 'r', null);
+        assertEquals("550 5.7.1 Command rejected", scan(filter, MESSAGE, 5).reply());
+
+        milter.replyTo('R', 't', null);
+        assertEquals("451", scan(filter, MESSAGE, 5).reply().substring(0, 3));
+
+        milter.replyTo('R', 'a', null);
+        assertNull(scan(filter, MESSAGE, 5));
+    }
+
+    public void testConnectionReuse() throws Exception {
+        for (var i = 0; i < 3; i++) {
+            assertNull(scan(filter, MESSAGE, 7));
+            milter.awaitCommands("K");
+            waitForIdleConnection();
+        }
+        assertEquals(1, milter.getConnections());
+        assertEquals(1, filter.getIdleConnections());
+    }
+
+    public void testAbortedMessage() throws Exception {
+        var session = filter.start(ENVELOPE);
+        var data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        session.update(data, 0, 10);
+        session.abort();
+
+        var commands = milter.awaitCommands("K");
+        assertTrue(commands.contains("A"));
+        assertFalse(commands.contains("E"));
+        waitForIdleConnection();
+    }
+
+    public void testFailure() throws Exception {
+        // nothing listens on a socket file which does not exist
+        var directory = Files.createTempDirectory("milter");
+        var address = UnixDomainSocketAddress.of(directory.resolve("missing.sock"));
+
+        var closed = new MilterContentFilter(address, 1);
+        try {
+            assertEquals("451 4.7.1 Content filter unavailable", scan(closed, MESSAGE, 1000).reply());
+            closed.setFailOpen(true);
+            assertNull(scan(closed, MESSAGE, 1000));
+        } finally {
+            closed.shutdown();
+            Files.delete(directory);
+        }
+    }
+
+    public void testBusyConnectionsFailFast() throws Exception {
+        milter.replyTo('E', (char) 0, null);
+        var data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        var busy = new ContentFilter.Session[2];
+        for (var i = 0; i < busy.length; i++) {
+            busy[i] = filter.start(ENVELOPE);
+            busy[i].update(data, 0, data.length);
+            busy[i].end();
+        }
+
+        // both connections wait for the verdict of the milter
+        var session = filter.start(ENVELOPE);
+        assertEquals("451 4.7.1 Content filter unavailable",
+                session.end().toCompletableFuture().get(1, TimeUnit.SECONDS).reply());
+    }
+
+    public void testBacklogReservedFromBudget() throws Exception {
+        var budget = new DataMemoryBudget(100);
+        filter.setMemoryBudget(budget);
+        milter.replyTo('E', (char) 0, null);
+        filter.setTimeout(500);
+
+        var data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        var session = filter.start(ENVELOPE);
+        session.update(data, 0, data.length);
+        assertTrue(budget.getUsedBytes() <= data.length);
+        session.update(new byte[200], 0, 200);
+        assertEquals("451 4.7.1 Content filter unavailable",
+                session.end().toCompletableFuture().get(10, TimeUnit.SECONDS).reply());
+
+        for (var i = 0; i < 100 && budget.getUsedBytes() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testShutdownAndRestart() throws Exception {
+        assertNull(scan(filter, MESSAGE, 7));
+        filter.shutdown();
+        assertEquals(0, filter.getIdleConnections());
+        assertNull(scan(filter, MESSAGE, 7));
+    }
+
+    public void testTimeout() throws Exception {
+        milter.replyTo('E', (char) 0, null);
+        filter.setTimeout(200);
+        assertEquals("451 4.7.1 Content filter unavailable", scan(filter, MESSAGE, 1000).reply());
+    }
+
+    private void waitForIdleConnection() throws InterruptedException {
+        for (var i = 0; i < 100 && filter.getIdleConnections() == 0; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static DataRejection scan(MilterContentFilter filter, String message, int chunk) throws Exception {
+        var data = message.getBytes(StandardCharsets.US_ASCII);
+        var session = filter.start(ENVELOPE);
+        for (var i = 0; i < data.length; i += chunk) {
+            session.update(data, i, Math.min(chunk, data.length - i));
+        }
+        return session.end().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A milter replying continue to every step but the one configured,
+     * recording the commands of the last message.
+     */
+    private static class StandInMilter extends Thread {
+
+        private final ServerSocket server;
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+        private volatile int connections;
+
+        private volatile char step;
+        private volatile char reply;
+        private volatile String replyText;
+
+        StandInMilter() throws IOException {
+            super("StandInMilter");
+            setDaemon(true);
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        }
+
+        int getConnections() {
+            return connections;
+        }
+
+        /**
+         * Gives the reply to a step, none if the reply is 0.
+         */
+        void replyTo(char step, char reply, String replyText) {
+            this.step = step;
+            this.reply = reply;
+            this.replyText = replyText;
+        }
+
+        List<String> awaitCommands(String last) throws InterruptedException {
+            for (var i = 0; i < 250 && !commands.contains(last); i++) {
+                Thread.sleep(20);
+            }
+            return List.copyOf(commands);
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    var socket = server.accept();
+                    connections++;
+                    var worker = new Thread(() -> {
+                        try (socket) {
+                            serve(new DataInputStream(socket.getInputStream()),
+                                    new DataOutputStream(socket.getOutputStream()));
+                        } catch (IOException e) {
+                            // closed
+                        }
+                    });
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(DataInputStream in, DataOutputStream out) throws IOException {
+            while (true) {
+                var length = in.readInt();
+                var command = (char) in.readByte();
+                var data = new byte[length - 1];
+                in.readFully(data);
+
+                switch (command) {
+                    case 'O':
+                        // everything, replying to every step
+                        write(out, 'O', new byte[] {0, 0, 0, 6, 0, 0, 0, 0, 0, 0, 0, 0});
+                        continue;
+                    case 'Q':
+                        return;
+                    case 'C':
+                        commands.clear();
+                        commands.add("C");
+                        break;
+                    case 'B':
+                        // the chunks of the body, joined
+                        var body = new String(data, StandardCharsets.US_ASCII);
+                        var last = commands.isEmpty() ? "" : commands.get(commands.size() - 1);
+                        if (last.startsWith("B ")) {
+                            commands.set(commands.size() - 1, last + body);
+                        } else {
+                            commands.add("B " + body);
+                        }
+                        break;
+                    default:
+                        var args = new String(data, StandardCharsets.US_ASCII).split("\0");
+                        commands.add(args.length == 0 || args[0].isEmpty() ? String.valueOf(command)
+                                : command + " " + String.join(" ", args));
+                        break;
+                }
+
+                if (command == 'A' || command == 'K') {
+                    continue;
+                }
+                if (command == step) {
+                    if (reply != 0) {
+                        var text = replyText == null ? new byte[0]
+                                : (replyText + "\0").getBytes(StandardCharsets.US_ASCII);
+                        write(out, reply, text);
+                    }
+                } else {
+                    write(out, 'c', new byte[0]);
+                }
+            }
+        }
+
+        private static void write(DataOutputStream out, char command, byte[] data) throws IOException {
+            out.writeInt(data.length + 1);
+            out.writeByte(command);
+            out.write(data);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+
+import org.mailster.smtp.util.MimeWalker;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the single pass extraction of MIME parts by {@link MimeWalker}.
+ */
+public class MimeWalkerTest extends TestCase {
+
+    private static final String NESTED = "From: sender@example.org\r\n"
+            + "Subject: nested\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+            + "\r\n"
+            + "This is the preamble.\r\n"
+            + "--outer\r\n"
+            + "Content-Type: multipart/alternative; boundary=inner\r\n"
+            + "\r\n"
+            + "--inner\r\n"
+            + "Content-Type: text/plain; charset=us-ascii\r\n"
+            + "\r\n"
+            + "Plain text\r\n"
+            + "\r\n"
+            + "--inner\r\n"
+            + "Content-Type: text/html\r\n"
+            + "Content-Transfer-Encoding: quoted-printable\r\n"
+            + "\r\n"
+            + "<p>caf=C3=A9 soft=\r\n"
+            + "break =ZZ</p>\r\n"
+            + "--inner--\r\n"
+            + "inner epilogue\r\n"
+            + "--outer \r\n"
+            + "Content-Type: application/octet-stream; name=ignored.bin\r\n"
+            + "Content-Disposition: attachment;\r\n"
+            + " filename*=UTF-8''r%C3%A9sum%C3%A9.txt\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + "SGVsbG8s\r\n"
+            + "IHdvcmxk\r\n"
+            + "--outer--\r\n"
+            + "This is the epilogue.\r\n";
+
+    public void testNested() throws IOException {
+        var walker = new MimeWalker(new ByteArrayInputStream(NESTED.getBytes(StandardCharsets.UTF_8)));
+
+        var plain = walker.next();
+        assertEquals("nested", walker.getMessageHeaders().get("Subject"));
+        assertEquals("text/plain", plain.getContentType());
+        assertEquals("us-ascii", plain.getCharset());
+        assertEquals(2, plain.getDepth());
+        assertEquals("Plain text\r\n", read(plain.getContent()));
+
+        var html = walker.next();
+        assertEquals("text/html", html.getContentType());
+        assertEquals("<p>café soft" + "break =ZZ</p>", read(html.getContent()));
+
+        var attachment = walker.next();
+        assertEquals(1, attachment.getDepth());
+        assertTrue(attachment.isAttachment());
+        assertEquals("résumé.txt", attachment.getFileName());
+        assertEquals("Hello, world", read(attachment.getContent()));
+
+        assertNull(walker.next());
+        assertNull(walker.next());
+    }
+
+    public void testSkipUnreadParts() throws IOException {
+        var walker = new MimeWalker(new ByteArrayInputStream(NESTED.getBytes(StandardCharsets.UTF_8)));
+        walker.next();
+        var html = walker.next();
+        assertEquals('<', html.getRawContent().read());
+
+        var attachment = walker.next();
+        assertEquals("SGVsbG8s\r\nIHdvcmxk", read(attachment.getRawContent()));
+        assertEquals(-1, html.getRawContent().read());
+        assertNull(walker.next());
+    }
+
+    public void testSinglePart() throws IOException {
+        var message = "Subject: single\r\n\r\nFirst line\r\n--not a boundary\r\n";
+        var walker = new MimeWalker(new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+
+        var part = walker.next();
+        assertEquals(0, part.getDepth());
+        assertEquals("text/plain", part.getContentType());
+        assertEquals("7bit", part.getTransferEncoding());
+        assertEquals("First line\r\n--not a boundary\r\n", read(part.getContent()));
+        assertNull(walker.next());
+    }
+
+    public void testDigestAndEmptyParts() throws IOException {
+        var message = "Content-Type: multipart/digest; boundary=d\r\n\r\n"
+                + "--d\r\n\r\n"
+                + "Subject: enclosed\r\n\r\nbody\r\n"
+                + "--d\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "--d--";
+        var walker = new MimeWalker(new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+
+        var enclosed = walker.next();
+        assertEquals("message/rfc822", enclosed.getContentType());
+        assertEquals("Subject: enclosed\r\n\r\nbody", read(enclosed.getContent()));
+
+        var empty = walker.next();
+        assertEquals("text/plain", empty.getContentType());
+        assertEquals("", read(empty.getContent()));
+        assertNull(walker.next());
+    }
+
+    public void testLargeAttachment() throws IOException {
+        var random = new Random(48);
+        var content = new byte[3 * 1024 * 1024 + 17];
+        random.nextBytes(content);
+
+        var head = "Content-Type: multipart/mixed; boundary=b\r\n\r\n"
+                + "--b\r\n"
+                + "Content-Type: application/zip\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n";
+        var tail = "\r\n--b--\r\n";
+        var encoded = Base64.getMimeEncoder().encode(content);
+        var in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(head.getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayInputStream(encoded),
+                new ByteArrayInputStream(tail.getBytes(StandardCharsets.US_ASCII)))));
+
+        var walker = new MimeWalker(in);
+        var part = walker.next();
+        assertTrue(Arrays.equals(content, part.getContent().readAllBytes()));
+        assertNull(walker.next());
+    }
+
+    public void testLongLines() throws IOException {
+        var line = "x".repeat(20000);
+        var message = "Content-Type: multipart/mixed; boundary=b\r\n\r\n"
+                + "--b\r\n\r\n" + line + "\r\n" + line + "\r"
+                + "\r\n--b--\r\n";
+        var walker = new MimeWalker(new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+
+        assertEquals(line + "\r\n" + line + "\r", read(walker.next().getContent()));
+        assertNull(walker.next());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+}
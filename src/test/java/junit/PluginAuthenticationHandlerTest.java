@@ -0,0 +1,90 @@
+package junit;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+import org.mailster.smtp.core.auth.AuthenticationHandlerRegistry;
+import org.mailster.smtp.core.auth.PluginAuthenticationHandler;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the mechanism dispatch of {@link PluginAuthenticationHandler}
+ * and {@link AuthenticationHandlerRegistry}.
+ */
+public class PluginAuthenticationHandlerTest extends TestCase {
+
+    public void testRegistry() throws Exception {
+        var created = new AtomicInteger();
+        var registry = new AuthenticationHandlerRegistry();
+        registry.register(() -> {
+            created.incrementAndGet();
+            return new NamedHandler("first", "X-ONE", "x-two");
+        });
+        registry.register(() -> new NamedHandler("second", "X-TWO", "X-THREE"));
+
+        assertEquals(List.of("X-ONE", "X-TWO", "X-THREE"), registry.getAuthenticationMechanisms());
+        assertEquals(1, created.get());
+
+        var first = registry.create();
+        var second = registry.create();
+        assertSame(first.getAuthenticationMechanisms(), second.getAuthenticationMechanisms());
+        assertEquals(1, created.get());
+
+        // the first plugin keeps a mechanism registered twice
+        assertAuth(first, "AUTH x-two", "first");
+        assertEquals(2, created.get());
+        assertAuth(first, "AUTH X-ONE", "first");
+        assertEquals(2, created.get());
+        assertAuth(first, "AUTH X-THREE", "second");
+    }
+
+    public void testPlugins() throws Exception {
+        var handler = new PluginAuthenticationHandler();
+        assertTrue(handler.getAuthenticationMechanisms().isEmpty());
+
+        handler.addPlugin(new NamedHandler("first", "X-ONE"));
+        handler.addPlugin(new NamedHandler("second", "X-TWO"));
+        assertEquals(List.of("X-ONE", "X-TWO"), handler.getAuthenticationMechanisms());
+        assertEquals(2, handler.getPlugins().size());
+        assertAuth(handler, "AUTH X-TWO", "second");
+
+        handler.setPlugins(List.of(new NamedHandler("third", "X-THREE")));
+        assertEquals(List.of("X-THREE"), handler.getAuthenticationMechanisms());
+        assertAuth(handler, "AUTH X-THREE", "third");
+    }
+
+    private static void assertAuth(AuthenticationHandler handler, String input, String expected) throws Exception {
+        var response = new StringBuilder();
+        handler.auth(input, response, null);
+        assertEquals(expected, response.toString());
+    }
+
+    private static class NamedHandler implements AuthenticationHandler {
+
+        private final String name;
+        private final List<String> mechanisms;
+
+        NamedHandler(String name, String... mechanisms) {
+            this.name = name;
+            this.mechanisms = List.of(mechanisms);
+        }
+
+        @Override
+        public List<String> getAuthenticationMechanisms() {
+            return mechanisms;
+        }
+
+        @Override
+        public boolean auth(String clientInput, StringBuilder response, SMTPContext ctx) {
+            response.append(name);
+            return true;
+        }
+
+        @Override
+        public void resetState() {
+        }
+    }
+}
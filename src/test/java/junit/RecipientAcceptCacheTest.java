@@ -0,0 +1,136 @@
+package junit;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.RecipientAcceptCache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the TTLs, admission and metrics of {@link RecipientAcceptCache}.
+ */
+public class RecipientAcceptCacheTest extends TestCase {
+
+    /**
+     * Accepts the addresses of example.org and counts the lookups.
+     */
+    private static class Directory extends MessageListenerAdapter {
+
+        final Map<String, Integer> lookups = new HashMap<>();
+
+        @Override
+        public synchronized boolean accept(SessionContext ctx, String from, String recipient) {
+            lookups.merge(recipient, 1, Integer::sum);
+            return recipient.endsWith("@example.org");
+        }
+
+        synchronized int lookups(String recipient) {
+            return lookups.getOrDefault(recipient, 0);
+        }
+    }
+
+    public void testHitsAndMisses() {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        var directory = new Directory();
+
+        for (var i = 0; i < 10; i++) {
+            assertTrue(cache.accept(directory, null, "from@example.com", "known@example.org"));
+            assertFalse(cache.accept(directory, null, "from@example.com", "unknown@example.com"));
+        }
+
+        assertEquals(1, directory.lookups("known@example.org"));
+        assertEquals(1, directory.lookups("unknown@example.com"));
+        assertEquals(18, cache.getHits());
+        assertEquals(9, cache.getNegativeHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.9, cache.getHitRatio(), 1e-9);
+
+        cache.invalidate(directory, "known@example.org");
+        cache.accept(directory, null, "from@example.com", "known@example.org");
+        assertEquals(2, directory.lookups("known@example.org"));
+    }
+
+    public void testRecipientCase() {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        var directory = new Directory();
+
+        assertTrue(cache.accept(directory, null, "from@example.com", "known@example.org"));
+        assertTrue(cache.accept(directory, null, "from@example.com", "Known@EXAMPLE.org"));
+        assertEquals(1, directory.lookups("known@example.org"));
+        assertEquals(1, cache.size());
+    }
+
+    public void testInvalidateListener() {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        var removed = new Directory();
+        var kept = new Directory();
+        cache.accept(removed, null, "from@example.com", "one@example.org");
+        cache.accept(removed, null, "from@example.com", "two@example.com");
+        cache.accept(kept, null, "from@example.com", "one@example.org");
+
+        cache.invalidate(removed);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.getIfPresent(kept, "one@example.org"));
+    }
+
+    public void testSeparateTtls() throws Exception {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMillis(20));
+        var directory = new Directory();
+
+        cache.accept(directory, null, "from@example.com", "known@example.org");
+        cache.accept(directory, null, "from@example.com", "unknown@example.com");
+        Thread.sleep(50);
+        cache.accept(directory, null, "from@example.com", "known@example.org");
+        cache.accept(directory, null, "from@example.com", "unknown@example.com");
+
+        assertEquals(1, directory.lookups("known@example.org"));
+        assertEquals(2, directory.lookups("unknown@example.com"));
+    }
+
+    public void testListenersAreCachedApart() {
+        var cache = new RecipientAcceptCache(100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        var first = new Directory();
+        var second = new Directory();
+
+        cache.accept(first, null, "from@example.com", "known@example.org");
+        cache.accept(second, null, "from@example.com", "known@example.org");
+        assertEquals(1, first.lookups("known@example.org"));
+        assertEquals(1, second.lookups("known@example.org"));
+        assertEquals(2, cache.size());
+    }
+
+    public void testScanResistance() {
+        var cache = new RecipientAcceptCache(160, Duration.ofMinutes(5), Duration.ofMinutes(5));
+        var directory = new Directory();
+
+        // a working set of popular addresses
+        for (var round = 0; round < 5; round++) {
+            for (var i = 0; i < 100; i++) {
+                cache.accept(directory, null, "list@example.com", "member" + i + "@example.org");
+            }
+        }
+
+        // a dictionary attack trying each address once, meanwhile the list
+        // keeps being delivered: with plain LRU each member would be evicted
+        // by the 1000 guesses between two of its deliveries
+        for (var i = 0; i < 10_000; i++) {
+            cache.accept(directory, null, "spammer@example.com", "guess" + i + "@example.org");
+            if (i % 10 == 0) {
+                cache.accept(directory, null, "list@example.com", "member" + (i / 10) % 100 + "@example.org");
+            }
+        }
+        assertTrue(cache.getRejectedAdmissions() > 0);
+        assertTrue(cache.size() <= 160);
+
+        var before = cache.getMisses();
+        for (var i = 0; i < 100; i++) {
+            cache.accept(directory, null, "list@example.com", "member" + i + "@example.org");
+        }
+        // most of the working set survived the scan
+        assertTrue("misses: " + (cache.getMisses() - before), cache.getMisses() - before < 20);
+    }
+}
@@ -0,0 +1,101 @@
+package junit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.RoutedMessageListener;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.api.handler.RecipientRouter;
+import org.mailster.smtp.api.handler.SessionContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the recipient index of {@link RecipientRouter}.
+ */
+public class RecipientRouterTest extends TestCase {
+
+    private static RoutedMessageListener routed(String name, String... routes) {
+        return new Routed(name, List.of(routes));
+    }
+
+    public void testUnroutedListenersOnly() {
+        var a = new MessageListenerAdapter();
+        var b = new MessageListenerAdapter();
+        var router = RecipientRouter.of(List.of(a, b));
+
+        assertSame(router.getListeners(), router.route("anyone@example.org"));
+    }
+
+    public void testRoutes() {
+        var tenant1 = routed("tenant1", "tenant1.example.org", "*.tenant1.example.org");
+        var tenant2 = routed("tenant2", "*@Tenant2.example.org");
+        var postmaster = routed("postmaster", "postmaster@tenant1.example.org", "postmaster@tenant2.example.org");
+        var archive = routed("archive", "*");
+        var plain = new MessageListenerAdapter();
+        var router = RecipientRouter.of(List.of(tenant1, tenant2, postmaster, archive, plain));
+
+        assertEquals(List.of(tenant1, archive, plain), router.route("john@tenant1.example.org"));
+        assertEquals(List.of(tenant1, archive, plain), router.route("john@mx.eu.TENANT1.example.org"));
+        assertEquals(List.of(tenant1, postmaster, archive, plain), router.route("postmaster@tenant1.example.org"));
+        assertEquals(List.of(tenant2, postmaster, archive, plain), router.route("Postmaster@tenant2.example.org"));
+        assertEquals(List.of(archive, plain), router.route("john@sub.tenant2.example.org"));
+        assertEquals(List.of(archive, plain), router.route("john@example.org"));
+    }
+
+    public void testNoCandidate() {
+        var router = RecipientRouter.of(List.of(routed("only", "example.org")));
+        assertTrue(router.route("john@example.com").isEmpty());
+        assertTrue(router.route("example.org").isEmpty());
+    }
+
+    public void testAcceptOnlyCalledOnCandidates() throws Exception {
+        var calls = new ArrayList<String>();
+        var factory = new DeliveryHandlerFactory(null);
+        for (var i = 0; i < 500; i++) {
+            var domain = "tenant" + i + ".example.org";
+            factory.addListener(new Routed(domain, List.of(domain)) {
+                @Override
+                public boolean accept(SessionContext ctx, String from, String recipient) {
+                    calls.add(domain);
+                    return true;
+                }
+            });
+        }
+
+        var router = factory.getRecipientRouter();
+        assertEquals(500, router.getListeners().size());
+        for (var listener : router.route("john@tenant42.example.org")) {
+            listener.accept(null, "from@example.org", "john@tenant42.example.org");
+        }
+        assertEquals(List.of("tenant42.example.org"), calls);
+
+        factory.removeListener(router.route("john@tenant42.example.org").get(0));
+        assertNotSame(router, factory.getRecipientRouter());
+        assertTrue(factory.getRecipientRouter().route("john@tenant42.example.org").isEmpty());
+    }
+
+    private static class Routed extends MessageListenerAdapter implements RoutedMessageListener {
+
+        private final String name;
+        private final Collection<String> routes;
+
+        Routed(String name, Collection<String> routes) {
+            this.name = name;
+            this.routes = routes;
+        }
+
+        @Override
+        public Collection<String> getRoutes() {
+            return routes;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package junit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import org.apache.mina.core.session.DummySession;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.core.SMTPContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the heap allocated for the SMTP state of idle connections, counted
+ * by the JVM for the current thread rather than guessed from the free
+ * memory.
+ */
+public class SessionFootprintTest extends TestCase {
+
+    private static final int CONNECTIONS = 1000;
+
+    public void testIdleSessionFootprint() {
+        var threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean allocations)
+                || !allocations.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        var config = new SMTPServerConfig() {
+        };
+        var factory = new DeliveryHandlerFactory(Collections.emptyList());
+        var session = new DummySession();
+        var contexts = new SMTPContext[CONNECTIONS];
+
+        // loads the classes before counting
+        new SMTPContext(config, factory, session);
+
+        var before = allocations.getCurrentThreadAllocatedBytes();
+        for (var i = 0; i < contexts.length; i++) {
+            contexts[i] = new SMTPContext(config, factory, session);
+        }
+        var perSession = (allocations.getCurrentThreadAllocatedBytes() - before) / CONNECTIONS;
+
+        assertTrue("allocated per idle session: " + perSession + " bytes", perSession < 256);
+        assertNotNull(contexts[CONNECTIONS - 1].getSMTPState());
+    }
+}
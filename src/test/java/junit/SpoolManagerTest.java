@@ -0,0 +1,136 @@
+package junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.mailster.smtp.core.SpoolManager;
+import org.mailster.smtp.util.SharedTmpFileInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the spool file pool and quota of {@link SpoolManager}.
+ */
+public class SpoolManagerTest extends TestCase {
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("spool");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (var files = Files.list(dir)) {
+            files.forEach(f -> f.toFile().delete());
+        }
+        Files.delete(dir);
+        super.tearDown();
+    }
+
+    private static void write(SpoolManager spool, File file, int length) throws IOException {
+        assertTrue(spool.reserve(length));
+        try (var out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+    }
+
+    private int filesInDirectory() throws IOException {
+        try (var files = Files.list(dir)) {
+            return (int) files.count();
+        }
+    }
+
+    public void testPoolReuse() throws Exception {
+        var spool = new SpoolManager(dir, 2, -1);
+        spool.start();
+        assertEquals(2, spool.getPooledFiles());
+        assertEquals(2, filesInDirectory());
+
+        var f1 = spool.acquire();
+        var f2 = spool.acquire();
+        var f3 = spool.acquire();
+        assertEquals(0, spool.getPooledFiles());
+        assertEquals(3, spool.getFilesInUse());
+        assertEquals(2, spool.getReusedFiles());
+
+        write(spool, f1, 100);
+        write(spool, f2, 50);
+        assertEquals(150, spool.getUsedBytes());
+
+        spool.release(f1);
+        spool.release(f2);
+        spool.release(f3);
+        assertEquals(0, spool.getUsedBytes());
+        assertEquals(150, spool.getPeakUsedBytes());
+        assertEquals(2, spool.getPooledFiles());
+        assertEquals(0, spool.getFilesInUse());
+        // the extra file is deleted, pooled ones are truncated
+        assertEquals(2, filesInDirectory());
+        assertEquals(0, f1.length());
+        assertFalse(f3.exists());
+
+        var again = spool.acquire();
+        assertTrue(again.equals(f1) || again.equals(f2));
+        spool.release(again);
+
+        spool.stop();
+        assertEquals(0, spool.getPooledFiles());
+        assertEquals(0, filesInDirectory());
+    }
+
+    public void testQuota() throws Exception {
+        var spool = new SpoolManager(dir, 1, 100);
+        spool.start();
+
+        var f = spool.acquire();
+        write(spool, f, 60);
+        assertFalse(spool.isFull());
+        assertFalse(spool.reserve(41));
+        assertEquals(1, spool.getRejectedMessages());
+        assertTrue(spool.reserve(40));
+        try (var out = new FileOutputStream(f, true)) {
+            out.write(new byte[40]);
+        }
+        assertTrue(spool.isFull());
+
+        spool.release(f);
+        assertEquals(0, spool.getUsedBytes());
+        assertFalse(spool.isFull());
+        spool.stop();
+    }
+
+    public void testReleasedByStream() throws Exception {
+        var spool = new SpoolManager(dir, 1, -1);
+        spool.start();
+
+        var f = spool.acquire();
+        write(spool, f, 10);
+
+        var master = new SharedTmpFileInputStream(f, spool::release);
+        var in = master.newStream(0, -1);
+        master.close();
+        assertEquals(1, spool.getFilesInUse());
+
+        assertEquals(10, in.readAllBytes().length);
+        in.close();
+        assertEquals(0, spool.getFilesInUse());
+        assertEquals(1, spool.getPooledFiles());
+        assertTrue(f.exists());
+        assertEquals(0, f.length());
+        spool.stop();
+    }
+
+    public void testStoppedSpoolDeletes() throws Exception {
+        var spool = new SpoolManager(dir, 4, -1);
+        var f = spool.acquire();
+        spool.release(f);
+        assertFalse(f.exists());
+        assertEquals(0, spool.getPooledFiles());
+    }
+}
@@ -1,10 +1,22 @@
 package junit.command;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.mailster.smtp.AllSchemesAuthenticationHandler;
+import org.mailster.smtp.core.auth.AuthenticationThrottle;
+import org.mailster.smtp.core.auth.InMemoryVerifierStore;
 import org.mailster.smtp.core.auth.LoginFailedException;
 import org.mailster.smtp.core.auth.LoginValidator;
+import org.mailster.smtp.core.auth.ScramCredential;
 import org.mailster.smtp.util.Base64;
 
+import junit.util.Client;
 import junit.util.ServerTestCase;
 
 /**
@@ -29,7 +41,9 @@ public class AuthTest extends ServerTestCase {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
-        wiser.getServer().setAuthenticationHandlerFactory(new AllSchemesAuthenticationHandler(validator));
+        var store = new InMemoryVerifierStore(ScramCredential.DEFAULT_ITERATIONS, true);
+        store.addUser(REQUIRED_USERNAME, REQUIRED_PASSWORD);
+        wiser.getServer().setAuthenticationHandlerFactory(new AllSchemesAuthenticationHandler(validator, store));
     }
 
     /**
@@ -109,4 +123,220 @@ public class AuthTest extends ServerTestCase {
         send("AUTH LOGIN");
         expect("503");
     }
+
+    /**
+     * Test that repeated failures are delayed and finally rejected
+     * without calling the validator.
+     */
+    public void testFailureThrottling() throws Exception {
+        var throttle = new AuthenticationThrottle(1, TimeUnit.MINUTES, 1, 3);
+        throttle.setBaseDelay(300);
+        wiser.getServer().getConfig().setAuthenticationThrottle(throttle);
+
+        expect("220");
+
+        send("HELO foo.com");
+        expect("250");
+
+        var wrong = Base64.encodeToString(("\0" + REQUIRED_USERNAME + "\0wrong").getBytes(), false);
+        send("AUTH PLAIN " + wrong);
+        expect("535");
+
+        var start = System.currentTimeMillis();
+        send("AUTH PLAIN " + wrong);
+        expect("535");
+        assertTrue(System.currentTimeMillis() - start >= 250);
+
+        send("AUTH PLAIN " + wrong);
+        expect("421");
+
+        // the address stays rejected, even with the right password
+        var right = Base64.encodeToString(("\0" + REQUIRED_USERNAME + "\0" + REQUIRED_PASSWORD).getBytes(), false);
+        try (var other = new Client("localhost", wiser.getPort())) {
+            other.expect("220");
+            other.send("HELO foo.com");
+            other.expect("250");
+            other.send("AUTH PLAIN " + right);
+            other.expect("421");
+        } finally {
+            throttle.shutdown();
+        }
+    }
+
+    /**
+     * Test method for AUTH SCRAM-SHA-256, with the RFC 7677 message flow
+     * computed by the client side below.
+     */
+    public void testAuthScramSha256() throws Exception {
+        expect("220");
+
+        send("EHLO foo.com");
+        expect("250");
+
+        var clientFirstBare = "n=" + REQUIRED_USERNAME + ",r=rOprNGfwEbeRWgbNEkqO";
+        send("AUTH SCRAM-SHA-256 " + encode("n,," + clientFirstBare));
+        var serverFirst = decode(client.expectAndGet("334 ").substring(4));
+        assertTrue(serverFirst.startsWith("r=rOprNGfwEbeRWgbNEkqO"));
+
+        var attributes = serverFirst.split(",");
+        var salt = Base64.decode(attributes[1].substring(2));
+        var iterations = Integer.parseInt(attributes[2].substring(2));
+
+        var saltedPassword = ScramCredential.saltedPassword(REQUIRED_PASSWORD, salt, iterations);
+        var clientKey = hmac("HmacSHA256", saltedPassword, "Client Key");
+        var storedKey = MessageDigest.getInstance("SHA-256").digest(clientKey);
+        var withoutProof = "c=biws," + attributes[0];
+        var authMessage = clientFirstBare + "," + serverFirst + "," + withoutProof;
+        var signature = hmac("HmacSHA256", storedKey, authMessage);
+        var proof = new byte[clientKey.length];
+        for (var i = 0; i < proof.length; i++) {
+            proof[i] = (byte) (clientKey[i] ^ signature[i]);
+        }
+
+        send(encode(withoutProof + ",p=" + Base64.encodeToString(proof, false)));
+        var serverFinal = decode(client.expectAndGet("334 ").substring(4));
+        var serverKey = hmac("HmacSHA256", saltedPassword, "Server Key");
+        assertEquals("v=" + Base64.encodeToString(hmac("HmacSHA256", serverKey, authMessage), false), serverFinal);
+
+        send("");
+        expect("235");
+    }
+
+    /**
+     * Test that two SCRAM-SHA-256 exchanges interleaved on separate
+     * connections don't share their state.
+     */
+    public void testInterleavedAuthScramSha256() throws Exception {
+        try (var first = new Client("localhost", wiser.getPort());
+             var second = new Client("localhost", wiser.getPort())) {
+            var clients = new Client[]{first, second};
+            var clientFirstBares = new String[2];
+            var serverFirsts = new String[2];
+            for (var i = 0; i < 2; i++) {
+                clients[i].expect("220");
+                clients[i].send("EHLO foo.com");
+                clients[i].expect("250");
+
+                clientFirstBares[i] = "n=" + REQUIRED_USERNAME + ",r=clientNonce" + i;
+                clients[i].send("AUTH SCRAM-SHA-256 " + encode("n,," + clientFirstBares[i]));
+                serverFirsts[i] = decode(clients[i].expectAndGet("334 ").substring(4));
+                assertTrue(serverFirsts[i].startsWith("r=clientNonce" + i));
+            }
+
+            // the second exchange ends first
+            for (var i = 1; i >= 0; i--) {
+                clients[i].send(encode(clientFinal(clientFirstBares[i], serverFirsts[i])));
+                clients[i].expect("334 ");
+                clients[i].send("");
+                clients[i].expect("235");
+            }
+        }
+    }
+
+    /**
+     * Test that a wrong SCRAM proof and an unknown user fail the same way.
+     */
+    public void testAuthScramSha256Failure() throws Exception {
+        var store = new InMemoryVerifierStore(5000, false);
+        store.addUser(REQUIRED_USERNAME, REQUIRED_PASSWORD);
+        wiser.getServer().setAuthenticationHandlerFactory(new AllSchemesAuthenticationHandler(validator, store));
+
+        expect("220");
+
+        send("EHLO foo.com");
+        expect("250");
+
+        for (var user : new String[]{REQUIRED_USERNAME, "unknown"}) {
+            send("AUTH SCRAM-SHA-256");
+            expect("334");
+
+            send(encode("n,,n=" + user + ",r=abcdef"));
+            var serverFirst = decode(client.expectAndGet("334 ").substring(4));
+            assertTrue(serverFirst, serverFirst.endsWith(",i=5000"));
+
+            var nonce = serverFirst.split(",")[0];
+            send(encode("c=biws," + nonce + ",p=" + Base64.encodeToString(new byte[32], false)));
+            expect("535");
+        }
+    }
+
+    /**
+     * Test method for AUTH CRAM-MD5 with a right and a wrong digest.
+     */
+    public void testAuthCramMD5() throws Exception {
+        expect("220");
+
+        send("EHLO foo.com");
+        expect("250");
+
+        send("AUTH CRAM-MD5");
+        var challenge = decode(client.expectAndGet("334 ").substring(4));
+        assertTrue(challenge.startsWith("<") && challenge.endsWith(">"));
+
+        send(encode(REQUIRED_USERNAME + " 0123456789abcdef0123456789abcdef"));
+        expect("535");
+
+        send("AUTH CRAM-MD5");
+        challenge = decode(client.expectAndGet("334 ").substring(4));
+
+        var digest = HexFormat.of().formatHex(hmac("HmacMD5", REQUIRED_PASSWORD.getBytes(), challenge));
+        send(encode(REQUIRED_USERNAME + " " + digest));
+        expect("235");
+    }
+
+    /**
+     * Returns the final SCRAM-SHA-256 message of the client, with its proof.
+     */
+    private static String clientFinal(String clientFirstBare, String serverFirst) throws Exception {
+        var attributes = serverFirst.split(",");
+        var salt = Base64.decode(attributes[1].substring(2));
+        var iterations = Integer.parseInt(attributes[2].substring(2));
+
+        var saltedPassword = ScramCredential.saltedPassword(REQUIRED_PASSWORD, salt, iterations);
+        var clientKey = hmac("HmacSHA256", saltedPassword, "Client Key");
+        var storedKey = MessageDigest.getInstance("SHA-256").digest(clientKey);
+        var withoutProof = "c=biws," + attributes[0];
+        var signature = hmac("HmacSHA256", storedKey, clientFirstBare + "," + serverFirst + "," + withoutProof);
+        var proof = new byte[clientKey.length];
+        for (var i = 0; i < proof.length; i++) {
+            proof[i] = (byte) (clientKey[i] ^ signature[i]);
+        }
+        return withoutProof + ",p=" + Base64.encodeToString(proof, false);
+    }
+
+    /**
+     * Test that CRAM-MD5 isn't offered by a store keeping no CRAM-MD5 secret.
+     */
+    public void testCramMD5NotOfferedWithoutSecrets() throws Exception {
+        var store = new InMemoryVerifierStore();
+        store.addUser(REQUIRED_USERNAME, REQUIRED_PASSWORD);
+        var factory = new AllSchemesAuthenticationHandler(validator, store);
+        assertFalse(factory.getRegistry().getAuthenticationMechanisms().contains("CRAM-MD5"));
+        assertTrue(factory.getRegistry().getAuthenticationMechanisms().contains("SCRAM-SHA-256"));
+        wiser.getServer().setAuthenticationHandlerFactory(factory);
+
+        expect("220");
+
+        send("EHLO foo.com");
+        var ehlo = client.expectAndGet("250");
+        assertTrue(ehlo.contains("SCRAM-SHA-256"));
+        assertFalse(ehlo.contains("CRAM-MD5"));
+
+        send("AUTH CRAM-MD5");
+        expect("504");
+    }
+
+    private static byte[] hmac(String algorithm, byte[] key, String data) throws Exception {
+        var mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(key, algorithm));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(String s) {
+        return Base64.encodeToString(s.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private static String decode(String s) {
+        return new String(Base64.decode(s), StandardCharsets.UTF_8);
+    }
 }
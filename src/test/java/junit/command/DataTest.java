@@ -1,5 +1,32 @@
 package junit.command;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.RejectException;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.ContentFilter;
+import org.mailster.smtp.core.DataDeduplicator;
+import org.mailster.smtp.core.DataMemoryBudget;
+import org.mailster.smtp.core.DataRejection;
+import org.mailster.smtp.core.DkimBodyHashObserver;
+import org.mailster.smtp.core.MessageDigestObserver;
+import org.mailster.smtp.core.MessageHeaders;
+import org.mailster.smtp.core.SpoolManager;
+
+import junit.util.Client;
 import junit.util.ServerTestCase;
 
 /**
@@ -78,4 +105,434 @@ public class DataTest extends ServerTestCase {
         send("MAIL FROM: ed@foo.com");
         expect("250");
     }
+
+    /**
+     * Sends the same small and spooled messages from two sessions and
+     * checks that the second copies are shared with the first ones.
+     */
+    public void testDeduplication() throws Exception {
+        var dedup = new DataDeduplicator(16, 1 << 20);
+        var budget = new DataMemoryBudget(1 << 20);
+        wiser.getServer().getConfig().setDataDeduplicator(dedup);
+        wiser.getServer().getConfig().setDataMemoryBudget(budget);
+
+        // the spooling threshold is read when the server starts
+        wiser.stop();
+        wiser.setDataDeferredSize(1024);
+        wiser.start();
+
+        List<String> hashes = Collections.synchronizedList(new ArrayList<>());
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    hashes.add(ctx.getDataHash());
+                    bodies.add(new String(data.readAllBytes()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        var large = "x".repeat(4000);
+        try (var first = new Client("localhost", wiser.getPort());
+             var second = new Client("localhost", wiser.getPort())) {
+            first.expect("220");
+            sendMessage(first, "small");
+            sendMessage(first, large);
+
+            second.expect("220");
+            sendMessage(second, "small");
+            sendMessage(second, large);
+            sendMessage(second, "other");
+        }
+
+        assertEquals(List.of("small", large, "small", large, "other"), bodies);
+        assertEquals(hashes.get(0), hashes.get(2));
+        assertEquals(hashes.get(1), hashes.get(3));
+        assertFalse(hashes.get(0).equals(hashes.get(4)));
+        assertEquals(2, dedup.getHits());
+        assertEquals(3, dedup.getMisses());
+
+        // the messages indexed in memory are charged to the budget
+        assertEquals(("small\r\n.\r\n" + "other\r\n.\r\n").length(), budget.getUsedBytes());
+        wiser.stop();
+        assertEquals(0, dedup.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    /**
+     * Sends a spooled message which only fits once the indexed spool file of
+     * the previous one is evicted.
+     */
+    public void testDeduplicationSpoolQuota() throws Exception {
+        var dir = Files.createTempDirectory("spool");
+        var spool = new SpoolManager(dir, 2, 6000);
+        var dedup = new DataDeduplicator(16, 1 << 20);
+        wiser.getServer().getConfig().setSpoolManager(spool);
+        wiser.getServer().getConfig().setDataDeduplicator(dedup);
+
+        wiser.stop();
+        wiser.setDataDeferredSize(1024);
+        wiser.start();
+
+        try (var client = new Client("localhost", wiser.getPort())) {
+            client.expect("220");
+            sendMessage(client, "x".repeat(4000));
+            for (var message : wiser.getMessages()) {
+                message.close();
+            }
+            assertEquals(1, dedup.size());
+
+            sendMessage(client, "y".repeat(4000));
+        }
+        assertEquals(0, spool.getRejectedMessages());
+        assertEquals(1, dedup.size());
+
+        for (var message : wiser.getMessages()) {
+            message.close();
+        }
+        wiser.stop();
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(dir);
+    }
+
+    public void testSpoolQuota() throws Exception {
+        var dir = Files.createTempDirectory("spool");
+        var spool = new SpoolManager(dir, 2, 3000);
+        wiser.getServer().getConfig().setSpoolManager(spool);
+
+        wiser.stop();
+        wiser.setDataDeferredSize(1024);
+        wiser.start();
+        assertEquals(2, spool.getPooledFiles());
+
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try (data) {
+                    bodies.add(new String(data.readAllBytes()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        var fits = "x".repeat(2000);
+        try (var client = new Client("localhost", wiser.getPort())) {
+            client.expect("220");
+            sendMessage(client, "y".repeat(4000), "452");
+            sendMessage(client, fits, "250");
+            sendMessage(client, "small", "250");
+        }
+
+        assertEquals(List.of(fits, "small"), bodies);
+        assertEquals(1, spool.getRejectedMessages());
+        assertEquals(2, spool.getAcquiredFiles());
+        assertEquals(2, spool.getReusedFiles());
+
+        // a spool file is released once all the streams reading it are closed
+        for (var message : wiser.getMessages()) {
+            message.close();
+        }
+        wiser.stop();
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Spills a buffered message exceeding what is left of the spool quota,
+     * followed by a chunk which would fit.
+     */
+    public void testSpoolQuotaOnSpill() throws Exception {
+        var dir = Files.createTempDirectory("spool");
+        var spool = new SpoolManager(dir, 2, 600);
+        wiser.getServer().getConfig().setSpoolManager(spool);
+
+        wiser.stop();
+        wiser.setDataDeferredSize(1024);
+        wiser.start();
+
+        try (var client = new Client("localhost", wiser.getPort())) {
+            client.expect("220");
+            client.send("HELO foo.com");
+            client.expect("250");
+            client.send("MAIL FROM: success@example.org");
+            client.expect("250");
+            client.send("RCPT TO: success@example.org");
+            client.expect("250");
+            client.send("DATA");
+            client.expect("354");
+
+            // buffered, then spilled once the next chunk arrives
+            client.send("y".repeat(1000));
+            Thread.sleep(200);
+            client.send("z".repeat(100) + "\r\n.");
+            client.expect("452");
+
+            sendMessage(client, "small", "250");
+        }
+
+        assertEquals(1, spool.getRejectedMessages());
+        assertEquals(0, spool.getUsedBytes());
+
+        wiser.stop();
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(dir);
+    }
+
+    public void testMessageHeaders() throws Exception {
+        wiser.getServer().getConfig().setMaxIndexedHeaderSize(64 * 1024);
+        List<MessageHeaders> headers = Collections.synchronizedList(new ArrayList<>());
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    headers.add(ctx.getMessageHeaders());
+                    data.skipNBytes(ctx.getMessageHeaders().getLength());
+                    bodies.add(new String(data.readAllBytes()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        expect("220");
+        sendMessage(client, "Message-ID: <1@example.org>\r\n"
+                + "Subject: a folded\r\n subject\r\n"
+                + "X-Tag: one\r\n"
+                + "x-tag:two\r\n"
+                + "\r\n"
+                + "..body line\r\nX-Tag: not a header");
+
+        assertEquals(1, headers.size());
+        var h = headers.get(0);
+        assertTrue(h.isComplete());
+        assertEquals(4, h.size());
+        assertEquals("<1@example.org>", h.get("message-id"));
+        assertEquals("a folded subject", h.get("Subject"));
+        assertEquals(List.of("one", "two"), h.getAll("X-TAG"));
+        assertEquals(List.of("Message-ID", "Subject", "X-Tag"), h.getNames());
+        assertNull(h.get("From"));
+        assertEquals(".body line\r\nX-Tag: not a header", bodies.get(0));
+    }
+
+    public void testDataObservations() throws Exception {
+        wiser.getServer().getConfig().setDataObservers(List.of(
+                new MessageDigestObserver("SHA-256"),
+                new DkimBodyHashObserver(DkimBodyHashObserver.Canonicalization.RELAXED, "SHA-256")));
+
+        List<Map<String, String>> observations = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> messages = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    observations.add(ctx.getDataObservations());
+                    messages.add(data.readAllBytes());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        expect("220");
+        sendMessage(client, "Subject: observed\r\n\r\n..dotted  line \r\n..\r\n\r\n");
+
+        assertEquals(1, observations.size());
+        var sha256 = MessageDigest.getInstance("SHA-256");
+        // the observers also see the CRLF ending the last line
+        sha256.update(messages.get(0));
+        assertEquals(HexFormat.of().formatHex(sha256.digest("\r\n".getBytes(StandardCharsets.US_ASCII))),
+                observations.get(0).get("SHA-256"));
+        var bodyHash = sha256.digest(".dotted line\r\n.\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(Base64.getEncoder().encodeToString(bodyHash),
+                observations.get(0).get("dkim-relaxed-sha256"));
+    }
+
+    public void testRejectedHeaders() throws Exception {
+        wiser.getServer().getConfig().setMaxIndexedHeaderSize(64 * 1024);
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void checkHeaders(SessionContext ctx, String from, MessageHeaders headers) throws RejectException {
+                if (!headers.contains("Message-ID")) {
+                    throw new RejectException(554, "Message-ID required");
+                }
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    bodies.add(new String(data.readAllBytes()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        expect("220");
+        sendMessage(client, "Subject: no id\r\n\r\n" + "x".repeat(100000), "554 Message-ID required");
+        sendMessage(client, "Message-ID: <2@example.org>\r\n\r\nbody");
+
+        assertEquals(List.of("Message-ID: <2@example.org>\r\n\r\nbody"), bodies);
+    }
+
+    /**
+     * Checks that the headers are checked off the I/O processor threads and
+     * that a rejection given after the data ended still applies.
+     */
+    public void testSlowHeaderCheck() throws Exception {
+        wiser.getServer().getConfig().setMaxIndexedHeaderSize(64 * 1024);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public boolean accept(SessionContext ctx, String from, String recipient) {
+                return recipient.equals("dedup@example.org");
+            }
+
+            @Override
+            public void checkHeaders(SessionContext ctx, String from, MessageHeaders headers) throws RejectException {
+                threads.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (headers.contains("X-Spam")) {
+                    throw new RejectException(554, "Policy violation");
+                }
+            }
+
+            @Override
+            public void deliver(SessionContext ctx, String from, String recipient, InputStream data) {
+                try {
+                    bodies.add(new String(data.readAllBytes()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        expect("220");
+        sendMessage(client, "X-Spam: yes\r\n\r\nbody", "554 Policy violation");
+        sendMessage(client, "Subject: ok\r\n\r\nbody");
+
+        assertEquals(List.of("Subject: ok\r\n\r\nbody"), bodies);
+        assertEquals(2, threads.size());
+        for (var thread : threads) {
+            assertFalse(thread, thread.startsWith("NioProcessor"));
+        }
+    }
+
+    /**
+     * Checks that a message rejected once its headers are received is only
+     * submitted once to the content filter, however many chunks follow.
+     */
+    public void testContentFilterOfRejectedMessage() throws Exception {
+        wiser.getServer().getConfig().setMaxIndexedHeaderSize(64 * 1024);
+        var starts = new AtomicInteger();
+        var aborts = new AtomicInteger();
+        wiser.getServer().getConfig().setContentFilter(envelope -> {
+            starts.incrementAndGet();
+            return new ContentFilter.Session() {
+                @Override
+                public void update(byte[] data, int offset, int length) {
+                }
+
+                @Override
+                public CompletionStage<DataRejection> end() {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void abort() {
+                    aborts.incrementAndGet();
+                }
+            };
+        });
+        wiser.getServer().getDeliveryHandlerFactory().addListener(new MessageListenerAdapter() {
+            @Override
+            public void checkHeaders(SessionContext ctx, String from, MessageHeaders headers) throws RejectException {
+                throw new RejectException(554, "Rejected");
+            }
+        });
+
+        expect("220");
+        send("HELO foo.com");
+        expect("250");
+        send("MAIL FROM: success@example.org");
+        expect("250");
+        send("RCPT TO: success@example.org");
+        expect("250");
+        send("DATA");
+        expect("354");
+
+        send("Subject: rejected\r\n");
+        for (var i = 0; i < 5; i++) {
+            Thread.sleep(50);
+            send("x".repeat(1000));
+        }
+        send(".");
+        expect("554 Rejected");
+
+        assertEquals(1, starts.get());
+        assertEquals(1, aborts.get());
+    }
+
+    private static void sendMessage(Client client, String body) throws Exception {
+        sendMessage(client, body, "250");
+    }
+
+    private static void sendMessage(Client client, String body, String reply) throws Exception {
+        client.send("HELO foo.com");
+        client.expect("250");
+
+        client.send("MAIL FROM: success@example.org");
+        client.expect("250");
+
+        client.send("RCPT TO: dedup@example.org");
+        client.expect("250");
+
+        client.send("DATA");
+        client.expect("354");
+
+        client.send(body + "\r\n.");
+        client.expect(reply);
+    }
 }
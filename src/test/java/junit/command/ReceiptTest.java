@@ -76,4 +76,37 @@ public class ReceiptTest extends ServerTestCase {
         send("RCPT TO:");
         expect("553 <> Invalid email address");
     }
+
+    public void testReceiptPipelined() throws Exception {
+        expect("220");
+
+        send("EHLO foo.com");
+        expect("250");
+
+        send("MAIL FROM: success@example.org");
+        expect("250 Ok");
+
+        send("RCPT TO: one@example.org\r\nRCPT TO: failure@example.org\r\nRCPT TO:\r\nRCPT TO: two@example.org");
+        expect("250 Ok");
+        expect("553 <failure@example.org> address unknown.");
+        expect("553 <> Invalid email address");
+        expect("250 Ok");
+    }
+
+    public void testReceiptPipelinedTooMany() throws Exception {
+        wiser.getServer().getConfig().setMaxRecipients(2);
+        expect("220");
+
+        send("EHLO foo.com");
+        expect("250");
+
+        send("MAIL FROM: success@example.org");
+        expect("250 Ok");
+
+        send("RCPT TO: failure@example.org\r\nRCPT TO: one@example.org\r\nRCPT TO: two@example.org\r\nRCPT TO: three@example.org");
+        expect("553 <failure@example.org> address unknown.");
+        expect("250 Ok");
+        expect("250 Ok");
+        expect("452 Too many recipients");
+    }
 }
@@ -1,6 +1,20 @@
 package junit.command;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.mailster.smtp.util.DummySSLSocketFactory;
+
 import junit.util.ServerTestCase;
+import junit.util.SocketUtils;
 
 /**
  * @author Jon Stevens
@@ -24,4 +38,113 @@ public class StartTLSTest extends ServerTestCase {
         send("QUIT");
         expect("221 Bye");
     }
+
+    public void testHandshakeStatistics() throws Exception {
+        var server = wiser.getServer();
+        server.getConfig().setSSLContext(createServerContext());
+        server.getConfig().setTLSSessionCacheSize(100);
+
+        // the client side session cache lives in the client context
+        var clientFactory = new DummySSLSocketFactory();
+        startTLSSession(clientFactory);
+        startTLSSession(clientFactory);
+
+        var stats = server.getTLSStatistics();
+        for (var i = 0; i < 50 && stats.getHandshakes() < 2; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(2, stats.getHandshakes());
+        assertTrue(stats.getAverageHandshakeTime() > 0);
+    }
+
+    public void testImplicitTLSListener() throws Exception {
+        var server = wiser.getServer();
+        server.getConfig().setSSLContext(createServerContext());
+        var port = SocketUtils.findAvailableTcpPort();
+
+        server.stop();
+        server.addImplicitTLSListener(null, port);
+        server.start();
+
+        try (var socket = (SSLSocket) new DummySSLSocketFactory().createSocket("localhost", port)) {
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            var out = socket.getOutputStream();
+            assertTrue(reader.readLine().startsWith("220"));
+
+            out.write("EHLO foo.com\r\n".getBytes());
+            out.flush();
+            String line;
+            do {
+                line = reader.readLine();
+                assertFalse(line, line.contains("STARTTLS"));
+            } while (line.charAt(3) == '-');
+
+            command(out, reader, "STARTTLS", "454 ");
+            command(out, reader, "QUIT", "221 ");
+        }
+    }
+
+    public void testImplicitTLSListenerOptionChange() throws Exception {
+        var server = wiser.getServer();
+        server.getConfig().setSSLContext(createServerContext());
+        var port = SocketUtils.findAvailableTcpPort();
+
+        server.stop();
+        server.addImplicitTLSListener(null, port);
+        server.start();
+
+        // sessions accepted from now on must use the rebuilt SSL filter
+        server.getConfig().setEnabledProtocols("TLSv1.2");
+
+        try (var socket = (SSLSocket) new DummySSLSocketFactory().createSocket("localhost", port)) {
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            var out = socket.getOutputStream();
+            assertTrue(reader.readLine().startsWith("220"));
+            assertEquals("TLSv1.2", socket.getSession().getProtocol());
+            command(out, reader, "QUIT", "221 ");
+        }
+    }
+
+    private void startTLSSession(SSLSocketFactory factory) throws Exception {
+        try (var socket = new Socket("localhost", wiser.getPort())) {
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            var out = socket.getOutputStream();
+            assertTrue(reader.readLine().startsWith("220"));
+            command(out, reader, "EHLO foo.com", "250 ");
+            command(out, reader, "STARTTLS", "220 ");
+
+            try (var sslSocket = (SSLSocket) factory.createSocket(socket, "localhost", wiser.getPort(), true)) {
+                sslSocket.startHandshake();
+                reader = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
+                out = sslSocket.getOutputStream();
+                command(out, reader, "EHLO foo.com", "250 ");
+                command(out, reader, "QUIT", "221 ");
+            }
+        }
+    }
+
+    private static void command(OutputStream out, BufferedReader reader, String command, String expected)
+            throws Exception {
+        out.write((command + "\r\n").getBytes());
+        out.flush();
+        String line;
+        do {
+            line = reader.readLine();
+            assertNotNull(line);
+        } while (line.length() > 3 && line.charAt(3) == '-');
+        assertTrue(line, line.startsWith(expected));
+    }
+
+    private static SSLContext createServerContext() throws Exception {
+        var keyStore = KeyStore.getInstance("PKCS12");
+        try (var in = StartTLSTest.class.getResourceAsStream("/keystore.p12")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        var kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, "changeit".toCharArray());
+
+        var context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
 }
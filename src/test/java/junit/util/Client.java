@@ -59,10 +59,19 @@ public class Client implements Closeable {
      * the specified string.
      */
     public void expect(String expect) throws Exception {
+        expectAndGet(expect);
+    }
+
+    /**
+     * Same as {@link #expect(String)} but returns the response, without its
+     * trailing newline.
+     */
+    public String expectAndGet(String expect) throws Exception {
         var response = this.readResponse();
         if (!response.startsWith(expect)) {
             throw new Exception("Got: " + response + " Expected: " + expect);
         }
+        return response.trim();
     }
 
     /**